@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * "Stores within 30 miles" over large store sets: a linear scan calling
+ * Retail.calculateDistance for every store against the StoreIndex lookup
+ * viewStores uses.
+ *
+ * Stores and query points come from a fixed seed, so every run measures
+ * the same data.
+ *
+ */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 10, time = 1)
+@Fork (2)
+public class DistanceBenchmark {
+
+   @Param ({ "1000", "100000" })
+   public int stores;
+
+   private double[] latitudes;
+   private double[] longitudes;
+   private StoreIndex index;
+
+   // query points cycled through so no single cell stays hot in cache.
+   private static final int QUERIES = 1024;
+   private double[] queryLatitudes;
+   private double[] queryLongitudes;
+   private int next;
+
+   @Setup
+   public void setUp () {
+      Random random = new Random (42);
+      this.latitudes = new double[this.stores];
+      this.longitudes = new double[this.stores];
+      List<StoreRow> rows = new ArrayList<StoreRow> (this.stores);
+      for (int i = 0; i < this.stores; ++i) {
+         this.latitudes[i] = random.nextDouble () * 100;
+         this.longitudes[i] = random.nextDouble () * 100;
+         rows.add (new StoreRow (i + 1, "store" + (i + 1), this.latitudes[i], this.longitudes[i], 1));
+      }
+      this.index = new StoreIndex (StoreIndex.cellSizeFor (rows, Retail.STORE_SEARCH_RADIUS));
+      for (StoreRow row : rows)
+         this.index.put (row);
+      this.queryLatitudes = new double[QUERIES];
+      this.queryLongitudes = new double[QUERIES];
+      for (int i = 0; i < QUERIES; ++i) {
+         this.queryLatitudes[i] = random.nextDouble () * 100;
+         this.queryLongitudes[i] = random.nextDouble () * 100;
+      }
+   }//end setUp
+
+   @Benchmark
+   public int linearScan () {
+      int q = this.next++ & (QUERIES - 1);
+      double lat = this.queryLatitudes[q];
+      double lon = this.queryLongitudes[q];
+      int within = 0;
+      for (int i = 0; i < this.stores; ++i)
+         if (Retail.calculateDistance (lat, lon, this.latitudes[i], this.longitudes[i]) <= Retail.STORE_SEARCH_RADIUS)
+            ++within;
+      return within;
+   }
+
+   @Benchmark
+   public List<StoreIndex.Hit> storeIndex () {
+      int q = this.next++ & (QUERIES - 1);
+      return this.index.withinRadius (this.queryLatitudes[q], this.queryLongitudes[q], Retail.STORE_SEARCH_RADIUS);
+   }
+
+   @Benchmark
+   public List<StoreIndex.Hit> storeIndexNearest5 () {
+      int q = this.next++ & (QUERIES - 1);
+      return this.index.nearest (this.queryLatitudes[q], this.queryLongitudes[q], 5);
+   }
+
+}//end DistanceBenchmark
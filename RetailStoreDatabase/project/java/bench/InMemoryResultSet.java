@@ -0,0 +1,70 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+/**
+ * Builds ResultSet and ResultSetMetaData proxies over rows held in memory,
+ * so the row handling in Retail can be benchmarked without a database.
+ * Only the methods Retail calls are implemented.
+ *
+ */
+
+public class InMemoryResultSet {
+
+   private InMemoryResultSet () {
+   }
+
+   /**
+    * Returns a fresh, unread result set over the given rows.
+    *
+    * @param columns the column names
+    * @param rows the rows, each with one string per column
+    * @return a forward-only result set
+    */
+   public static ResultSet of (final String[] columns, final String[][] rows) {
+      final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance (
+         ResultSetMetaData.class.getClassLoader (), new Class<?>[] { ResultSetMetaData.class },
+         new InvocationHandler () {
+            public Object invoke (Object proxy, Method method, Object[] args) {
+               String name = method.getName ();
+               if (name.equals ("getColumnCount"))
+                  return columns.length;
+               if (name.equals ("getColumnName") || name.equals ("getColumnLabel"))
+                  return columns[(Integer) args[0] - 1];
+               // every column reads as a char(30), which is what the renderer sizes table columns from.
+               if (name.equals ("getColumnDisplaySize"))
+                  return 30;
+               if (name.equals ("getColumnType"))
+                  return Types.CHAR;
+               throw new UnsupportedOperationException (name);
+            }
+         });
+      return (ResultSet) Proxy.newProxyInstance (
+         ResultSet.class.getClassLoader (), new Class<?>[] { ResultSet.class },
+         new InvocationHandler () {
+            int row = -1;
+
+            public Object invoke (Object proxy, Method method, Object[] args) {
+               String name = method.getName ();
+               if (name.equals ("next"))
+                  return ++this.row < rows.length;
+               if (name.equals ("getString"))
+                  return rows[this.row][(Integer) args[0] - 1];
+               // numbers are parsed from the text, as a driver on the text protocol does.
+               if (name.equals ("getInt"))
+                  return Integer.parseInt (rows[this.row][(Integer) args[0] - 1]);
+               if (name.equals ("getDouble"))
+                  return Double.parseDouble (rows[this.row][(Integer) args[0] - 1]);
+               if (name.equals ("getMetaData"))
+                  return metaData;
+               if (name.equals ("close"))
+                  return null;
+               throw new UnsupportedOperationException (name);
+            }
+         });
+   }//end of
+
+}//end InMemoryResultSet
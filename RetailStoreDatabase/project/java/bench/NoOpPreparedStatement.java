@@ -0,0 +1,448 @@
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A PreparedStatement that only keeps the parameters set on it, so binding
+ * can be benchmarked without a driver.  Every setter stores its value in
+ * getParameter()'s slot; nothing can be executed.  Written out rather than
+ * built as a Proxy, whose reflective dispatch would cost as much as the
+ * binding being measured.
+ *
+ */
+
+public class NoOpPreparedStatement implements PreparedStatement {
+
+   // slot i holds parameter i; slot 0 is unused.
+   private final Object[] params;
+
+   /**
+    * @param parameters the number of placeholders
+    */
+   public NoOpPreparedStatement (int parameters) {
+      this.params = new Object[parameters + 1];
+   }
+
+   /**
+    * @param index the placeholder, from 1
+    * @return the value last set for it
+    */
+   public Object getParameter (int index) {
+      return this.params[index];
+   }
+
+   public void setNull (int index, int sqlType) {
+      this.params[index] = null;
+   }
+
+   public void setBoolean (int index, boolean x) {
+      this.params[index] = x;
+   }
+
+   public void setByte (int index, byte x) {
+      this.params[index] = x;
+   }
+
+   public void setShort (int index, short x) {
+      this.params[index] = x;
+   }
+
+   public void setInt (int index, int x) {
+      this.params[index] = x;
+   }
+
+   public void setLong (int index, long x) {
+      this.params[index] = x;
+   }
+
+   public void setFloat (int index, float x) {
+      this.params[index] = x;
+   }
+
+   public void setDouble (int index, double x) {
+      this.params[index] = x;
+   }
+
+   public void setBigDecimal (int index, BigDecimal x) {
+      this.params[index] = x;
+   }
+
+   public void setString (int index, String x) {
+      this.params[index] = x;
+   }
+
+   public void setBytes (int index, byte[] x) {
+      this.params[index] = x;
+   }
+
+   public void setDate (int index, Date x) {
+      this.params[index] = x;
+   }
+
+   public void setTime (int index, Time x) {
+      this.params[index] = x;
+   }
+
+   public void setTimestamp (int index, Timestamp x) {
+      this.params[index] = x;
+   }
+
+   public void setAsciiStream (int index, InputStream x, int arg0) {
+      this.params[index] = x;
+   }
+
+   public void setUnicodeStream (int index, InputStream x, int arg0) {
+      this.params[index] = x;
+   }
+
+   public void setBinaryStream (int index, InputStream x, int arg0) {
+      this.params[index] = x;
+   }
+
+   public void setObject (int index, Object x, int arg0) {
+      this.params[index] = x;
+   }
+
+   public void setObject (int index, Object x) {
+      this.params[index] = x;
+   }
+
+   public void setCharacterStream (int index, Reader x, int arg0) {
+      this.params[index] = x;
+   }
+
+   public void setRef (int index, Ref x) {
+      this.params[index] = x;
+   }
+
+   public void setBlob (int index, Blob x) {
+      this.params[index] = x;
+   }
+
+   public void setClob (int index, Clob x) {
+      this.params[index] = x;
+   }
+
+   public void setArray (int index, Array x) {
+      this.params[index] = x;
+   }
+
+   public void setDate (int index, Date x, Calendar arg0) {
+      this.params[index] = x;
+   }
+
+   public void setTime (int index, Time x, Calendar arg0) {
+      this.params[index] = x;
+   }
+
+   public void setTimestamp (int index, Timestamp x, Calendar arg0) {
+      this.params[index] = x;
+   }
+
+   public void setNull (int index, int sqlType, String typeName) {
+      this.params[index] = null;
+   }
+
+   public void setURL (int index, URL x) {
+      this.params[index] = x;
+   }
+
+   public void setRowId (int index, RowId x) {
+      this.params[index] = x;
+   }
+
+   public void setNString (int index, String x) {
+      this.params[index] = x;
+   }
+
+   public void setNCharacterStream (int index, Reader x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setNClob (int index, NClob x) {
+      this.params[index] = x;
+   }
+
+   public void setClob (int index, Reader x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setBlob (int index, InputStream x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setNClob (int index, Reader x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setSQLXML (int index, SQLXML x) {
+      this.params[index] = x;
+   }
+
+   public void setObject (int index, Object x, int arg0, int arg1) {
+      this.params[index] = x;
+   }
+
+   public void setAsciiStream (int index, InputStream x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setBinaryStream (int index, InputStream x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setCharacterStream (int index, Reader x, long arg0) {
+      this.params[index] = x;
+   }
+
+   public void setAsciiStream (int index, InputStream x) {
+      this.params[index] = x;
+   }
+
+   public void setBinaryStream (int index, InputStream x) {
+      this.params[index] = x;
+   }
+
+   public void setCharacterStream (int index, Reader x) {
+      this.params[index] = x;
+   }
+
+   public void setNCharacterStream (int index, Reader x) {
+      this.params[index] = x;
+   }
+
+   public void setClob (int index, Reader x) {
+      this.params[index] = x;
+   }
+
+   public void setBlob (int index, InputStream x) {
+      this.params[index] = x;
+   }
+
+   public void setNClob (int index, Reader x) {
+      this.params[index] = x;
+   }
+
+   public ResultSet executeQuery () {
+      throw new UnsupportedOperationException ("executeQuery");
+   }
+
+   public int executeUpdate () {
+      throw new UnsupportedOperationException ("executeUpdate");
+   }
+
+   public void clearParameters () {
+      Arrays.fill (this.params, null);
+   }
+
+   public boolean execute () {
+      throw new UnsupportedOperationException ("execute");
+   }
+
+   public void addBatch () {
+      throw new UnsupportedOperationException ("addBatch");
+   }
+
+   public ResultSetMetaData getMetaData () {
+      throw new UnsupportedOperationException ("getMetaData");
+   }
+
+   public ParameterMetaData getParameterMetaData () {
+      throw new UnsupportedOperationException ("getParameterMetaData");
+   }
+
+   public ResultSet executeQuery (String arg0) {
+      throw new UnsupportedOperationException ("executeQuery");
+   }
+
+   public int executeUpdate (String arg0) {
+      throw new UnsupportedOperationException ("executeUpdate");
+   }
+
+   public void close () {
+   }
+
+   public int getMaxFieldSize () {
+      throw new UnsupportedOperationException ("getMaxFieldSize");
+   }
+
+   public void setMaxFieldSize (int arg0) {
+      throw new UnsupportedOperationException ("setMaxFieldSize");
+   }
+
+   public int getMaxRows () {
+      throw new UnsupportedOperationException ("getMaxRows");
+   }
+
+   public void setMaxRows (int arg0) {
+      throw new UnsupportedOperationException ("setMaxRows");
+   }
+
+   public void setEscapeProcessing (boolean arg0) {
+      throw new UnsupportedOperationException ("setEscapeProcessing");
+   }
+
+   public int getQueryTimeout () {
+      throw new UnsupportedOperationException ("getQueryTimeout");
+   }
+
+   public void setQueryTimeout (int arg0) {
+      throw new UnsupportedOperationException ("setQueryTimeout");
+   }
+
+   public void cancel () {
+      throw new UnsupportedOperationException ("cancel");
+   }
+
+   public SQLWarning getWarnings () {
+      throw new UnsupportedOperationException ("getWarnings");
+   }
+
+   public void clearWarnings () {
+      throw new UnsupportedOperationException ("clearWarnings");
+   }
+
+   public void setCursorName (String arg0) {
+      throw new UnsupportedOperationException ("setCursorName");
+   }
+
+   public boolean execute (String arg0) {
+      throw new UnsupportedOperationException ("execute");
+   }
+
+   public ResultSet getResultSet () {
+      throw new UnsupportedOperationException ("getResultSet");
+   }
+
+   public int getUpdateCount () {
+      throw new UnsupportedOperationException ("getUpdateCount");
+   }
+
+   public boolean getMoreResults () {
+      throw new UnsupportedOperationException ("getMoreResults");
+   }
+
+   public void setFetchDirection (int arg0) {
+      throw new UnsupportedOperationException ("setFetchDirection");
+   }
+
+   public int getFetchDirection () {
+      throw new UnsupportedOperationException ("getFetchDirection");
+   }
+
+   public void setFetchSize (int arg0) {
+      throw new UnsupportedOperationException ("setFetchSize");
+   }
+
+   public int getFetchSize () {
+      throw new UnsupportedOperationException ("getFetchSize");
+   }
+
+   public int getResultSetConcurrency () {
+      throw new UnsupportedOperationException ("getResultSetConcurrency");
+   }
+
+   public int getResultSetType () {
+      throw new UnsupportedOperationException ("getResultSetType");
+   }
+
+   public void addBatch (String arg0) {
+      throw new UnsupportedOperationException ("addBatch");
+   }
+
+   public void clearBatch () {
+      throw new UnsupportedOperationException ("clearBatch");
+   }
+
+   public int[] executeBatch () {
+      throw new UnsupportedOperationException ("executeBatch");
+   }
+
+   public Connection getConnection () {
+      throw new UnsupportedOperationException ("getConnection");
+   }
+
+   public boolean getMoreResults (int arg0) {
+      throw new UnsupportedOperationException ("getMoreResults");
+   }
+
+   public ResultSet getGeneratedKeys () {
+      throw new UnsupportedOperationException ("getGeneratedKeys");
+   }
+
+   public int executeUpdate (String arg0, int arg1) {
+      throw new UnsupportedOperationException ("executeUpdate");
+   }
+
+   public int executeUpdate (String arg0, int[] arg1) {
+      throw new UnsupportedOperationException ("executeUpdate");
+   }
+
+   public int executeUpdate (String arg0, String[] arg1) {
+      throw new UnsupportedOperationException ("executeUpdate");
+   }
+
+   public boolean execute (String arg0, int arg1) {
+      throw new UnsupportedOperationException ("execute");
+   }
+
+   public boolean execute (String arg0, int[] arg1) {
+      throw new UnsupportedOperationException ("execute");
+   }
+
+   public boolean execute (String arg0, String[] arg1) {
+      throw new UnsupportedOperationException ("execute");
+   }
+
+   public int getResultSetHoldability () {
+      throw new UnsupportedOperationException ("getResultSetHoldability");
+   }
+
+   public boolean isClosed () {
+      throw new UnsupportedOperationException ("isClosed");
+   }
+
+   public void setPoolable (boolean arg0) {
+      throw new UnsupportedOperationException ("setPoolable");
+   }
+
+   public boolean isPoolable () {
+      throw new UnsupportedOperationException ("isPoolable");
+   }
+
+   public void closeOnCompletion () {
+      throw new UnsupportedOperationException ("closeOnCompletion");
+   }
+
+   public boolean isCloseOnCompletion () {
+      throw new UnsupportedOperationException ("isCloseOnCompletion");
+   }
+
+   public <T> T unwrap (Class<T> iface) {
+      throw new UnsupportedOperationException ("unwrap");
+   }
+
+   public boolean isWrapperFor (Class<?> iface) {
+      return false;
+   }
+
+}//end NoOpPreparedStatement
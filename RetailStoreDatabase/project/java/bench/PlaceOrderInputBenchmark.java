@@ -0,0 +1,103 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The in-process work an order does around its database calls: mapping
+ * the product row findProduct reads with ProductRow.MAPPER, binding the
+ * parameters of submitOrder and of a price update with Retail.bind, and
+ * checking the store distance.
+ *
+ * Rows come from InMemoryResultSet and parameters go to a
+ * NoOpPreparedStatement, so no database is needed.
+ *
+ */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 10, time = 1)
+@Fork (2)
+public class PlaceOrderInputBenchmark {
+
+   private static final int INPUTS = 1024;
+
+   private static final String[] COLUMNS = { "storeid", "productname", "numberofunits", "priceperunit" };
+
+   private String[][][] products;
+   private Object[][] orders;
+   private Object[][] prices;
+   private double[] latitudes;
+   private double[] longitudes;
+   private PreparedStatement statement;
+   private int next;
+
+   @Setup
+   public void setUp () {
+      Random random = new Random (42);
+      this.products = new String[INPUTS][][];
+      this.orders = new Object[INPUTS][];
+      this.prices = new Object[INPUTS][];
+      this.latitudes = new double[INPUTS];
+      this.longitudes = new double[INPUTS];
+      for (int i = 0; i < INPUTS; ++i) {
+         int storeID = 1 + random.nextInt (1000);
+         String productName = "product" + random.nextInt (100);
+         int units = 1 + random.nextInt (50);
+         this.products[i] = new String[][] { {
+            Integer.toString (storeID), String.format ("%-30s", productName),
+            Integer.toString (random.nextInt (1000)), Double.toString (random.nextInt (10000) / 100.0)
+         } };
+         // the parameters of SUBMIT_ORDER_QUERY and SET_PRODUCT_PRICE_QUERY.
+         this.orders[i] = new Object[] { units, storeID, productName, units, 1 + random.nextInt (10000), units };
+         this.prices[i] = new Object[] { random.nextInt (10000) / 100.0, storeID, productName };
+         this.latitudes[i] = random.nextDouble () * 100;
+         this.longitudes[i] = random.nextDouble () * 100;
+      }
+      this.statement = new NoOpPreparedStatement (6);
+   }//end setUp
+
+   @Benchmark
+   public ProductRow mapProduct () throws SQLException {
+      int i = this.next++ & (INPUTS - 1);
+      ResultSet rs = InMemoryResultSet.of (COLUMNS, this.products[i]);
+      rs.next ();
+      return ProductRow.MAPPER.mapRow (rs);
+   }
+
+   @Benchmark
+   public Object[] bindOrder () throws SQLException {
+      int i = this.next++ & (INPUTS - 1);
+      Retail.bind (this.statement, this.orders[i]);
+      return this.orders[i];
+   }
+
+   @Benchmark
+   public Object[] bindPrice () throws SQLException {
+      int i = this.next++ & (INPUTS - 1);
+      Retail.bind (this.statement, this.prices[i]);
+      return this.prices[i];
+   }
+
+   @Benchmark
+   public boolean distanceCheck () {
+      int i = this.next++ & (INPUTS - 1);
+      int j = (i + 1) & (INPUTS - 1);
+      return Retail.calculateDistance (this.latitudes[i], this.longitudes[i], this.latitudes[j], this.longitudes[j]) <= 30;
+   }
+
+}//end PlaceOrderInputBenchmark
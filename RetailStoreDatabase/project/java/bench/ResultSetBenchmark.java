@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The client-side row handling of executeQueryAndReturnResult (building
+ * lists of strings) and executeQueryAndPrintResult (rendering through
+ * ResultRenderer), run over an in-memory result set shaped like the
+ * Product table.
+ *
+ * Rendering goes to a writer that discards its characters, so only the
+ * formatting and the renderer's buffering are measured, not the terminal.
+ *
+ */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 10, time = 1)
+@Fork (2)
+public class ResultSetBenchmark {
+
+   @Param ({ "10", "10000" })
+   public int rows;
+
+   @Param ({ "TABLE", "CSV", "JSON" })
+   public String format;
+
+   private static final String[] COLUMNS = { "storeid", "productname", "numberofunits", "priceperunit" };
+
+   private String[][] data;
+   private Writer sink;
+
+   @Setup
+   public void setUp () {
+      Random random = new Random (42);
+      this.data = new String[this.rows][];
+      for (int i = 0; i < this.rows; ++i) {
+         this.data[i] = new String[] {
+            Integer.toString (1 + random.nextInt (1000)),
+            String.format ("%-30s", "product" + random.nextInt (100)),
+            Integer.toString (random.nextInt (1000)),
+            Double.toString (random.nextInt (10000) / 100.0)
+         };
+      }
+      this.sink = new Writer () {
+         public void write (char[] cbuf, int off, int len) {
+         }
+
+         public void flush () {
+         }
+
+         public void close () {
+         }
+      };
+   }//end setUp
+
+   @Benchmark
+   public List<List<String>> materialize () throws SQLException {
+      return Retail.readResult (InMemoryResultSet.of (COLUMNS, this.data));
+   }
+
+   @Benchmark
+   public long print () throws SQLException, IOException {
+      ResultSet rs = InMemoryResultSet.of (COLUMNS, this.data);
+      ResultRenderer renderer = ResultRenderer.toWriter (this.sink, ResultRenderer.Format.valueOf (this.format));
+      while (rs.next ())
+         renderer.handleRow (rs);
+      renderer.finish ();
+      return renderer.getRows ();
+   }
+
+}//end ResultSetBenchmark
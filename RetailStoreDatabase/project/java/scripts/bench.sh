@@ -0,0 +1,20 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+#JMH_HOME must point at a directory holding the JMH jars (jmh-core,
+#jmh-generator-annprocess, jopt-simple, commons-math3)
+if [ -z "$JMH_HOME" ]; then
+    echo "Set JMH_HOME to the directory with the JMH jars" >&2
+    exit 1
+fi
+CP=$DIR/../lib/pg73jdbc3.jar:$(ls $JMH_HOME/*.jar | tr '\n' ':')
+
+# compile the java program and the benchmarks; the JMH annotation processor generates the harness
+mkdir -p $DIR/../bench-classes
+javac -cp $CP -d $DIR/../bench-classes $DIR/../src/*.java $DIR/../bench/*.java || exit 1
+
+#run the benchmarks; arguments go to JMH, e.g. a benchmark name regex or -rf json -rff results.json
+java $JAVA_OPTS -cp $DIR/../bench-classes:$CP org.openjdk.jmh.Main "$@"
@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#load data/*.csv (or the directory given) into the tables made by create_tables.sql, in parallel
+#Use your database name, port number and login; set JDBC_JAR to a driver with CopyManager to stream the files.
+#With the bundled pg73jdbc3.jar the server reads the files itself, so they must be on the database host.
+#The tables must be empty; a failed load empties them again so it can be rerun.
+java $JAVA_OPTS -cp $DIR/../classes:${JDBC_JAR:-$DIR/../lib/pg73jdbc3.jar} BulkLoader $USER"_DB" $PGPORT $USER "${1:-$DIR/../../data}"
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#write a synthetic data set into the directory given, in the formats of data/*.csv
+#Set the sizes in JAVA_OPTS, e.g. JAVA_OPTS="-Dretail.gen.orders=10000000 -Dretail.gen.seed=7"
+java $JAVA_OPTS -cp $DIR/../classes DataGenerator "${1:?usage: generate_data.sh <output directory>}"
@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#create the coming months' Orders partitions and empty orders_default; arguments "archive yyyy-mm-dd"
+#also archive the months before that day.  Setup creates only 3 months ahead, so run this at least
+#monthly, e.g. from cron on the first of the month:
+#  0 3 1 * * PGPORT=5432 /path/to/java/scripts/maintain_partitions.sh
+#Use your database name, port number and login
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderPartitions $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program and the tests
+mkdir -p $DIR/../test-classes
+javac -d $DIR/../test-classes $DIR/../src/*.java $DIR/../test/*.java || exit 1
+
+#run every test class; they need no database and exit non-zero on the first failure
+for TEST in $DIR/../test/*Test.java; do
+    java $JAVA_OPTS -ea -cp $DIR/../test-classes $(basename $TEST .java) || exit 1
+done
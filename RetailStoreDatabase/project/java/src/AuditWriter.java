@@ -0,0 +1,420 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes ProductUpdates audit rows in the background, many per INSERT.
+ *
+ * record() hands a row to a bounded queue and returns.  A writer thread
+ * takes everything queued, up to batchSize rows, and inserts it with
+ * Retail.insertRows().  When the queue is full, record() waits up to
+ * maxWaitMillis for room and then inserts the row itself, which slows the
+ * producer down to the writer's pace instead of dropping the row; if that
+ * insert fails the row goes to the reject file, since the change it
+ * records is already committed.  A
+ * failed batch is retried; a row the database rejects outright (a
+ * constraint violation, e.g. its product was deleted) is written to the
+ * reject file instead.  The bundled pg73jdbc3 driver reports no SQLSTATE,
+ * so when a batch fails and the database still answers a probe query the
+ * rows are retried one at a time, and a row that fails on its own
+ * ROW_ATTEMPTS times is rejected.  Deadlocks, serialization failures and
+ * statement timeouts, recognised by SQLSTATE or message, never reject a
+ * row; like failures while the database is unreachable, the batch is
+ * retried.  replayRejects() writes the reject file again once the cause is
+ * fixed.  flush() waits for the queued rows to be written, for changes that the
+ * audit rows must reach the database before.  close() drains the queue
+ * before returning, so Retail.cleanup() loses nothing that was recorded.
+ *
+ * The update time is taken from the application clock when the row is
+ * recorded.
+ *
+ */
+
+public class AuditWriter {
+
+   private static final String COLUMNS = "managerID, storeID, productName, updatedOn";
+
+   // pause before retrying a batch that failed for a reason other than its rows.
+   private static final long RETRY_MILLIS = 1000;
+   // tries of a row failing on its own before it is rejected, and the pause between them.
+   private static final int ROW_ATTEMPTS = 3;
+   private static final long ROW_RETRY_MILLIS = 100;
+
+   // errors that say nothing about the rows: deadlock, serialization failure, lock and statement timeouts.
+   private static final String[] TRANSIENT_STATES = { "40001", "40P01", "55P03", "57014" };
+   private static final String[] TRANSIENT_MESSAGES = { "deadlock detected", "could not serialize access",
+                                                        "canceling statement", "canceling query",
+                                                        "could not obtain lock", "lock not available" };
+
+   private final Retail esql;
+   private final BlockingQueue<Object[]> queue;
+   private final int batchSize;
+   private final long maxWaitMillis;
+   private final File rejectFile;
+   private final Thread writer;
+   private volatile boolean closing = false;
+   // record() holds the read lock from its closing check until its row is queued; close() sets
+   // closing under the write lock, so no row reaches the queue after close() drains it.
+   private final ReadWriteLock closeLock = new ReentrantReadWriteLock ();
+   // rows the writer still held when it stopped; written by close().
+   private volatile List<Object[]> leftover = Collections.emptyList ();
+
+   // rows queued and not yet written or rejected by the writer thread.
+   private long pending = 0;
+
+   private long written = 0;
+   private long batches = 0;
+   private long callerWrites = 0;
+   private long rejected = 0;
+   private long retries = 0;
+
+   /**
+    * Starts the writer thread.
+    *
+    * @param esql the database
+    * @param capacity the rows the queue holds
+    * @param batchSize the most rows written per batch
+    * @param maxWaitMillis how long record() waits for room before writing the row itself
+    * @param rejectFile where rows the database refuses are appended
+    */
+   public AuditWriter (Retail esql, int capacity, int batchSize, long maxWaitMillis, File rejectFile) {
+      this.esql = esql;
+      this.queue = new ArrayBlockingQueue<Object[]> (capacity);
+      this.batchSize = batchSize;
+      this.maxWaitMillis = maxWaitMillis;
+      this.rejectFile = rejectFile;
+      this.writer = new Thread ("audit-writer") {
+         public void run () {
+            drain ();
+         }
+      };
+      this.writer.setDaemon (true);
+      this.writer.start ();
+   }//end AuditWriter
+
+   /**
+    * Queues a ProductUpdates row.
+    *
+    * @param managerID the manager or admin who made the change
+    * @param storeID the store of the product
+    * @param productName the product changed
+    */
+   public void record (int managerID, int storeID, String productName) {
+      Object[] row = { managerID, storeID, productName, new Timestamp (System.currentTimeMillis ()) };
+      synchronized (this) {
+         ++this.pending;
+      }
+      boolean queued = false;
+      this.closeLock.readLock ().lock ();
+      try {
+         queued = !this.closing && this.queue.offer (row, this.maxWaitMillis, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }finally {
+         this.closeLock.readLock ().unlock ();
+      }
+      if (queued)
+         return;
+      finished (1);
+      synchronized (this) {
+         ++this.callerWrites;
+      }
+      List<Object[]> rows = new ArrayList<Object[]> (Collections.singletonList (row));
+      try {
+         write (rows);
+      }catch (SQLException e) {
+         // the change is committed, so its row is kept for replayRejects() rather than failing the caller.
+         reject (rows, e);
+      }
+   }//end record
+
+   /**
+    * Waits until every row queued so far has been written or rejected.
+    *
+    * @param timeoutMillis how long to wait at most
+    * @return false if rows were still queued when the time ran out
+    */
+   public synchronized boolean flush (long timeoutMillis) {
+      long deadline = System.currentTimeMillis () + timeoutMillis;
+      while (this.pending > 0) {
+         long remaining = deadline - System.currentTimeMillis ();
+         if (remaining <= 0 || !this.writer.isAlive ())
+            return false;
+         try {
+            wait (remaining);
+         }catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            return false;
+         }
+      }
+      return true;
+   }//end flush
+
+   /**
+    * Stops taking rows, waits for the writer to empty the queue and writes
+    * anything it left.
+    */
+   public void close () {
+      this.closeLock.writeLock ().lock ();
+      try {
+         this.closing = true;
+      }finally {
+         this.closeLock.writeLock ().unlock ();
+      }
+      this.writer.interrupt ();
+      try {
+         this.writer.join (30000);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }
+      List<Object[]> rest = new ArrayList<Object[]> (this.leftover);
+      this.queue.drainTo (rest);
+      if (!rest.isEmpty ()) {
+         try {
+            write (rest);
+         }catch (SQLException e) {
+            reject (rest, e);
+         }
+      }
+   }//end close
+
+   /**
+    * Writes the rows of the reject file again, e.g. once the product they
+    * name exists or the failure that rejected them has passed.  Rows that
+    * still fail go back to the reject file.  The file being replayed is
+    * kept as rejectFile.replay until the replay ends, and a replay that did
+    * not finish is picked up by the next one.
+    *
+    * @return the number of rows written
+    * @throws java.io.IOException when the reject file cannot be moved or read
+    */
+   public int replayRejects () throws IOException {
+      File replaying = new File (this.rejectFile.getPath () + ".replay");
+      synchronized (this) {
+         if (!replaying.exists ()) {
+            if (!this.rejectFile.exists ())
+               return 0;
+            if (!this.rejectFile.renameTo (replaying))
+               throw new IOException ("cannot move " + this.rejectFile + " to " + replaying);
+         }
+      }
+      List<Object[]> rows = new ArrayList<Object[]> ();
+      BufferedReader in = new BufferedReader (new InputStreamReader (new FileInputStream (replaying), "UTF-8"));
+      try {
+         String line;
+         while ((line = in.readLine ()) != null) {
+            String[] fields = line.split ("\t", 5);
+            if (fields.length < 4)
+               continue;
+            rows.add (new Object[] { Integer.valueOf (fields[0]), Integer.valueOf (fields[1]), fields[2],
+                                     Timestamp.valueOf (fields[3]) });
+         }
+      }finally {
+         in.close ();
+      }
+      int replayed = 0;
+      for (Object[] row : rows) {
+         try {
+            this.esql.insertRows ("ProductUpdates", COLUMNS, Collections.singletonList (row));
+            ++replayed;
+         }catch (SQLException e) {
+            reject (Collections.singletonList (row), e);
+         }
+      }
+      synchronized (this) {
+         this.written += replayed;
+      }
+      if (!replaying.delete ())
+         System.err.println ("Unable to delete " + replaying + "; the next replay writes its rows again");
+      return replayed;
+   }//end replayRejects
+
+   public synchronized String toString () {
+      return String.format ("audit: queued=%d written=%d batches=%d callerWrites=%d retries=%d rejected=%d",
+                            this.queue.size (), this.written, this.batches, this.callerWrites, this.retries,
+                            this.rejected);
+   }
+
+   // the writer loop: one batch per wake-up until closing and the queue is empty.
+   private void drain () {
+      List<Object[]> batch = new ArrayList<Object[]> (this.batchSize);
+      while (!this.closing || !this.queue.isEmpty ()) {
+         try {
+            if (batch.isEmpty ()) {
+               Object[] first = this.queue.take ();
+               batch.add (first);
+            }
+         }catch (InterruptedException e) {
+            // closing; keep going until the queue is empty.
+            continue;
+         }
+         this.queue.drainTo (batch, this.batchSize - batch.size ());
+         int size = batch.size ();
+         try {
+            write (batch);
+            batch.clear ();
+            finished (size);
+         }catch (SQLException e) {
+            // write() drops the rows it got through before failing.
+            finished (size - batch.size ());
+            synchronized (this) {
+               ++this.retries;
+            }
+            System.err.println ("Unable to write " + batch.size () + " audit row(s), retrying: " + e.getMessage ());
+            try {
+               Thread.sleep (RETRY_MILLIS);
+            }catch (InterruptedException ie) {
+               if (this.closing)
+                  break;
+            }
+         }
+      }
+      this.leftover = batch;
+   }//end drain
+
+   // rows the writer thread is done with; wakes flush().
+   private synchronized void finished (int rows) {
+      this.pending -= rows;
+      notifyAll ();
+   }
+
+   // inserts rows, falling back to one row at a time to isolate rows the database refuses.  When a
+   // row fails for another reason, the rows before it are removed from the list and the error thrown.
+   private void write (List<Object[]> rows) throws SQLException {
+      try {
+         insert (rows);
+         synchronized (this) {
+            this.written += rows.size ();
+            ++this.batches;
+         }
+         return;
+      }catch (SQLException e) {
+         if (!isRowError (this.esql, e))
+            throw e;
+      }
+      for (int i = 0; i < rows.size (); ++i) {
+         Object[] row = rows.get (i);
+         for (int attempt = 1; ; ++attempt) {
+            try {
+               this.esql.insertRows ("ProductUpdates", COLUMNS, Collections.singletonList (row));
+               synchronized (this) {
+                  ++this.written;
+               }
+               break;
+            }catch (SQLException e) {
+               if (!isRowError (this.esql, e)) {
+                  rows.subList (0, i).clear ();
+                  throw e;
+               }
+               if (attempt >= ROW_ATTEMPTS) {
+                  reject (Collections.singletonList (row), e);
+                  break;
+               }
+               synchronized (this) {
+                  ++this.retries;
+               }
+               try {
+                  Thread.sleep (ROW_RETRY_MILLIS);
+               }catch (InterruptedException ie) {
+                  // closing; the remaining attempts go ahead without the pause.
+               }
+            }
+         }
+      }
+      synchronized (this) {
+         ++this.batches;
+      }
+   }//end write
+
+   // inserts rows in one transaction, so a failed batch can be retried without duplicating part of it.
+   // A caller that already pinned a connection and opened a transaction keeps control of it.
+   private void insert (List<Object[]> rows) throws SQLException {
+      if (rows.size () <= Retail.MAX_ROWS_PER_INSERT) {
+         this.esql.insertRows ("ProductUpdates", COLUMNS, rows);
+         return;
+      }
+      PooledConnection conn = this.esql.pinConnection ();
+      Connection c = conn.getConnection ();
+      try {
+         boolean ownTransaction = c.getAutoCommit ();
+         if (!ownTransaction) {
+            this.esql.insertRows ("ProductUpdates", COLUMNS, rows);
+            return;
+         }
+         c.setAutoCommit (false);
+         try {
+            this.esql.insertRows ("ProductUpdates", COLUMNS, rows);
+            c.commit ();
+         }catch (SQLException | RuntimeException e) {
+            c.rollback ();
+            throw e;
+         }
+      }finally {
+         this.esql.unpinConnection ();
+      }
+   }//end insert
+
+   // whether the database refused the rows themselves rather than being out of reach or busy.
+   // pg73jdbc3 leaves the SQLSTATE null, and then a database that still answers means the rows
+   // were at fault, unless the message names a transient failure.  InventoryEngine uses it too.
+   static boolean isRowError (Retail esql, SQLException e) {
+      if (isTransient (e))
+         return false;
+      String state = e.getSQLState ();
+      if (state != null)
+         return state.startsWith ("22") || state.startsWith ("23");
+      return esql.isReachable ();
+   }
+
+   // whether an error would likely pass on a retry whatever the rows hold.
+   static boolean isTransient (SQLException e) {
+      String state = e.getSQLState ();
+      if (state != null) {
+         for (String s : TRANSIENT_STATES)
+            if (state.equals (s))
+               return true;
+         return false;
+      }
+      String message = e.getMessage () == null ? "" : e.getMessage ().toLowerCase ();
+      for (String m : TRANSIENT_MESSAGES)
+         if (message.contains (m))
+            return true;
+      return false;
+   }
+
+   // appends rows that cannot be written to the reject file, one tab-separated line each.
+   private synchronized void reject (List<Object[]> rows, SQLException cause) {
+      this.rejected += rows.size ();
+      // one line per row, so replayRejects() can read it back.
+      String reason = String.valueOf (cause.getMessage ()).replaceAll ("\\s+", " ").trim ();
+      try {
+         Writer out = new OutputStreamWriter (new FileOutputStream (this.rejectFile, true), "UTF-8");
+         try {
+            for (Object[] row : rows)
+               out.write (row[0] + "\t" + row[1] + "\t" + row[2] + "\t" + row[3] + "\t" + reason + "\n");
+         }finally {
+            out.close ();
+         }
+      }catch (IOException e) {
+         System.err.println ("Unable to write " + rows.size () + " rejected audit row(s) to " + this.rejectFile
+                             + ": " + e.getMessage ());
+      }
+   }//end reject
+
+}//end AuditWriter
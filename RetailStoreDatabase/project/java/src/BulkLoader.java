@@ -0,0 +1,472 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the data/*.csv files into an empty database with COPY, in
+ * parallel, as a faster replacement for sql/src/load_data.sql.
+ *
+ * Tables are loaded level by level in foreign key order (users and
+ * warehouses, then stores, then products, then orders, supply requests and
+ * product updates); the tables of one level load at the same time, and a
+ * file larger than retail.load.chunkMB is split at line boundaries into
+ * chunks copied on separate connections.  The secondary indexes on the
+ * tables are dropped first and rebuilt in parallel once the data is in,
+ * user triggers are disabled during the load, the serial sequences are
+ * set past the largest key loaded, and the order rollups are rebuilt if
+ * they exist.  Before the orders are copied, orders.csv is read once for
+ * its first and last day and the monthly partitions of that range are
+ * created, so every order is written once, straight into its partition.
+ * Each table's throughput is reported in MB/s.
+ *
+ * The chunks are copied on separate connections, each committing on its
+ * own, so a load cannot be one transaction.  Instead the tables must be
+ * empty when it starts, and when any chunk fails every loaded table is
+ * truncated (with CASCADE, so rows referencing them go too) before the
+ * indexes are rebuilt; the load can then simply be run again.
+ *
+ * The data is streamed from this machine when the JDBC driver has a
+ * CopyManager (PostgreSQL driver 8.4 or later); with an older driver the
+ * server reads the files itself with COPY FROM 'file', which needs the
+ * files on the database host and one connection per file.  Chunking
+ * assumes no quoted field spans a line, which holds for the Retail data.
+ *
+ */
+
+public class BulkLoader {
+
+   /**
+    * One table and the CSV file it is loaded from.
+    */
+   private static class Table {
+      final String name;
+      final String file;
+
+      Table (String name, String file) {
+         this.name = name;
+         this.file = file;
+      }
+   }//end Table
+
+   // tables in foreign key order; the tables of one level do not reference each other.
+   private static final Table[][] LEVELS = {
+      { new Table ("Users", "users.csv"), new Table ("Warehouse", "warehouse.csv") },
+      { new Table ("Store", "stores.csv") },
+      { new Table ("Product", "products.csv") },
+      { new Table ("Orders", "orders.csv"), new Table ("ProductSupplyRequests", "productSupplyRequests.csv"),
+        new Table ("ProductUpdates", "productUpdates.csv") },
+   };
+
+   // serial columns whose sequence is set past the largest value loaded.
+   private static final String[][] SERIALS = {
+      { "Users", "userID" },
+      { "Orders", "orderNumber" },
+      { "ProductSupplyRequests", "requestNumber" },
+      { "ProductUpdates", "updateNumber" },
+   };
+
+   // secondary indexes on the loaded tables: not primary keys and not backing a constraint.
+   private static final String INDEXES_QUERY =
+      "SELECT I.relname, pg_get_indexdef(I.oid) FROM pg_index X, pg_class I, pg_class T "
+      + "WHERE I.oid = X.indexrelid AND T.oid = X.indrelid AND pg_table_is_visible(T.oid) "
+      + "AND T.relname IN ('users', 'warehouse', 'store', 'product', 'orders', 'productsupplyrequests', 'productupdates') "
+      + "AND NOT X.indisprimary AND NOT EXISTS (SELECT 1 FROM pg_constraint C WHERE C.conindid = I.oid)";
+
+   private static final String CREATE_PARTITIONS_QUERY =
+      "SELECT orders_create_partitions(CAST(? AS date), CAST(? AS date))";
+
+   private static final String ROLLUPS_QUERY =
+      "SELECT COUNT(*) FROM pg_class C WHERE C.relname = 'storeproductordercounts' AND pg_table_is_visible(C.oid)";
+
+   private final Retail esql;
+   private final File dataDir;
+   private final long chunkBytes;
+   private final ExecutorService workers;
+
+   /**
+    * @param esql the database
+    * @param dataDir the directory holding the CSV files
+    * @param threads the connections used at once
+    * @param chunkBytes the size above which a file is split into chunks
+    */
+   public BulkLoader (Retail esql, File dataDir, int threads, long chunkBytes) {
+      this.esql = esql;
+      this.dataDir = dataDir;
+      this.chunkBytes = chunkBytes;
+      this.workers = Executors.newFixedThreadPool (threads);
+   }
+
+   /**
+    * Runs the whole load.  Indexes and triggers are restored even when the
+    * load fails.
+    *
+    * @throws java.lang.Exception when a file cannot be read or a table, index or sequence cannot be written
+    */
+   public void run () throws Exception {
+      long start = System.nanoTime ();
+      checkEmpty ();
+      Map<String, String> indexes = readIndexes ();
+      for (String index : indexes.keySet ())
+         this.esql.executeUpdate ("DROP INDEX \"" + index + "\"");
+      System.out.println ("Dropped " + indexes.size () + " index(es) for the load.");
+      setTriggers (false);
+      try {
+         boolean streaming = copyManagerClass () != null;
+         System.out.println (streaming ? "Streaming the files with CopyManager."
+                             : "No CopyManager in the JDBC driver; the server reads the files.");
+         System.out.println (String.format ("%-24s %12s %10s %9s %9s", "table", "rows", "MB", "s", "MB/s"));
+         try {
+            if (new OrderPartitions (this.esql).isInstalled ())
+               createOrderPartitions ();
+            for (Table[] level : LEVELS)
+               loadLevel (level, streaming);
+         }catch (Exception e) {
+            try {
+               truncate ();
+               System.out.println ("The load failed; the tables were emptied so it can be run again.");
+            }catch (SQLException te) {
+               System.err.println ("Unable to empty the tables after the failed load, run create_tables.sql again: "
+                                   + te.getMessage ());
+            }
+            throw e;
+         }
+      }finally {
+         setTriggers (true);
+         rebuildIndexes (indexes);
+      }
+      setSequences ();
+      for (Table[] level : LEVELS)
+         for (Table table : level)
+            this.esql.executeUpdate ("ANALYZE " + table.name);
+      if (this.esql.executeQueryForObject (ROLLUPS_QUERY, Retail.INT_COLUMN) > 0)
+         new OrderRollups (this.esql).rebuild ();
+      System.out.println (String.format ("Loaded in %.1f s.", (System.nanoTime () - start) / 1e9));
+   }//end run
+
+   /**
+    * Stops the worker threads.
+    */
+   public void close () {
+      this.workers.shutdownNow ();
+   }
+
+   // loads the tables of one level at once, each file in as many chunks as its size calls for.
+   private void loadLevel (Table[] level, boolean streaming) throws Exception {
+      Map<Table, List<Future<Long>>> tasks = new LinkedHashMap<Table, List<Future<Long>>> ();
+      Map<Table, Long> starts = new LinkedHashMap<Table, Long> ();
+      // when the last chunk of each table finished.
+      final Map<Table, Long> ends = new LinkedHashMap<Table, Long> ();
+      for (final Table table : level) {
+         final File file = new File (this.dataDir, table.file);
+         if (!file.isFile ())
+            throw new IOException ("missing data file " + file);
+         List<Future<Long>> chunks = new ArrayList<Future<Long>> ();
+         starts.put (table, System.nanoTime ());
+         if (streaming) {
+            long[] bounds = chunkBounds (file);
+            for (int i = 0; i + 1 < bounds.length; ++i) {
+               final long from = bounds[i];
+               final long to = bounds[i + 1];
+               final boolean header = i == 0;
+               chunks.add (this.workers.submit (new Callable<Long> () {
+                  public Long call () throws Exception {
+                     long rows = copyIn (table, file, from, to, header);
+                     finished (ends, table);
+                     return rows;
+                  }
+               }));
+            }
+         } else {
+            chunks.add (this.workers.submit (new Callable<Long> () {
+               public Long call () throws Exception {
+                  long rows = esql.executeUpdate ("COPY " + table.name + " FROM '"
+                                                  + file.getAbsolutePath ().replace ("'", "''")
+                                                  + "' WITH DELIMITER ',' CSV HEADER");
+                  finished (ends, table);
+                  return rows;
+               }
+            }));
+         }
+         tasks.put (table, chunks);
+      }
+
+      Exception failure = null;
+      for (Map.Entry<Table, List<Future<Long>>> e : tasks.entrySet ()) {
+         long rows = 0;
+         for (Future<Long> chunk : e.getValue ()) {
+            try {
+               rows += chunk.get ();
+            }catch (ExecutionException ex) {
+               if (failure == null)
+                  failure = ex.getCause () instanceof Exception ? (Exception) ex.getCause () : ex;
+            }
+         }
+         Table table = e.getKey ();
+         Long end;
+         synchronized (ends) {
+            end = ends.get (table);
+         }
+         double seconds = ((end != null ? end : System.nanoTime ()) - starts.get (table)) / 1e9;
+         double mb = new File (this.dataDir, table.file).length () / 1048576.0;
+         System.out.println (String.format ("%-24s %12d %10.1f %9.2f %9.1f", table.name, rows, mb, seconds,
+                                            seconds > 0 ? mb / seconds : 0.0));
+      }
+      if (failure != null)
+         throw failure;
+   }//end loadLevel
+
+   // creates the monthly Orders partitions from the first to the last day in orders.csv.
+   private void createOrderPartitions () throws Exception {
+      long start = System.nanoTime ();
+      File file = new File (this.dataDir, "orders.csv");
+      if (!file.isFile ())
+         throw new IOException ("missing data file " + file);
+      String first = null;
+      String last = null;
+      BufferedReader in = new BufferedReader (new FileReader (file), 1 << 16);
+      try {
+         in.readLine ();
+         String line;
+         while ((line = in.readLine ()) != null) {
+            // orderTime is the last field, yyyy-mm-dd hh:mm:ss.
+            String day = line.substring (line.lastIndexOf (',') + 1).trim ();
+            if (day.length () < 10)
+               continue;
+            day = day.substring (0, 10);
+            if (first == null || day.compareTo (first) < 0)
+               first = day;
+            if (last == null || day.compareTo (last) > 0)
+               last = day;
+         }
+      }finally {
+         in.close ();
+      }
+      if (first == null)
+         return;
+      int created = this.esql.executeQueryForObject (CREATE_PARTITIONS_QUERY, Retail.INT_COLUMN,
+                                                     java.sql.Date.valueOf (first), java.sql.Date.valueOf (last));
+      System.out.println (String.format ("Created %d monthly Orders partition(s) for %s to %s in %.1f s.", created,
+                                         first, last, (System.nanoTime () - start) / 1e9));
+   }//end createOrderPartitions
+
+   private static void finished (Map<Table, Long> ends, Table table) {
+      synchronized (ends) {
+         ends.put (table, System.nanoTime ());
+      }
+   }
+
+   // chunk boundaries: byte offsets just after a line break, first 0, last the file length.
+   private long[] chunkBounds (File file) throws IOException {
+      long length = file.length ();
+      int chunks = (int) Math.max (1, Math.min (Integer.MAX_VALUE, length / Math.max (1, this.chunkBytes)));
+      List<Long> bounds = new ArrayList<Long> ();
+      bounds.add (0L);
+      RandomAccessFile in = new RandomAccessFile (file, "r");
+      try {
+         for (int i = 1; i < chunks; ++i) {
+            long at = Math.max (length * i / chunks, bounds.get (bounds.size () - 1));
+            in.seek (at);
+            int b;
+            while ((b = in.read ()) != -1 && b != '\n')
+               ;
+            if (in.getFilePointer () < length && in.getFilePointer () > bounds.get (bounds.size () - 1))
+               bounds.add (in.getFilePointer ());
+         }
+      }finally {
+         in.close ();
+      }
+      bounds.add (length);
+      long[] result = new long[bounds.size ()];
+      for (int i = 0; i < result.length; ++i)
+         result[i] = bounds.get (i);
+      return result;
+   }//end chunkBounds
+
+   // streams bytes [from, to) of a file through COPY FROM STDIN on a connection of its own.
+   private long copyIn (Table table, File file, long from, long to, boolean header) throws Exception {
+      PooledConnection conn = this.esql.pinConnection ();
+      RandomAccessFile raf = new RandomAccessFile (file, "r");
+      try {
+         raf.seek (from);
+         InputStream chunk = new RangeInputStream (Channels.newInputStream (raf.getChannel ()), to - from);
+         Class<?> managerClass = copyManagerClass ();
+         Class<?> baseConnection = Class.forName ("org.postgresql.core.BaseConnection");
+         Connection c = conn.getConnection ();
+         Object manager = managerClass.getConstructor (baseConnection).newInstance (baseConnection.cast (c));
+         Method copyIn = managerClass.getMethod ("copyIn", String.class, InputStream.class);
+         String sql = "COPY " + table.name + " FROM STDIN WITH DELIMITER ',' CSV" + (header ? " HEADER" : "");
+         return (Long) copyIn.invoke (manager, sql, chunk);
+      }finally {
+         raf.close ();
+         this.esql.unpinConnection ();
+      }
+   }//end copyIn
+
+   private static Class<?> copyManagerClass () {
+      try {
+         return Class.forName ("org.postgresql.copy.CopyManager");
+      }catch (ClassNotFoundException e) {
+         return null;
+      }
+   }
+
+   // index name -> CREATE INDEX statement, for every secondary index on the loaded tables.
+   private Map<String, String> readIndexes () throws SQLException {
+      final Map<String, String> indexes = new LinkedHashMap<String, String> ();
+      this.esql.executeQueryAndStream (INDEXES_QUERY, 1000, new RowHandler () {
+         public void handleRow (ResultSet rs) throws SQLException {
+            // an index on a partitioned table is defined ON ONLY the parent; rebuild it on every partition.
+            indexes.put (rs.getString (1), rs.getString (2).replace (" ON ONLY ", " ON "));
+         }
+      });
+      return indexes;
+   }
+
+   // builds the indexes again, several at once.
+   private void rebuildIndexes (Map<String, String> indexes) throws Exception {
+      long start = System.nanoTime ();
+      List<Future<Integer>> builds = new ArrayList<Future<Integer>> ();
+      for (final String definition : indexes.values ()) {
+         builds.add (this.workers.submit (new Callable<Integer> () {
+            public Integer call () throws SQLException {
+               return esql.executeUpdate (definition);
+            }
+         }));
+      }
+      Exception failure = null;
+      for (Future<Integer> build : builds) {
+         try {
+            build.get ();
+         }catch (ExecutionException e) {
+            if (failure == null)
+               failure = e.getCause () instanceof Exception ? (Exception) e.getCause () : e;
+         }
+      }
+      System.out.println (String.format ("Rebuilt %d index(es) in %.1f s.", indexes.size (),
+                                         (System.nanoTime () - start) / 1e9));
+      if (failure != null)
+         throw failure;
+   }//end rebuildIndexes
+
+   // refuses to load on top of existing rows, which a failed load could not tell from its own.
+   private void checkEmpty () throws SQLException {
+      for (Table[] level : LEVELS)
+         for (Table table : level)
+            if (this.esql.executeQueryForObject ("SELECT COUNT(*) FROM (SELECT 1 FROM " + table.name + " LIMIT 1) T",
+                                                 Retail.INT_COLUMN) > 0)
+               throw new SQLException (table.name + " already has rows; load into tables fresh from create_tables.sql");
+   }
+
+   // empties every loaded table after a failed load.
+   private void truncate () throws SQLException {
+      StringBuilder tables = new StringBuilder ();
+      for (Table[] level : LEVELS)
+         for (Table table : level)
+            tables.append (tables.length () == 0 ? "" : ", ").append (table.name);
+      this.esql.executeUpdate ("TRUNCATE " + tables + " CASCADE");
+   }
+
+   private void setTriggers (boolean enabled) throws SQLException {
+      for (Table[] level : LEVELS)
+         for (Table table : level)
+            this.esql.executeUpdate ("ALTER TABLE " + table.name + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER");
+   }
+
+   // moves every serial sequence just past the largest key loaded.
+   private void setSequences () throws SQLException {
+      for (String[] serial : SERIALS) {
+         Long next = this.esql.executeQueryForObject (
+            "SELECT setval(pg_get_serial_sequence('" + serial[0] + "', '" + serial[1].toLowerCase () + "'), "
+            + "COALESCE(MAX(" + serial[1] + "), 0) + 1, false) FROM " + serial[0], Retail.LONG_COLUMN);
+         System.out.println ("\t" + serial[0] + "." + serial[1] + " continues at " + next);
+      }
+   }//end setSequences
+
+   /**
+    * Reads at most a given number of bytes from a stream.
+    */
+   private static class RangeInputStream extends FilterInputStream {
+      private long left;
+
+      RangeInputStream (InputStream in, long length) {
+         super (in);
+         this.left = length;
+      }
+
+      public int read () throws IOException {
+         if (this.left <= 0)
+            return -1;
+         int b = super.read ();
+         if (b >= 0)
+            --this.left;
+         return b;
+      }
+
+      public int read (byte[] buffer, int offset, int length) throws IOException {
+         if (this.left <= 0)
+            return -1;
+         int n = super.read (buffer, offset, (int) Math.min (length, this.left));
+         if (n > 0)
+            this.left -= n;
+         return n;
+      }
+   }//end RangeInputStream
+
+   /**
+    * Loads the CSV files of a directory from the command line.
+    *
+    * @param args <dbname> <port> <user> <data directory>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> <data directory>");
+         return;
+      }//end if
+
+      int threads = Integer.getInteger ("retail.load.threads", 4);
+      // one connection per worker plus one for the coordinating thread.
+      if (System.getProperty ("retail.pool.maxSize") == null)
+         System.setProperty ("retail.pool.maxSize", Integer.toString (threads + 1));
+
+      Retail esql = null;
+      BulkLoader loader = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         loader = new BulkLoader (esql, new File (args[3]), threads,
+                                  Long.getLong ("retail.load.chunkMB", 64L) * 1048576L);
+         loader.run ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (loader != null)
+            loader.close ();
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end BulkLoader
@@ -0,0 +1,274 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports a file of orders in the format of data/orders.csv with the same
+ * checks placeOrder applies, but set-based instead of one order per prompt.
+ *
+ * The file is streamed into a temporary staging table with multi-row
+ * INSERTs (Retail.insertRows), many rows per round trip.  Rows that fail a check (unknown customer, store or product,
+ * store further than 30 away, non-positive units, not enough stock) are
+ * rejected with a reason; the rest decrement Product with one UPDATE and
+ * are inserted into Orders with one INSERT, all in a single transaction.
+ * Orders for the same product are accepted in file order until its stock
+ * runs out.  The orderNumber column of the file is ignored, new numbers
+ * come from the Orders sequence; an empty orderTime means now.
+ *
+ * The import writes Product and Orders directly.  Within its own process
+ * it keeps Retail in step: the write-behind inventory engine is flushed
+ * first and its counts follow the committed decrements, and the product
+ * cache drops the products imported.  Another running Retail process is
+ * not told: its product cache catches up within its TTL and its heavy
+ * hitters when it next starts, but a write-behind inventory engine there
+ * never re-reads its counts, so do not import while one is running.
+ *
+ */
+
+public class BulkOrderImport {
+
+   // rows read from the file before they are sent to the staging table.
+   private static final int BATCH_SIZE = 1024;
+
+   private static final String STAGING_COLUMNS = "lineNumber, customerID, storeID, productName, unitsOrdered, orderTime";
+
+   // the units accepted per product, read before the decrement.
+   private static final String ACCEPTED_QUERY =
+      "SELECT st.storeID, st.productName, SUM(st.unitsOrdered) FROM OrderStaging st "
+      + "WHERE NOT EXISTS (SELECT 1 FROM OrderRejects R WHERE R.lineNumber = st.lineNumber) "
+      + "GROUP BY st.storeID, st.productName";
+
+   private static final RowMapper<Object[]> ACCEPTED = new RowMapper<Object[]> () {
+      public Object[] mapRow (ResultSet rs) throws SQLException {
+         return new Object[] { rs.getInt (1), rs.getString (2), rs.getInt (3) };
+      }
+   };
+
+   // rejected rows listed individually in the report; the rest are only counted.
+   private static final int MAX_REPORTED_REJECTS = 20;
+
+   private final Retail esql;
+
+   // filled in by run().
+   private long rowsRead = 0;
+   private long rowsAccepted = 0;
+   private long rowsRejected = 0;
+   private final List<String> rejectSamples = new ArrayList<String> ();
+
+   public BulkOrderImport (Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Imports one orders file.  Either every accepted order is written or,
+    * on a database error, none is.
+    *
+    * @param fileName the CSV file to import
+    * @throws java.io.IOException when the file cannot be read
+    * @throws java.sql.SQLException when the import fails; nothing is written
+    */
+   public void run (String fileName) throws IOException, SQLException {
+      long start = System.nanoTime ();
+      InventoryEngine inventory = this.esql.getInventoryStats ();
+      InventoryEngine.DirectWrite direct = null;
+      if (inventory != null) {
+         // the stock checks read Product, so it must hold what the engine took.
+         this.esql.flushInventory ();
+         direct = inventory.directWrite ();
+      }
+      List<Object[]> accepted;
+      PooledConnection conn = this.esql.pinConnection ();
+      Connection c = conn.getConnection ();
+      try {
+         c.setAutoCommit (false);
+         Statement ddl = c.createStatement ();
+         try {
+            ddl.executeUpdate (
+               "CREATE TEMP TABLE OrderStaging (lineNumber integer PRIMARY KEY, customerID integer, "
+               + "storeID integer, productName char(30), unitsOrdered integer, orderTime timestamp) ON COMMIT DROP");
+            ddl.executeUpdate (
+               "CREATE TEMP TABLE OrderRejects (lineNumber integer PRIMARY KEY, reason text) ON COMMIT DROP");
+         }finally {
+            ddl.close ();
+         }
+
+         stage (fileName);
+         validate ();
+         accepted = this.esql.executeQueryForList (ACCEPTED_QUERY, ACCEPTED);
+         if (direct != null)
+            for (Object[] product : accepted)
+               direct.add ((Integer) product[0], (String) product[1], -(Integer) product[2]);
+         apply ();
+         report ();
+         c.commit ();
+      }catch (SQLException | IOException | RuntimeException e) {
+         c.rollback ();
+         throw e;
+      }finally {
+         this.esql.unpinConnection ();
+      }
+      if (direct != null)
+         direct.committed ();
+      for (Object[] product : accepted)
+         this.esql.invalidateProduct ((Integer) product[0], (String) product[1]);
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format (
+         "Imported %d of %d orders in %.2f s (%.0f rows/s), %d rejected.",
+         this.rowsAccepted, this.rowsRead, seconds, this.rowsRead / Math.max (seconds, 1e-9), this.rowsRejected));
+      for (String reject : this.rejectSamples)
+         System.out.println ("\t" + reject);
+      if (this.rowsRejected > this.rejectSamples.size ())
+         System.out.println ("\t... and " + (this.rowsRejected - this.rejectSamples.size ()) + " more");
+   }//end run
+
+   // streams the file into OrderStaging; malformed lines are rejected right away.
+   private void stage (String fileName) throws IOException, SQLException {
+      BufferedReader reader = new BufferedReader (new InputStreamReader (new FileInputStream (fileName), "UTF-8"));
+      try {
+         List<Object[]> rows = new ArrayList<Object[]> (BATCH_SIZE);
+         int lineNumber = 0;
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            ++lineNumber;
+            if (line.trim ().isEmpty () || (lineNumber == 1 && line.startsWith ("orderNumber")))
+               continue;
+            ++this.rowsRead;
+            String[] fields = line.split (",", -1);
+            try {
+               if (fields.length != 6)
+                  throw new IllegalArgumentException ("expected 6 fields, found " + fields.length);
+               String productName = fields[3].trim ();
+               if (productName.length () > 30)
+                  throw new IllegalArgumentException ("product name longer than 30 characters");
+               String orderTime = fields[5].trim ();
+               rows.add (new Object[] { lineNumber, Integer.parseInt (fields[1].trim ()),
+                                        Integer.parseInt (fields[2].trim ()), productName,
+                                        Integer.parseInt (fields[4].trim ()),
+                                        orderTime.isEmpty () ? null : Timestamp.valueOf (orderTime) });
+            }catch (IllegalArgumentException e) {
+               reject (lineNumber, "malformed line: " + e.getMessage ());
+               continue;
+            }
+            if (rows.size () == BATCH_SIZE) {
+               this.esql.insertRows ("OrderStaging", STAGING_COLUMNS, rows);
+               rows.clear ();
+            }
+         }//end while
+         this.esql.insertRows ("OrderStaging", STAGING_COLUMNS, rows);
+      }finally {
+         reader.close ();
+      }
+   }//end stage
+
+   // records every staged row that fails a placeOrder check in OrderRejects.
+   private void validate () throws SQLException {
+      String checks =
+         "INSERT INTO OrderRejects (lineNumber, reason) "
+         + "SELECT lineNumber, reason FROM ("
+         + "SELECT st.lineNumber, CASE "
+         + "WHEN st.unitsOrdered <= 0 THEN 'number of units must be bigger than 0' "
+         + "WHEN U.userID IS NULL THEN 'unknown customer' "
+         + "WHEN S.storeID IS NULL THEN 'unknown store' "
+         + "WHEN P.storeID IS NULL THEN 'store does not carry this product' "
+         + "WHEN sqrt((U.latitude - S.latitude) * (U.latitude - S.latitude) "
+         + "+ (U.longitude - S.longitude) * (U.longitude - S.longitude)) > 30 THEN 'store is not within 30 miles' "
+         + "END AS reason "
+         + "FROM OrderStaging st "
+         + "LEFT JOIN Users U ON U.userID = st.customerID "
+         + "LEFT JOIN Store S ON S.storeID = st.storeID "
+         + "LEFT JOIN Product P ON P.storeID = st.storeID AND P.productName = st.productName) checked "
+         + "WHERE reason IS NOT NULL";
+      this.esql.executeUpdate (checks);
+
+      // lock the products in a fixed order so the stock check below stays true until commit.
+      String lock =
+         "SELECT P.storeID FROM Product P "
+         + "WHERE (P.storeID, P.productName) IN (SELECT storeID, productName FROM OrderStaging) "
+         + "ORDER BY P.storeID, P.productName FOR UPDATE";
+      this.esql.executeQuery (lock);
+
+      String stock =
+         "INSERT INTO OrderRejects (lineNumber, reason) "
+         + "SELECT lineNumber, 'store does not carry enough in stock' FROM ("
+         + "SELECT st.lineNumber, P.numberOfUnits, SUM(st.unitsOrdered) OVER "
+         + "(PARTITION BY st.storeID, st.productName ORDER BY st.lineNumber) AS runningUnits "
+         + "FROM OrderStaging st JOIN Product P ON P.storeID = st.storeID AND P.productName = st.productName "
+         + "WHERE NOT EXISTS (SELECT 1 FROM OrderRejects R WHERE R.lineNumber = st.lineNumber)) running "
+         + "WHERE runningUnits > numberOfUnits";
+      this.esql.executeUpdate (stock);
+   }//end validate
+
+   // decrements the stock of every product once and inserts the accepted orders.
+   private void apply () throws SQLException {
+      String decrement =
+         "UPDATE Product P SET numberOfUnits = P.numberOfUnits - accepted.units FROM ("
+         + "SELECT st.storeID, st.productName, SUM(st.unitsOrdered) AS units FROM OrderStaging st "
+         + "WHERE NOT EXISTS (SELECT 1 FROM OrderRejects R WHERE R.lineNumber = st.lineNumber) "
+         + "GROUP BY st.storeID, st.productName) accepted "
+         + "WHERE P.storeID = accepted.storeID AND P.productName = accepted.productName";
+      this.esql.executeUpdate (decrement);
+
+      String insert =
+         "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) "
+         + "SELECT st.customerID, st.storeID, st.productName, st.unitsOrdered, COALESCE(st.orderTime, current_timestamp) "
+         + "FROM OrderStaging st "
+         + "WHERE NOT EXISTS (SELECT 1 FROM OrderRejects R WHERE R.lineNumber = st.lineNumber) "
+         + "ORDER BY st.lineNumber";
+      this.rowsAccepted = this.esql.executeUpdate (insert);
+   }//end apply
+
+   // collects the rejected rows found by validate().
+   private void report () throws SQLException {
+      String query = "SELECT R.lineNumber, R.reason FROM OrderRejects R ORDER BY R.lineNumber";
+      this.esql.executeQueryAndStream (query, BATCH_SIZE, new RowHandler () {
+         public void handleRow (ResultSet rs) throws SQLException {
+            reject (rs.getInt (1), rs.getString (2));
+         }
+      });
+   }//end report
+
+   private void reject (int lineNumber, String reason) {
+      ++this.rowsRejected;
+      if (this.rejectSamples.size () < MAX_REPORTED_REJECTS)
+         this.rejectSamples.add ("line " + lineNumber + ": " + reason);
+   }
+
+   /**
+    * Imports an orders file from the command line.
+    *
+    * @param args <dbname> <port> <user> <orders file>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkOrderImport.class.getName () +
+            " <dbname> <port> <user> <orders.csv>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         new BulkOrderImport (esql).run (args[3]);
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end BulkOrderImport
@@ -0,0 +1,412 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of physical PostgreSQL connections shared by every session
+ * running inside one Retail process.
+ *
+ * Connections are validated when they have been idle for a while, evicted
+ * when they sit idle past the idle timeout and retired once they reach their
+ * maximum lifetime.  The evictor opens connections again when fewer than
+ * minIdle are idle, so bursts after a quiet spell do not wait on connects.
+ * Borrowers that have to wait for a free connection are counted so the
+ * pool can be sized from real numbers.
+ *
+ */
+
+public class ConnectionPool {
+
+   // validate an idle connection before handing it out after this long.
+   private static final long VALIDATE_AFTER_IDLE_MILLIS = 5000;
+
+   // how often the background evictor looks at the idle connections.
+   private static final long EVICTION_INTERVAL_MILLIS = 30000;
+
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   private final int maxSize;
+   private final int minIdle;
+   private final long maxWaitMillis;
+   private final long idleTimeoutMillis;
+   private final long maxLifetimeMillis;
+   private final int statementCacheSize;
+   private final StatementCache.Counters statementCounters = new StatementCache.Counters ();
+
+   // guards idle, total and the counters below.
+   private final Object lock = new Object ();
+   private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection> ();
+   private int total = 0;
+   private boolean closed = false;
+
+   /**
+    * A connection pinned to a thread, with the pin() calls not yet undone.
+    */
+   private static class Pin {
+      final PooledConnection conn;
+      int depth = 1;
+
+      Pin (PooledConnection conn) {
+         this.conn = conn;
+      }
+   }//end Pin
+
+   // connection pinned to a thread between pin() and the matching unpin().
+   private final ThreadLocal<Pin> pinned = new ThreadLocal<Pin> ();
+
+   private final ScheduledExecutorService evictor;
+
+   // metrics
+   private long borrowCount = 0;
+   private long waitCount = 0;
+   private long totalWaitNanos = 0;
+   private long maxWaitNanos = 0;
+   private long timeoutCount = 0;
+   private long createdCount = 0;
+   private long idleEvictedCount = 0;
+   private long lifetimeRetiredCount = 0;
+   private long validationFailureCount = 0;
+
+   /**
+    * Creates a new connection pool.  No connection is opened until the first
+    * borrow.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of physical connections
+    * @param minIdle the number of idle connections the evictor keeps open, opening more when needed
+    * @param maxWaitMillis how long a borrower waits for a free connection
+    * @param idleTimeoutMillis how long a connection may stay idle
+    * @param maxLifetimeMillis how long a connection may live in total
+    * @param statementCacheSize prepared statements cached per connection
+    */
+   public ConnectionPool (String url, String user, String passwd, int maxSize, int minIdle,
+                          long maxWaitMillis, long idleTimeoutMillis, long maxLifetimeMillis,
+                          int statementCacheSize) {
+      if (maxSize < 1)
+         throw new IllegalArgumentException ("maxSize must be at least 1");
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+      this.minIdle = Math.min (minIdle, maxSize);
+      this.maxWaitMillis = maxWaitMillis;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.maxLifetimeMillis = maxLifetimeMillis;
+      this.statementCacheSize = statementCacheSize;
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "retail-pool-evictor");
+            t.setDaemon (true);
+            return t;
+         }
+      });
+      this.evictor.scheduleWithFixedDelay (new Runnable () {
+         public void run () {
+            evict ();
+         }
+      }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, opening a new one if the pool is not
+    * full yet and waiting for a returned one otherwise.  A thread that pinned
+    * a connection always gets that connection back.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection borrow () throws SQLException {
+      Pin own = this.pinned.get ();
+      if (own != null)
+         return own.conn;
+
+      long start = System.nanoTime ();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos (this.maxWaitMillis);
+      boolean waited = false;
+      while (true) {
+         PooledConnection candidate = null;
+         synchronized (this.lock) {
+            while (!this.closed && this.idle.isEmpty () && this.total >= this.maxSize) {
+               long remaining = deadline - System.nanoTime ();
+               if (remaining <= 0) {
+                  ++this.timeoutCount;
+                  throw new SQLException ("Timed out after " + this.maxWaitMillis
+                                          + " ms waiting for a database connection");
+               }
+               waited = true;
+               try {
+                  TimeUnit.NANOSECONDS.timedWait (this.lock, remaining);
+               }catch (InterruptedException e) {
+                  Thread.currentThread ().interrupt ();
+                  throw new SQLException ("Interrupted while waiting for a database connection");
+               }
+            }
+            if (this.closed)
+               throw new SQLException ("Connection pool is closed");
+            candidate = this.idle.pollFirst ();
+            if (candidate == null)
+               ++this.total;      // reserve a slot, the connection is opened below
+         }
+
+         if (candidate == null)
+            candidate = open ();
+         else if (!usable (candidate))
+            continue;
+
+         long elapsed = System.nanoTime () - start;
+         synchronized (this.lock) {
+            ++this.borrowCount;
+            if (waited) {
+               ++this.waitCount;
+               this.totalWaitNanos += elapsed;
+               if (elapsed > this.maxWaitNanos)
+                  this.maxWaitNanos = elapsed;
+            }
+         }
+         return candidate;
+      }
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool.  Connections pinned to the
+    * calling thread stay with it until unpin() is called.
+    *
+    * @param conn the connection returned by borrow()
+    */
+   public void release (PooledConnection conn) {
+      Pin own = this.pinned.get ();
+      if (conn == null || (own != null && conn == own.conn))
+         return;
+      boolean keep = false;
+      try {
+         Connection c = conn.getConnection ();
+         if (!c.isClosed ()) {
+            if (!c.getAutoCommit ()) {
+               c.rollback ();
+               c.setAutoCommit (true);
+            }
+            keep = !conn.isExpired (this.maxLifetimeMillis);
+         }
+      }catch (SQLException e) {
+         keep = false;
+      }//end try
+
+      conn.touch ();
+      boolean pooled;
+      synchronized (this.lock) {
+         pooled = keep && !this.closed;
+         if (pooled) {
+            this.idle.addFirst (conn);
+         } else {
+            --this.total;
+            if (!this.closed && conn.isExpired (this.maxLifetimeMillis))
+               ++this.lifetimeRetiredCount;
+         }
+         this.lock.notifyAll ();
+      }
+      if (!pooled)
+         conn.close ();
+   }//end release
+
+   /**
+    * Pins a connection to the calling thread.  Until unpin() is called every
+    * borrow() on this thread returns the same physical connection, which is
+    * what transactions, temporary tables and currval() need.  Pins nest: a
+    * thread that already holds one gets the same connection, and only the
+    * unpin() matching the outermost pin() releases it.
+    *
+    * @return the pinned connection
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection pin () throws SQLException {
+      Pin own = this.pinned.get ();
+      if (own != null) {
+         ++own.depth;
+         return own.conn;
+      }
+      PooledConnection conn = borrow ();
+      this.pinned.set (new Pin (conn));
+      return conn;
+   }//end pin
+
+   /**
+    * Undoes one pin() of the calling thread, releasing the connection when
+    * it was the outermost.
+    */
+   public void unpin () {
+      Pin own = this.pinned.get ();
+      if (own != null && --own.depth == 0) {
+         this.pinned.remove ();
+         release (own.conn);
+      }
+   }//end unpin
+
+   /**
+    * Closes every idle connection and refuses further borrows.  Connections
+    * that are still borrowed are closed when they are released.
+    */
+   public void close () {
+      this.evictor.shutdownNow ();
+      Deque<PooledConnection> toClose;
+      synchronized (this.lock) {
+         this.closed = true;
+         toClose = new ArrayDeque<PooledConnection> (this.idle);
+         this.total -= this.idle.size ();
+         this.idle.clear ();
+         this.lock.notifyAll ();
+      }
+      for (PooledConnection conn : toClose)
+         conn.close ();
+   }//end close
+
+   /**
+    * @return the prepared statement cache counters of every connection
+    */
+   public StatementCache.Counters getStatementCounters () {
+      return this.statementCounters;
+   }
+
+   /**
+    * @return a one-line summary of the pool counters
+    */
+   public String getStats () {
+      synchronized (this.lock) {
+         double avgWaitMillis = this.waitCount == 0 ? 0.0
+            : (this.totalWaitNanos / (double) this.waitCount) / 1e6;
+         return String.format (
+            "pool: open=%d idle=%d max=%d borrows=%d waits=%d avgWait=%.2fms maxWait=%.2fms "
+            + "timeouts=%d created=%d idleEvicted=%d retired=%d validationFailures=%d",
+            this.total, this.idle.size (), this.maxSize, this.borrowCount, this.waitCount,
+            avgWaitMillis, this.maxWaitNanos / 1e6, this.timeoutCount, this.createdCount,
+            this.idleEvictedCount, this.lifetimeRetiredCount, this.validationFailureCount);
+      }
+   }//end getStats
+
+   // opens a physical connection for a slot already reserved in total.
+   private PooledConnection open () throws SQLException {
+      try {
+         Connection c = DriverManager.getConnection (this.url, this.user, this.passwd);
+         synchronized (this.lock) {
+            ++this.createdCount;
+         }
+         return new PooledConnection (c, this.statementCacheSize, this.statementCounters);
+      }catch (SQLException e) {
+         synchronized (this.lock) {
+            --this.total;
+            this.lock.notifyAll ();
+         }
+         throw e;
+      }//end try
+   }//end open
+
+   // checks an idle connection taken off the deque; closes it and frees its slot if it is bad.
+   private boolean usable (PooledConnection conn) {
+      boolean expired = conn.isExpired (this.maxLifetimeMillis);
+      boolean valid = !expired;
+      if (valid && conn.idleMillis () >= VALIDATE_AFTER_IDLE_MILLIS) {
+         Statement stmt = null;
+         try {
+            stmt = conn.getConnection ().createStatement ();
+            stmt.executeQuery ("SELECT 1").close ();
+         }catch (SQLException e) {
+            valid = false;
+         }finally {
+            closeQuietly (stmt);
+         }
+      }
+      if (valid)
+         return true;
+
+      synchronized (this.lock) {
+         --this.total;
+         if (expired)
+            ++this.lifetimeRetiredCount;
+         else
+            ++this.validationFailureCount;
+         this.lock.notifyAll ();
+      }
+      conn.close ();
+      return false;
+   }//end usable
+
+   // closes idle connections past their idle timeout or lifetime, keeping minIdle open, then tops the idle ones up to minIdle.
+   private void evict () {
+      Deque<PooledConnection> toClose = new ArrayDeque<PooledConnection> ();
+      synchronized (this.lock) {
+         Iterator<PooledConnection> it = this.idle.descendingIterator ();
+         while (it.hasNext ()) {
+            PooledConnection conn = it.next ();
+            if (conn.isExpired (this.maxLifetimeMillis)) {
+               ++this.lifetimeRetiredCount;
+            } else if (conn.idleMillis () >= this.idleTimeoutMillis && this.idle.size () > this.minIdle) {
+               ++this.idleEvictedCount;
+            } else {
+               continue;
+            }
+            it.remove ();
+            --this.total;
+            toClose.add (conn);
+         }
+         if (!toClose.isEmpty ())
+            this.lock.notifyAll ();
+      }
+      for (PooledConnection conn : toClose)
+         conn.close ();
+      refill ();
+   }//end evict
+
+   // opens connections until minIdle are idle or the pool is full.
+   private void refill () {
+      while (true) {
+         synchronized (this.lock) {
+            if (this.closed || this.idle.size () >= this.minIdle || this.total >= this.maxSize)
+               return;
+            ++this.total;      // reserve a slot, the connection is opened below
+         }
+         PooledConnection conn;
+         try {
+            conn = open ();
+         }catch (SQLException e) {
+            // open() gave the slot back; try again on the next round.
+            System.err.println ("Unable to open an idle database connection: " + e.getMessage ());
+            return;
+         }
+         boolean pooled;
+         synchronized (this.lock) {
+            pooled = !this.closed;
+            if (pooled)
+               this.idle.addLast (conn);
+            else
+               --this.total;
+            this.lock.notifyAll ();
+         }
+         if (!pooled) {
+            conn.close ();
+            return;
+         }
+      }
+   }//end refill
+
+   private static void closeQuietly (Statement stmt) {
+      try {
+         if (stmt != null)
+            stmt.close ();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}//end ConnectionPool
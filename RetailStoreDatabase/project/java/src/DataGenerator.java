@@ -0,0 +1,373 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Writes a synthetic data set of any size in the formats of the files in
+ * data/, for loading with load_data.sql or BulkLoader.
+ *
+ * The output is a function of the seed and the sizes only, and every file
+ * is written row by row, so memory stays constant however many rows are
+ * asked for.  The data keeps every foreign key of create_tables.sql and
+ * has the skew real traffic has:
+ *
+ *  - stores sit in clusters (towns); customers live around the same
+ *    centers and order from stores of their own cluster, mostly within the
+ *    30 mile search radius
+ *  - every store carries the chain-wide bestsellers plus a store-specific
+ *    range, and the product of an order follows a Zipf distribution over
+ *    the store's range, so a few products take most orders
+ *  - customers order with a milder Zipf skew, so some are regulars
+ *  - each manager runs several stores; updates and supply requests come
+ *    from the store's own manager
+ *
+ * Sizes are system properties, e.g. -Dretail.gen.orders=10000000; see
+ * main() for the full list.
+ *
+ */
+
+public class DataGenerator {
+
+   // bestsellers of the bundled data set, first in every catalog.
+   private static final String[] NAMES = {
+      "7up", "Pepsi", "Lemonade", "Orange Juice", "Brisk", "Egg", "Donuts", "Ice Cream", "Pudding", "Hot and Sour Soup"
+   };
+
+   // the data files end their lines like the bundled ones.
+   private static final String EOL = "\r\n";
+
+   /**
+    * Samples ranks 1..n with probability proportional to 1 / rank^s, from
+    * the inverse of the continuous approximation of the distribution, in
+    * constant time and memory.
+    */
+   static class Zipf {
+      private final long n;
+      private final double s;
+
+      Zipf (long n, double s) {
+         this.n = n;
+         this.s = s;
+      }
+
+      long next (Random random) {
+         double u = random.nextDouble ();
+         double x;
+         if (Math.abs (this.s - 1.0) < 1e-9)
+            x = Math.pow (this.n + 1, u);
+         else
+            x = Math.pow ((Math.pow (this.n + 1, 1 - this.s) - 1) * u + 1, 1 / (1 - this.s));
+         return Math.min (this.n, Math.max (1, (long) x));
+      }
+   }//end Zipf
+
+   private final File dir;
+   private final long seed;
+   private final int users;
+   private final int stores;
+   private final int managers;
+   private final int warehouses;
+   private final int catalog;
+   private final int productsPerStore;
+   private final int sharedProducts;
+   private final int clusters;
+   private final long orders;
+   private final long updates;
+   private final long supplyRequests;
+   private final double productSkew;
+   private final double customerSkew;
+   private final long startMillis;
+   private final long endMillis;
+
+   // cluster centers, derived from the seed.
+   private final double[] centerLat;
+   private final double[] centerLong;
+
+   public DataGenerator (File dir, long seed, int users, int stores, int warehouses, int catalog, int productsPerStore,
+                         int clusters, long orders, long updates, long supplyRequests, double productSkew,
+                         double customerSkew, long startMillis, long endMillis) {
+      if (stores < 1 || clusters < 1 || warehouses < 1 || productsPerStore < 1 || catalog < productsPerStore)
+         throw new IllegalArgumentException ("need at least one store, cluster, warehouse and product per store, "
+                                             + "and a catalog at least as large as a store's range");
+      this.dir = dir;
+      this.seed = seed;
+      this.stores = stores;
+      this.managers = Math.max (1, stores / 2);
+      // user 1 is the admin, then the managers, then the customers.
+      this.users = Math.max (users, this.managers + 2);
+      this.warehouses = warehouses;
+      this.catalog = catalog;
+      this.productsPerStore = productsPerStore;
+      this.sharedProducts = Math.min (productsPerStore / 2, NAMES.length);
+      this.clusters = Math.min (clusters, stores);
+      this.orders = orders;
+      this.updates = updates;
+      this.supplyRequests = supplyRequests;
+      this.productSkew = productSkew;
+      this.customerSkew = customerSkew;
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      Random random = new Random (seed);
+      this.centerLat = new double[this.clusters];
+      this.centerLong = new double[this.clusters];
+      for (int c = 0; c < this.clusters; ++c) {
+         this.centerLat[c] = 10 + 80 * random.nextDouble ();
+         this.centerLong[c] = 5 + 50 * random.nextDouble ();
+      }
+   }//end DataGenerator
+
+   /**
+    * Writes every file.
+    *
+    * @throws java.io.IOException when a file cannot be written
+    */
+   public void run () throws IOException {
+      if (!this.dir.isDirectory () && !this.dir.mkdirs ())
+         throw new IOException ("cannot create " + this.dir);
+      writeUsers ();
+      writeWarehouses ();
+      writeStores ();
+      writeProducts ();
+      writeOrders ();
+      writeProductUpdates ();
+      writeSupplyRequests ();
+   }//end run
+
+   private void writeUsers () throws IOException {
+      Random random = random (1);
+      Out out = new Out ("users.csv", "userID,name,password,latitude,longitude,type");
+      out.row ("1,Admin,xyz," + coordinates (random, 0, 10) + ",admin");
+      for (int id = 2; id <= this.users; ++id) {
+         boolean manager = id <= this.managers + 1;
+         // managers and customers live in the clusters, customers spread wider.
+         out.row (id + ",User_" + id + ",xyz," + coordinates (random, clusterOfUser (id), manager ? 5 : 10)
+                  + (manager ? ",manager" : ",customer"));
+      }
+      out.close ();
+   }//end writeUsers
+
+   private void writeWarehouses () throws IOException {
+      Random random = random (2);
+      Out out = new Out ("warehouse.csv", "wareHouseID,area,latitude,longitude");
+      for (int id = 1; id <= this.warehouses; ++id)
+         out.row (id + "," + (5000 + random.nextInt (60000)) + "," + coordinates (random, random.nextInt (this.clusters), 15));
+      out.close ();
+   }//end writeWarehouses
+
+   private void writeStores () throws IOException {
+      Random random = random (3);
+      Out out = new Out ("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished");
+      for (int id = 1; id <= this.stores; ++id) {
+         StringBuilder name = new StringBuilder ();
+         for (int i = 0; i < 4; ++i)
+            name.append ((char) ('a' + random.nextInt (26)));
+         out.row (id + "," + name + "," + coordinates (random, clusterOfStore (id), 5) + "," + managerOf (id) + ","
+                  + (1 + random.nextInt (12)) + "/" + (1 + random.nextInt (28)) + "/" + (1950 + random.nextInt (66)));
+      }
+      out.close ();
+   }//end writeStores
+
+   private void writeProducts () throws IOException {
+      Random random = random (4);
+      Out out = new Out ("products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+      for (int store = 1; store <= this.stores; ++store)
+         for (int rank = 1; rank <= this.productsPerStore; ++rank)
+            out.row (store + "," + productName (store, rank) + "," + random.nextInt (1000) + "," + (1 + random.nextInt (10)));
+      out.close ();
+   }//end writeProducts
+
+   private void writeOrders () throws IOException {
+      Random random = random (5);
+      Zipf products = new Zipf (this.productsPerStore, this.productSkew);
+      Zipf customers = new Zipf (customerCount (), this.customerSkew);
+      SimpleDateFormat format = timeFormat ();
+      Out out = new Out ("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      for (long number = 1; number <= this.orders; ++number) {
+         int customer = customer (customers.next (random));
+         int store = storeNear (random, customer);
+         out.row (number + "," + customer + "," + store + "," + productName (store, (int) products.next (random)) + ","
+                  + (1 + random.nextInt (50)) + "," + format.format (timeOf (number, this.orders)));
+      }
+      out.close ();
+   }//end writeOrders
+
+   private void writeProductUpdates () throws IOException {
+      Random random = random (6);
+      Zipf products = new Zipf (this.productsPerStore, this.productSkew);
+      SimpleDateFormat format = timeFormat ();
+      Out out = new Out ("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+      for (long number = 1; number <= this.updates; ++number) {
+         int store = 1 + random.nextInt (this.stores);
+         out.row (number + "," + managerOf (store) + "," + store + "," + productName (store, (int) products.next (random))
+                  + "," + format.format (timeOf (number, this.updates)));
+      }
+      out.close ();
+   }//end writeProductUpdates
+
+   private void writeSupplyRequests () throws IOException {
+      Random random = random (7);
+      Zipf products = new Zipf (this.productsPerStore, this.productSkew);
+      Out out = new Out ("productSupplyRequests.csv", "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      for (long number = 1; number <= this.supplyRequests; ++number) {
+         int store = 1 + random.nextInt (this.stores);
+         out.row (number + "," + managerOf (store) + "," + (1 + random.nextInt (this.warehouses)) + "," + store + ","
+                  + productName (store, (int) products.next (random)) + "," + (1 + random.nextInt (100)));
+      }
+      out.close ();
+   }//end writeSupplyRequests
+
+   // the product a store carries at a popularity rank: shared bestsellers first, then its own range.
+   private String productName (int store, int rank) {
+      int index = rank - 1;
+      if (index >= this.sharedProducts) {
+         int own = this.catalog - this.sharedProducts;
+         index = this.sharedProducts + (int) (((long) (index - this.sharedProducts) + (long) store * 7919) % own);
+      }
+      return index < NAMES.length ? NAMES[index] : "Product " + index;
+   }
+
+   private int customerCount () {
+      return Math.max (1, this.users - this.managers - 1);
+   }
+
+   // customer ids by Zipf rank, scattered so the regulars are not all adjacent.
+   private int customer (long rank) {
+      int count = customerCount ();
+      int first = this.managers + 2;
+      if (first > this.users)
+         return 1;
+      return first + (int) (((rank - 1) * 1000003L) % count);
+   }
+
+   private int managerOf (int store) {
+      return 2 + (store - 1) % this.managers;
+   }
+
+   private int clusterOfStore (int store) {
+      return (store - 1) % this.clusters;
+   }
+
+   private int clusterOfUser (int user) {
+      return user % this.clusters;
+   }
+
+   // a store in the customer's cluster; clusters own stores c+1, c+1+clusters, ...
+   private int storeNear (Random random, int customer) {
+      int cluster = clusterOfUser (customer);
+      int inCluster = (this.stores - 1 - cluster) / this.clusters + 1;
+      return cluster + 1 + random.nextInt (inCluster) * this.clusters;
+   }
+
+   // a point around a cluster center, kept inside the ranges of the coordinate columns.
+   private String coordinates (Random random, int cluster, double spread) {
+      double latitude = clamp (this.centerLat[cluster] + random.nextGaussian () * spread, 0, 99.99);
+      double longitude = clamp (this.centerLong[cluster] + random.nextGaussian () * spread, 0, 99.99);
+      return decimal (latitude) + "," + decimal (longitude);
+   }
+
+   // five decimals without String.format, which dominates the time of the users file.
+   private static String decimal (double value) {
+      long scaled = Math.round (value * 100000);
+      String fraction = Long.toString (100000 + scaled % 100000).substring (1);
+      return scaled / 100000 + "." + fraction;
+   }
+
+   private static double clamp (double value, double min, double max) {
+      return Math.max (min, Math.min (max, value));
+   }
+
+   // the i-th of n timestamps spread evenly over the configured period, so numbers and times rise together.
+   private long timeOf (long i, long n) {
+      return this.startMillis + (long) ((double) (this.endMillis - this.startMillis) * (i - 1) / Math.max (1, n));
+   }
+
+   // one independent stream per file, so changing one size leaves the other files as they were.
+   private Random random (int stream) {
+      return new Random (this.seed * 31 + stream);
+   }
+
+   private static SimpleDateFormat timeFormat () {
+      SimpleDateFormat format = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+      format.setTimeZone (TimeZone.getTimeZone ("UTC"));
+      return format;
+   }
+
+   /**
+    * One CSV file being written, with its row count and throughput.
+    */
+   private class Out {
+      private final File file;
+      private final BufferedWriter writer;
+      private final long start = System.nanoTime ();
+      private long rows = 0;
+
+      Out (String name, String header) throws IOException {
+         this.file = new File (dir, name);
+         this.writer = new BufferedWriter (new OutputStreamWriter (new FileOutputStream (this.file), "UTF-8"), 1 << 20);
+         this.writer.write (header);
+      }
+
+      void row (String line) throws IOException {
+         this.writer.write (EOL);
+         this.writer.write (line);
+         ++this.rows;
+      }
+
+      void close () throws IOException {
+         this.writer.close ();
+         double seconds = (System.nanoTime () - this.start) / 1e9;
+         double mb = this.file.length () / 1048576.0;
+         System.out.println (String.format ("%-28s %12d rows %10.1f MB %8.1f MB/s", this.file.getName (), this.rows,
+                                            mb, seconds > 0 ? mb / seconds : 0.0));
+      }
+   }//end Out
+
+   /**
+    * Writes a data set from the command line.
+    *
+    * @param args <output directory>
+    */
+   public static void main (String[] args) {
+      if (args.length != 1) {
+         System.err.println (
+            "Usage: " +
+            "java [-Dretail.gen.orders=N ...] [-classpath <classpath>] " +
+            DataGenerator.class.getName () +
+            " <output directory>");
+         return;
+      }//end if
+
+      Calendar start = Calendar.getInstance (TimeZone.getTimeZone ("UTC"), Locale.ROOT);
+      start.clear ();
+      start.set (2016, Calendar.JANUARY, 1);
+      Calendar end = (Calendar) start.clone ();
+      end.add (Calendar.YEAR, 1);
+      long orders = Long.getLong ("retail.gen.orders", 1000000L);
+      try {
+         new DataGenerator (new File (args[0]),
+                            Long.getLong ("retail.gen.seed", 1L),
+                            Integer.getInteger ("retail.gen.users", 100000),
+                            Integer.getInteger ("retail.gen.stores", 1000),
+                            Integer.getInteger ("retail.gen.warehouses", 50),
+                            Integer.getInteger ("retail.gen.catalog", 5000),
+                            Integer.getInteger ("retail.gen.productsPerStore", 200),
+                            Integer.getInteger ("retail.gen.clusters", 50),
+                            orders,
+                            Long.getLong ("retail.gen.updates", orders / 10),
+                            Long.getLong ("retail.gen.supplyRequests", orders / 50),
+                            Double.parseDouble (System.getProperty ("retail.gen.productSkew", "1.1")),
+                            Double.parseDouble (System.getProperty ("retail.gen.customerSkew", "0.8")),
+                            start.getTimeInMillis (), end.getTimeInMillis ()).run ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }
+   }//end main
+
+}//end DataGenerator
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory store-to-warehouse distance matrix, with each store's
+ * warehouses ranked nearest first, for routing supply requests.
+ *
+ * Every store has a row of float distances, one per warehouse column, and
+ * the warehouse columns sorted by that distance, so the nearest k
+ * warehouses of a store are read off without computing anything.
+ * Distances are the euclidean latitude/longitude distance of
+ * Retail.calculateDistance.  Adding a store computes its row; adding a
+ * warehouse appends a column and inserts it into every store's ranking;
+ * neither rebuilds the matrix.
+ *
+ */
+
+public class DistanceMatrix {
+
+   /**
+    * A warehouse together with its distance from the store asked about.
+    */
+   public static class Hit {
+      public final WarehouseRow warehouse;
+      public final double distance;
+
+      Hit (WarehouseRow warehouse, double distance) {
+         this.warehouse = warehouse;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   // one store: its distance to every warehouse column, and the columns nearest first.
+   private static class Row {
+      final StoreRow store;
+      float[] distances;
+      int[] ranked;
+
+      Row (StoreRow store, float[] distances, int[] ranked) {
+         this.store = store;
+         this.distances = distances;
+         this.ranked = ranked;
+      }
+   }//end Row
+
+   private final ReadWriteLock lock = new ReentrantReadWriteLock ();
+   // column -> warehouse.
+   private final List<WarehouseRow> warehouses = new ArrayList<WarehouseRow> ();
+   private final Map<Integer, Integer> columns = new HashMap<Integer, Integer> ();
+   private final Map<Integer, Row> rows = new HashMap<Integer, Row> ();
+
+   /**
+    * Adds a store, or recomputes its row if it moved.
+    *
+    * @param store the store
+    */
+   public void putStore (StoreRow store) {
+      this.lock.writeLock ().lock ();
+      try {
+         float[] distances = new float[this.warehouses.size ()];
+         for (int c = 0; c < distances.length; ++c)
+            distances[c] = distance (store, this.warehouses.get (c));
+         this.rows.put (store.storeID, new Row (store, distances, rank (distances)));
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }//end putStore
+
+   /**
+    * @param storeID the store to remove
+    * @return true if the store was in the matrix
+    */
+   public boolean removeStore (int storeID) {
+      this.lock.writeLock ().lock ();
+      try {
+         return this.rows.remove (storeID) != null;
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }
+
+   /**
+    * Adds a warehouse column, or recomputes it if the warehouse moved.
+    *
+    * @param warehouse the warehouse
+    */
+   public void putWarehouse (WarehouseRow warehouse) {
+      this.lock.writeLock ().lock ();
+      try {
+         Integer existing = this.columns.get (warehouse.warehouseID);
+         int c = existing != null ? existing : this.warehouses.size ();
+         if (existing != null) {
+            this.warehouses.set (c, warehouse);
+         }else {
+            this.warehouses.add (warehouse);
+            this.columns.put (warehouse.warehouseID, c);
+         }
+         for (Row row : this.rows.values ()) {
+            if (existing != null)
+               row.ranked = without (row.ranked, c, false);
+            else
+               row.distances = Arrays.copyOf (row.distances, c + 1);
+            row.distances[c] = distance (row.store, warehouse);
+            row.ranked = insert (row.ranked, row.distances, c);
+         }
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }//end putWarehouse
+
+   /**
+    * Removes a warehouse column; the columns after it move down one.
+    *
+    * @param warehouseID the warehouse to remove
+    * @return true if the warehouse was in the matrix
+    */
+   public boolean removeWarehouse (int warehouseID) {
+      this.lock.writeLock ().lock ();
+      try {
+         Integer column = this.columns.remove (warehouseID);
+         if (column == null)
+            return false;
+         int c = column;
+         this.warehouses.remove (c);
+         for (int i = c; i < this.warehouses.size (); ++i)
+            this.columns.put (this.warehouses.get (i).warehouseID, i);
+         for (Row row : this.rows.values ()) {
+            float[] distances = new float[row.distances.length - 1];
+            System.arraycopy (row.distances, 0, distances, 0, c);
+            System.arraycopy (row.distances, c + 1, distances, c, distances.length - c);
+            row.distances = distances;
+            row.ranked = without (row.ranked, c, true);
+         }
+         return true;
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }//end removeWarehouse
+
+   /**
+    * @param storeID the store to look up
+    * @return true if the store has a row
+    */
+   public boolean hasStore (int storeID) {
+      this.lock.readLock ().lock ();
+      try {
+         return this.rows.containsKey (storeID);
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+   }
+
+   /**
+    * Returns a store's nearest warehouses.
+    *
+    * @param storeID the store
+    * @param k the number of warehouses wanted
+    * @return at most k warehouses, nearest first; empty if the store has no row
+    */
+   public List<Hit> nearest (int storeID, int k) {
+      List<Hit> result = new ArrayList<Hit> ();
+      this.lock.readLock ().lock ();
+      try {
+         Row row = this.rows.get (storeID);
+         if (row != null)
+            for (int i = 0; i < Math.min (k, row.ranked.length); ++i)
+               result.add (new Hit (this.warehouses.get (row.ranked[i]), row.distances[row.ranked[i]]));
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+      return result;
+   }//end nearest
+
+   public String toString () {
+      this.lock.readLock ().lock ();
+      try {
+         return String.format ("distance matrix: stores=%d warehouses=%d", this.rows.size (), this.warehouses.size ());
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+   }
+
+   private static float distance (StoreRow store, WarehouseRow warehouse) {
+      return (float) Retail.calculateDistance (store.latitude, store.longitude, warehouse.latitude, warehouse.longitude);
+   }
+
+   // the columns sorted by distance, ties in column order.  A distance is never negative, so its float
+   // bits sort like it; each column is packed under its distance's bits and sorted once.
+   private static int[] rank (float[] distances) {
+      long[] keys = new long[distances.length];
+      for (int c = 0; c < distances.length; ++c)
+         keys[c] = (long) Float.floatToIntBits (distances[c]) << 32 | c;
+      Arrays.sort (keys);
+      int[] ranked = new int[keys.length];
+      for (int i = 0; i < keys.length; ++i)
+         ranked[i] = (int) keys[i];
+      return ranked;
+   }//end rank
+
+   // the ranking with column c added after every column at most as far away.
+   private static int[] insert (int[] ranked, float[] distances, int c) {
+      int lo = 0;
+      int hi = ranked.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (distances[ranked[mid]] <= distances[c])
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      int[] result = new int[ranked.length + 1];
+      System.arraycopy (ranked, 0, result, 0, lo);
+      result[lo] = c;
+      System.arraycopy (ranked, lo, result, lo + 1, ranked.length - lo);
+      return result;
+   }//end insert
+
+   // the ranking without column c, renumbering the columns after it when it is deleted.
+   private static int[] without (int[] ranked, int c, boolean renumber) {
+      int[] result = new int[ranked.length - 1];
+      int n = 0;
+      for (int column : ranked)
+         if (column != c)
+            result[n++] = renumber && column > c ? column - 1 : column;
+      return result;
+   }
+
+}//end DistanceMatrix
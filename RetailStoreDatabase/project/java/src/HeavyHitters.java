@@ -0,0 +1,271 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Approximate top-K counter over a sliding time window, using the
+ * space-saving algorithm with a fixed number of counters.
+ *
+ * The window is split into epochs, each with its own space-saving summary
+ * of at most capacity counters; an epoch is recycled once it falls out of
+ * the window.  Memory is therefore capped at capacity * epochs counters no
+ * matter how many distinct keys are seen.  A reported count never
+ * undercounts and overcounts by at most its error, so count - error is a
+ * guaranteed lower bound.  Any key seen more often than
+ * (window total) / capacity times is guaranteed to be tracked.
+ *
+ * Each epoch keeps its counters in a stream-summary: buckets of counters
+ * with equal counts, linked in count order, so an offer finds the
+ * smallest counter and moves a counter up by one in constant time.
+ * Offers and queries are synchronized; a query touches at most capacity
+ * counters per epoch.
+ *
+ */
+
+public class HeavyHitters<K> {
+
+   /**
+    * A key with its estimated count in the window.
+    */
+   public static class Estimate<K> {
+      public final K key;
+      // upper bound on the true count.
+      public final long count;
+      // the true count is at least count - error.
+      public final long error;
+
+      Estimate (K key, long count, long error) {
+         this.key = key;
+         this.count = count;
+         this.error = error;
+      }
+   }//end Estimate
+
+   private static class Counter<K> {
+      K key;
+      long count;
+      long error;
+      // the bucket of counters with this count, and the neighbours in it.
+      Bucket<K> bucket;
+      Counter<K> prev;
+      Counter<K> next;
+
+      Counter (K key) {
+         this.key = key;
+      }
+   }
+
+   // the counters sharing one count; buckets are linked from the smallest count up.
+   private static class Bucket<K> {
+      final long count;
+      Bucket<K> prev;
+      Bucket<K> next;
+      Counter<K> first;
+
+      Bucket (long count) {
+         this.count = count;
+      }
+   }
+
+   // one space-saving summary per epoch of the window.
+   private static class Epoch<K> {
+      long id = -1;
+      final Map<K, Counter<K>> counters = new HashMap<K, Counter<K>> ();
+      Bucket<K> smallest = null;
+
+      void clear () {
+         this.counters.clear ();
+         this.smallest = null;
+      }
+
+      long minCount () {
+         return this.smallest == null ? 0 : this.smallest.count;
+      }
+
+      // starts counting a key at 1.
+      void add (K key) {
+         Counter<K> c = new Counter<K> (key);
+         c.count = 1;
+         Bucket<K> ones = this.smallest;
+         if (ones == null || ones.count != 1) {
+            ones = new Bucket<K> (1);
+            ones.next = this.smallest;
+            if (this.smallest != null)
+               this.smallest.prev = ones;
+            this.smallest = ones;
+         }
+         hook (c, ones);
+         this.counters.put (key, c);
+      }
+
+      // hands the smallest counter to a new key, which inherits its count as error, and counts it once.
+      void replaceSmallest (K key) {
+         Counter<K> c = this.smallest.first;
+         this.counters.remove (c.key);
+         c.key = key;
+         c.error = c.count;
+         this.counters.put (key, c);
+         increment (c);
+      }
+
+      // moves a counter into the bucket one count up, creating it if needed.
+      void increment (Counter<K> c) {
+         Bucket<K> from = c.bucket;
+         ++c.count;
+         Bucket<K> to = from.next;
+         if (to == null || to.count != c.count) {
+            to = new Bucket<K> (c.count);
+            to.prev = from;
+            to.next = from.next;
+            if (from.next != null)
+               from.next.prev = to;
+            from.next = to;
+         }
+         unhook (c);
+         hook (c, to);
+      }
+
+      private void hook (Counter<K> c, Bucket<K> b) {
+         c.bucket = b;
+         c.prev = null;
+         c.next = b.first;
+         if (b.first != null)
+            b.first.prev = c;
+         b.first = c;
+      }
+
+      // takes a counter out of its bucket, unlinking the bucket once it is empty.
+      private void unhook (Counter<K> c) {
+         Bucket<K> b = c.bucket;
+         if (c.prev != null)
+            c.prev.next = c.next;
+         else
+            b.first = c.next;
+         if (c.next != null)
+            c.next.prev = c.prev;
+         if (b.first != null)
+            return;
+         if (b.prev != null)
+            b.prev.next = b.next;
+         else
+            this.smallest = b.next;
+         if (b.next != null)
+            b.next.prev = b.prev;
+      }
+   }//end Epoch
+
+   private final int capacity;
+   private final long epochMillis;
+   private final Epoch<K>[] epochs;
+
+   // the newest epoch offered to; anything a full window older is ignored.
+   private long newestID = 0;
+
+   /**
+    * @param capacity the counters kept per epoch
+    * @param windowMillis the length of the sliding window
+    * @param epochs the number of epochs the window is split into
+    */
+   @SuppressWarnings ({ "unchecked", "rawtypes" })
+   public HeavyHitters (int capacity, long windowMillis, int epochs) {
+      if (capacity <= 0 || epochs <= 0 || windowMillis < epochs)
+         throw new IllegalArgumentException ("capacity and epochs must be positive and the window at least one ms per epoch");
+      this.capacity = capacity;
+      this.epochMillis = windowMillis / epochs;
+      this.epochs = new Epoch[epochs];
+      for (int i = 0; i < epochs; ++i)
+         this.epochs[i] = new Epoch<K> ();
+   }
+
+   /**
+    * @return the length of the window in milliseconds
+    */
+   public long getWindowMillis () {
+      return this.epochMillis * this.epochs.length;
+   }
+
+   /**
+    * Counts one occurrence of a key.  Occurrences a full window older than
+    * the newest one offered are ignored.
+    *
+    * @param key the key seen
+    * @param timeMillis when it was seen
+    */
+   public synchronized void offer (K key, long timeMillis) {
+      long id = timeMillis / this.epochMillis;
+      if (id <= this.newestID - this.epochs.length)
+         return;
+      this.newestID = Math.max (this.newestID, id);
+      Epoch<K> epoch = this.epochs[(int) (id % this.epochs.length)];
+      if (epoch.id > id)
+         return;
+      if (epoch.id < id) {
+         epoch.id = id;
+         epoch.clear ();
+      }
+
+      Counter<K> counter = epoch.counters.get (key);
+      if (counter != null)
+         epoch.increment (counter);
+      else if (epoch.counters.size () < this.capacity)
+         epoch.add (key);
+      else
+         epoch.replaceSmallest (key);
+   }//end offer
+
+   /**
+    * Returns the keys with the highest estimated counts in the window
+    * ending now.  The window starts on an epoch boundary, so it covers
+    * between (epochs - 1) and epochs epochs.
+    *
+    * @param k the number of keys wanted
+    * @param nowMillis the end of the window
+    * @return at most k estimates, highest count first
+    */
+   public synchronized List<Estimate<K>> top (int k, long nowMillis) {
+      long nowID = nowMillis / this.epochMillis;
+      List<Epoch<K>> live = new ArrayList<Epoch<K>> ();
+      Set<K> keys = new HashSet<K> ();
+      for (Epoch<K> epoch : this.epochs) {
+         if (epoch.id > nowID - this.epochs.length && epoch.id <= nowID) {
+            live.add (epoch);
+            keys.addAll (epoch.counters.keySet ());
+         }
+      }
+
+      // a key missing from a full epoch may have been evicted there with up to its minimum count.
+      long[] missingBound = new long[live.size ()];
+      for (int i = 0; i < live.size (); ++i)
+         missingBound[i] = live.get (i).counters.size () < this.capacity ? 0 : live.get (i).minCount ();
+
+      List<Estimate<K>> estimates = new ArrayList<Estimate<K>> (keys.size ());
+      for (K key : keys) {
+         long count = 0;
+         long error = 0;
+         for (int i = 0; i < live.size (); ++i) {
+            Counter<K> c = live.get (i).counters.get (key);
+            if (c != null) {
+               count += c.count;
+               error += c.error;
+            } else {
+               count += missingBound[i];
+               error += missingBound[i];
+            }
+         }
+         estimates.add (new Estimate<K> (key, count, error));
+      }
+      Collections.sort (estimates, new Comparator<Estimate<K>> () {
+         public int compare (Estimate<K> a, Estimate<K> b) {
+            int byCount = Long.compare (b.count, a.count);
+            return byCount != 0 ? byCount : Long.compare (a.error, b.error);
+         }
+      });
+      return estimates.size () > k ? new ArrayList<Estimate<K>> (estimates.subList (0, k)) : estimates;
+   }//end top
+
+}//end HeavyHitters
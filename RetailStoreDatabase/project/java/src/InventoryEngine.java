@@ -0,0 +1,493 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind owner of product stock counts, for workloads where many
+ * orders hit the same few products.
+ *
+ * The count of every product touched is kept in memory and changed with a
+ * compare-and-set, so an order reserves its units without waiting on the
+ * Product row lock.  Each change is appended to an InventoryJournal, and
+ * placeOrder() returns once the journal is on disk.  A flusher thread
+ * writes the journaled changes to the database every flush interval in
+ * one transaction: the net units delta of each product, the Orders rows
+ * (numbered from blocks taken from the Orders sequence), and the journal
+ * sequence number reached, in InventoryCheckpoint.  After a crash the
+ * journal is replayed from that checkpoint, so no change is lost or
+ * applied twice.
+ *
+ * Every journaled change is a delta, so the database always equals the
+ * in-memory count minus the changes not yet flushed, whatever order the
+ * flusher sees them in.  The engine must be the only writer of stock
+ * counts and orders while it runs; Retail routes its own writes through
+ * it when it is enabled.  The counts are loaded once and never re-read,
+ * so a writer outside this process (BulkOrderImport, BulkLoader, a
+ * LowStockScanner run from the command line, psql) changes Product behind
+ * its back and can make it sell stock that is gone: run those only while
+ * no write-behind Retail is up, or restart it afterwards.  Order times
+ * come from the application clock.
+ *
+ * When the journal cannot be written a change fails and is undone in
+ * memory, and the journal takes no further changes (see InventoryJournal)
+ * until the process is restarted; the changes before it are still
+ * flushed.
+ *
+ * When a flush fails and the database still answers, the records are
+ * written one at a time, the way AuditWriter isolates a bad row.  A record
+ * the database refuses on its own (an order for a customer or product
+ * deleted meanwhile) is appended to the reject file, its change is undone
+ * in memory and the checkpoint moves past it, so one bad record cannot
+ * hold back every later one.  Other failures are retried whole on the
+ * next round.
+ *
+ */
+
+public class InventoryEngine {
+
+   /**
+    * Units a transaction outside the engine adds to Product rows, e.g.
+    * LowStockScanner's batch UPDATE.  add() takes each product's count as
+    * it is before the transaction commits and committed() adds the units to
+    * it after; a count first loaded in between reads the new units from the
+    * table itself, so they are never counted twice.  Nothing is journaled.
+    */
+   public class DirectWrite {
+      private final List<AtomicInteger> counts = new ArrayList<AtomicInteger> ();
+      private final List<Integer> quantities = new ArrayList<Integer> ();
+
+      /**
+       * @param storeID the store of the product
+       * @param productName the product
+       * @param quantity the units the transaction adds
+       */
+      public void add (int storeID, String productName, int quantity) {
+         AtomicInteger count = units.get (key (storeID, productName));
+         if (count == null)
+            return;
+         this.counts.add (count);
+         this.quantities.add (quantity);
+      }
+
+      /**
+       * Applies the units once the transaction has committed.
+       */
+      public void committed () {
+         for (int i = 0; i < this.counts.size (); ++i)
+            this.counts.get (i).addAndGet (this.quantities.get (i));
+      }
+   }//end DirectWrite
+
+   private static final String UNITS_QUERY =
+      "SELECT P.numberOfUnits FROM Product P WHERE P.storeID = ? AND P.productName = CAST(? AS bpchar)";
+   private static final String CHECKPOINT_QUERY =
+      "SELECT C.lastSequence FROM InventoryCheckpoint C WHERE C.id = 1";
+   private static final String SET_CHECKPOINT_QUERY =
+      "UPDATE InventoryCheckpoint SET lastSequence = ? WHERE id = 1";
+   private static final String ORDER_NUMBERS_QUERY =
+      "SELECT nextval('orders_ordernumber_seq') FROM generate_series(1, ?)";
+
+   private final Retail esql;
+   private final InventoryJournal journal;
+   private final int orderNumberBlock;
+   private final ConcurrentMap<String, AtomicInteger> units = new ConcurrentHashMap<String, AtomicInteger> ();
+   private final ArrayDeque<Integer> orderNumbers = new ArrayDeque<Integer> ();
+   private final ScheduledExecutorService flusher;
+   private final File rejectFile;
+
+   // records drained from the journal whose flush failed, retried first next time.
+   private List<InventoryJournal.Record> unflushed = new ArrayList<InventoryJournal.Record> ();
+   private long unflushedSegment = 0;
+
+   private final AtomicLong reserved = new AtomicLong ();
+   private final AtomicLong rejected = new AtomicLong ();
+   // records the database refused, written to the reject file.
+   private long refused = 0;
+   private long flushes = 0;
+   private long flushedRecords = 0;
+   private long flushFailures = 0;
+
+   /**
+    * Replays the journal left by a previous run, then starts the flusher.
+    *
+    * @param esql the database
+    * @param journalDir the journal directory
+    * @param fsync whether orders wait for the journal to reach the disk
+    * @param flushMillis how often journaled changes are written to the database
+    * @param orderNumberBlock the order numbers taken from the sequence at a time
+    * @param rejectFile where records the database refuses are appended
+    * @throws java.sql.SQLException when the checkpoint cannot be read or the replay cannot be written
+    * @throws java.io.IOException when the journal cannot be opened or read
+    */
+   public InventoryEngine (Retail esql, File journalDir, boolean fsync, long flushMillis, int orderNumberBlock,
+                           File rejectFile)
+      throws SQLException, IOException {
+      this.esql = esql;
+      this.orderNumberBlock = orderNumberBlock;
+      this.rejectFile = rejectFile;
+      Long checkpoint = esql.executeQueryForObject (CHECKPOINT_QUERY, Retail.LONG_COLUMN);
+      if (checkpoint == null)
+         throw new SQLException ("InventoryCheckpoint has no row; run sql/src/create_inventory.sql");
+      this.journal = new InventoryJournal (journalDir, fsync, checkpoint);
+
+      List<InventoryJournal.Record> replay = new ArrayList<InventoryJournal.Record> ();
+      for (InventoryJournal.Record r : this.journal.recover ())
+         if (r.sequence > checkpoint)
+            replay.add (r);
+      if (!replay.isEmpty ()) {
+         apply (replay);
+         System.out.println ("Replayed " + replay.size () + " inventory journal record(s).");
+      }
+      this.journal.deleteThrough (this.journal.getSegment () - 1);
+
+      this.flusher = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "inventory-flusher");
+            t.setDaemon (true);
+            return t;
+         }
+      });
+      this.flusher.scheduleWithFixedDelay (new Runnable () {
+         public void run () {
+            try {
+               flush ();
+            }catch (Exception e) {
+               // kept in unflushed and retried on the next round.
+               System.err.println ("Unable to flush the inventory journal: " + e.getMessage ());
+            }
+         }
+      }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+   }//end InventoryEngine
+
+   /**
+    * Reserves units and records the order.  The Orders row and the stock
+    * change reach the database with the next flush.
+    *
+    * @param customerID the ordering user
+    * @param storeID the store the product is ordered from
+    * @param productName the product ordered
+    * @param quantity the number of units ordered, at least 1
+    * @return the new orderNumber, or -1 if the store does not carry the product or has too few units
+    * @throws java.sql.SQLException when the stock or an order number cannot be read, or the journal written
+    */
+   public int placeOrder (int customerID, int storeID, String productName, int quantity) throws SQLException {
+      AtomicInteger count = counter (storeID, productName);
+      if (count == null || !take (count, quantity)) {
+         this.rejected.incrementAndGet ();
+         return -1;
+      }
+      int orderNumber;
+      try {
+         orderNumber = nextOrderNumber ();
+      }catch (SQLException | RuntimeException e) {
+         count.addAndGet (quantity);
+         throw e;
+      }
+      try {
+         journal (new InventoryJournal.Record (storeID, ProductRow.stripTrailing (productName), -quantity, orderNumber,
+                                               customerID, System.currentTimeMillis ()));
+      }catch (SQLException e) {
+         count.addAndGet (quantity);
+         throw e;
+      }
+      this.reserved.incrementAndGet ();
+      return orderNumber;
+   }//end placeOrder
+
+   /**
+    * Adds units to a product's stock.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param quantity the units added
+    * @return false if the store does not carry the product
+    * @throws java.sql.SQLException when the stock cannot be read or the journal written
+    */
+   public boolean addUnits (int storeID, String productName, int quantity) throws SQLException {
+      AtomicInteger count = counter (storeID, productName);
+      if (count == null)
+         return false;
+      count.addAndGet (quantity);
+      try {
+         journal (new InventoryJournal.Record (storeID, ProductRow.stripTrailing (productName), quantity, 0, 0, 0));
+      }catch (SQLException e) {
+         count.addAndGet (-quantity);
+         throw e;
+      }
+      return true;
+   }//end addUnits
+
+   /**
+    * Sets a product's stock, journaled as the difference from the count it
+    * replaces.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    * @param quantity the new number of units
+    * @return false if the store does not carry the product
+    * @throws java.sql.SQLException when the stock cannot be read or the journal written
+    */
+   public boolean setUnits (int storeID, String productName, int quantity) throws SQLException {
+      AtomicInteger count = counter (storeID, productName);
+      if (count == null)
+         return false;
+      int delta = quantity - count.getAndSet (quantity);
+      if (delta == 0)
+         return true;
+      try {
+         journal (new InventoryJournal.Record (storeID, ProductRow.stripTrailing (productName), delta, 0, 0, 0));
+      }catch (SQLException e) {
+         count.addAndGet (-delta);
+         throw e;
+      }
+      return true;
+   }//end setUnits
+
+   /**
+    * @return a record of units about to be written to Product outside the engine
+    */
+   public DirectWrite directWrite () {
+      return new DirectWrite ();
+   }
+
+   /**
+    * @param storeID the store of the product
+    * @param productName the product
+    * @return the units in stock, or null if the product was not loaded yet
+    */
+   public Integer getUnits (int storeID, String productName) {
+      AtomicInteger count = this.units.get (key (storeID, productName));
+      return count == null ? null : count.get ();
+   }
+
+   /**
+    * Forgets a product's count, after it was deleted.  Flush first so no
+    * change to it is left behind.
+    *
+    * @param storeID the store of the product
+    * @param productName the product
+    */
+   public void forget (int storeID, String productName) {
+      this.units.remove (key (storeID, productName));
+   }
+
+   /**
+    * Writes every change journaled so far to the database.
+    *
+    * @throws java.sql.SQLException when the changes cannot be written; they are retried next time
+    * @throws java.io.IOException when the journal cannot be rotated
+    */
+   public synchronized void flush () throws SQLException, IOException {
+      InventoryJournal.Batch batch = this.journal.drain ();
+      List<InventoryJournal.Record> records = this.unflushed;
+      records.addAll (batch.records);
+      this.unflushedSegment = Math.max (this.unflushedSegment, batch.segment);
+      if (records.isEmpty ())
+         return;
+      int size = records.size ();
+      try {
+         apply (records);
+      }catch (SQLException | RuntimeException e) {
+         // apply() drops the records it got through before failing.
+         this.flushedRecords += size - records.size ();
+         ++this.flushFailures;
+         throw e;
+      }
+      ++this.flushes;
+      this.flushedRecords += records.size ();
+      this.unflushed = new ArrayList<InventoryJournal.Record> ();
+      this.journal.deleteThrough (this.unflushedSegment);
+   }//end flush
+
+   /**
+    * Stops the flusher and writes what is left.
+    */
+   public void close () {
+      this.flusher.shutdown ();
+      try {
+         this.flusher.awaitTermination (10, TimeUnit.SECONDS);
+         flush ();
+         this.journal.close ();
+      }catch (Exception e) {
+         // the journal keeps the changes for the next start.
+         System.err.println ("Unable to flush the inventory journal: " + e.getMessage ());
+      }
+   }//end close
+
+   public synchronized String toString () {
+      return String.format ("inventory: products=%d reserved=%d rejected=%d flushes=%d flushedRecords=%d "
+                            + "flushFailures=%d refused=%d journalSyncs=%d",
+                            this.units.size (), this.reserved.get (), this.rejected.get (), this.flushes,
+                            this.flushedRecords, this.flushFailures, this.refused, this.journal.getSyncs ());
+   }
+
+   // the count of a product, loaded from Product on first use; null if the store does not carry it.
+   private AtomicInteger counter (int storeID, String productName) throws SQLException {
+      String key = key (storeID, productName);
+      AtomicInteger count = this.units.get (key);
+      if (count != null)
+         return count;
+      Integer loaded = this.esql.executeQueryForObject (UNITS_QUERY, Retail.INT_COLUMN, storeID, productName);
+      if (loaded == null)
+         return null;
+      AtomicInteger raced = this.units.putIfAbsent (key, new AtomicInteger (loaded));
+      return raced != null ? raced : this.units.get (key);
+   }//end counter
+
+   private static boolean take (AtomicInteger count, int quantity) {
+      while (true) {
+         int left = count.get ();
+         if (left < quantity)
+            return false;
+         if (count.compareAndSet (left, left - quantity))
+            return true;
+      }
+   }
+
+   // appends a change and waits for it to be on disk; a change that fails is taken back out of the journal.
+   private void journal (InventoryJournal.Record r) throws SQLException {
+      try {
+         this.journal.awaitDurable (this.journal.append (r));
+      }catch (IOException e) {
+         this.journal.discard (r);
+         throw new SQLException ("Unable to write the inventory journal: " + e.getMessage (), e);
+      }
+   }
+
+   private int nextOrderNumber () throws SQLException {
+      synchronized (this.orderNumbers) {
+         if (this.orderNumbers.isEmpty ())
+            this.orderNumbers.addAll (
+               this.esql.executeQueryForList (ORDER_NUMBERS_QUERY, Retail.INT_COLUMN, this.orderNumberBlock));
+         return this.orderNumbers.poll ();
+      }
+   }
+
+   // applies records, falling back to one at a time when the database refuses the batch.  A record
+   // refused on its own is rejected; when one fails for another reason, the records before it are
+   // removed from the list and the error thrown.
+   private void apply (List<InventoryJournal.Record> records) throws SQLException {
+      long lastSequence = 0;
+      for (InventoryJournal.Record r : records)
+         lastSequence = Math.max (lastSequence, r.sequence);
+      try {
+         write (records, lastSequence);
+         return;
+      }catch (SQLException e) {
+         if (!AuditWriter.isRowError (this.esql, e))
+            throw e;
+      }
+      for (int i = 0; i < records.size (); ++i) {
+         InventoryJournal.Record r = records.get (i);
+         try {
+            write (Collections.singletonList (r), r.sequence);
+         }catch (SQLException e) {
+            if (!AuditWriter.isRowError (this.esql, e)) {
+               records.subList (0, i).clear ();
+               throw e;
+            }
+            reject (r, e);
+            try {
+               // the checkpoint moves past it, so a restart does not replay it.
+               write (Collections.<InventoryJournal.Record>emptyList (), r.sequence);
+            }catch (SQLException ce) {
+               records.subList (0, i + 1).clear ();
+               throw ce;
+            }
+         }
+      }
+   }//end apply
+
+   // parks a record the database refused in the reject file and gives its units back in memory.
+   private void reject (InventoryJournal.Record r, SQLException cause) {
+      ++this.refused;
+      AtomicInteger count = this.units.get (key (r.storeID, r.productName));
+      if (count != null)
+         count.addAndGet (-r.delta);
+      String reason = String.valueOf (cause.getMessage ()).replaceAll ("\\s+", " ").trim ();
+      try {
+         Writer out = new OutputStreamWriter (new FileOutputStream (this.rejectFile, true), "UTF-8");
+         try {
+            out.write (r.sequence + "\t" + r.storeID + "\t" + r.productName + "\t" + r.delta + "\t" + r.orderNumber
+                       + "\t" + r.customerID + "\t" + new Timestamp (r.orderTime) + "\t" + reason + "\n");
+         }finally {
+            out.close ();
+         }
+      }catch (IOException e) {
+         System.err.println ("Unable to write the refused inventory record " + r.sequence + " to " + this.rejectFile
+                             + ": " + e.getMessage ());
+      }
+   }//end reject
+
+   // applies records to the database in one transaction, with the checkpoint.
+   private void write (List<InventoryJournal.Record> records, long lastSequence) throws SQLException {
+      Map<String, InventoryJournal.Record> products = new LinkedHashMap<String, InventoryJournal.Record> ();
+      Map<String, Integer> deltas = new LinkedHashMap<String, Integer> ();
+      List<InventoryJournal.Record> orders = new ArrayList<InventoryJournal.Record> ();
+      for (InventoryJournal.Record r : records) {
+         String key = key (r.storeID, r.productName);
+         products.put (key, r);
+         Integer delta = deltas.get (key);
+         deltas.put (key, (delta == null ? 0 : delta) + r.delta);
+         if (r.isOrder ())
+            orders.add (r);
+      }
+
+      PooledConnection conn = this.esql.pinConnection ();
+      // the checkpoint has to be committed before the journal segments go, so this cannot join a caller's transaction.
+      boolean nested;
+      try {
+         nested = !conn.getConnection ().getAutoCommit ();
+      }catch (SQLException e) {
+         this.esql.unpinConnection ();
+         throw e;
+      }
+      if (nested) {
+         this.esql.unpinConnection ();
+         throw new SQLException ("The inventory cannot be flushed inside another transaction");
+      }
+      try {
+         conn.getConnection ().setAutoCommit (false);
+         for (Map.Entry<String, Integer> e : deltas.entrySet ()) {
+            InventoryJournal.Record r = products.get (e.getKey ());
+            if (e.getValue () != 0)
+               this.esql.executeUpdate (Retail.ADD_PRODUCT_UNITS_QUERY, e.getValue (), r.storeID, r.productName);
+         }
+         List<Object[]> rows = new ArrayList<Object[]> (orders.size ());
+         for (InventoryJournal.Record r : orders)
+            rows.add (new Object[] { r.orderNumber, r.customerID, r.storeID, r.productName, -r.delta,
+                                     new Timestamp (r.orderTime) });
+         this.esql.insertRows ("Orders", "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime", rows);
+         this.esql.executeUpdate (SET_CHECKPOINT_QUERY, lastSequence);
+         conn.getConnection ().commit ();
+      }catch (SQLException | RuntimeException e) {
+         conn.getConnection ().rollback ();
+         throw e;
+      }finally {
+         this.esql.unpinConnection ();
+      }
+   }//end write
+
+   private static String key (int storeID, String productName) {
+      return storeID + ":" + ProductRow.stripTrailing (productName);
+   }
+
+}//end InventoryEngine
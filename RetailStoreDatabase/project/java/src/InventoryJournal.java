@@ -0,0 +1,426 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the stock changes InventoryEngine has made in
+ * memory but not yet written to the database.
+ *
+ * Records go to numbered segment files in one directory.  drain() hands
+ * the records appended so far to the flusher and starts a new segment;
+ * once the flusher has committed them, deleteThrough() removes the old
+ * segments.  awaitDurable() forces the current segment to disk; callers
+ * waiting at the same time share one force, so the cost of fsync is spread
+ * over every order placed while it runs.  Each record carries a CRC, and
+ * a torn record at the end of a segment (a crash during the write) ends
+ * recovery of that segment.
+ *
+ * A write or force that fails leaves the segment in an unknown state, so
+ * the journal refuses every record after it.  The records not yet durable
+ * at that point have all failed for their callers, so they are taken back
+ * out: the segment is truncated to the end of the last durable record and
+ * they are dropped from the next drain(), so they are neither flushed nor
+ * replayed after a crash.  What was durable before is still drained and
+ * written.  Restarting opens a new segment.
+ *
+ */
+
+public class InventoryJournal {
+
+   /**
+    * One stock change: a units delta on a product, with the order that
+    * caused it if there was one.
+    */
+   public static class Record {
+      long sequence;
+      final int storeID;
+      final String productName;
+      // added to numberOfUnits: negative for an order.
+      final int delta;
+      // the order row to insert, when orderNumber > 0.
+      final int orderNumber;
+      final int customerID;
+      final long orderTime;
+
+      Record (int storeID, String productName, int delta, int orderNumber, int customerID, long orderTime) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.delta = delta;
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.orderTime = orderTime;
+      }
+
+      boolean isOrder () {
+         return this.orderNumber > 0;
+      }
+   }//end Record
+
+   /**
+    * Records handed to the flusher, with the last segment holding them.
+    */
+   public static class Batch {
+      final List<Record> records;
+      final long segment;
+
+      Batch (List<Record> records, long segment) {
+         this.records = records;
+         this.segment = segment;
+      }
+   }//end Batch
+
+   private static final String PREFIX = "segment-";
+   private static final String SUFFIX = ".log";
+
+   private final File dir;
+   private final boolean fsync;
+   // held while forcing; taken before this object's own lock.
+   private final Object syncLock = new Object ();
+
+   private long segment;
+   private FileOutputStream file;
+   private DataOutputStream out;
+   // bytes appended to the current segment, including any still buffered.
+   private long length;
+   private long lastSequence;
+   private List<Record> pending = new ArrayList<Record> ();
+   // the first write or force that failed; once it is set no record is appended.
+   private IOException failure = null;
+
+   // guarded by syncLock; durableLength is the segment length durableSequence ends at.
+   private long durableSequence;
+   private long durableLength;
+   private long syncs = 0;
+
+   /**
+    * Opens a journal directory, creating it if needed, and starts a new
+    * segment after any left by a previous run.
+    *
+    * @param dir the journal directory
+    * @param fsync whether awaitDurable() forces the data to disk or only hands it to the OS
+    * @param lastSequence the highest sequence number already used
+    * @throws java.io.IOException when the directory or segment cannot be created
+    */
+   public InventoryJournal (File dir, boolean fsync, long lastSequence) throws IOException {
+      if (!dir.isDirectory () && !dir.mkdirs ())
+         throw new IOException ("cannot create the journal directory " + dir);
+      this.dir = dir;
+      this.fsync = fsync;
+      this.lastSequence = lastSequence;
+      this.durableSequence = lastSequence;
+      long[] existing = segments ();
+      this.segment = existing.length == 0 ? 1 : existing[existing.length - 1] + 1;
+      openSegment ();
+   }
+
+   /**
+    * Reads the records left by a previous run, oldest first.
+    *
+    * @return the readable records of every segment before the current one
+    * @throws java.io.IOException when a segment cannot be read
+    */
+   public List<Record> recover () throws IOException {
+      List<Record> records = new ArrayList<Record> ();
+      for (long n : segments ()) {
+         if (n >= this.segment)
+            break;
+         DataInputStream in = new DataInputStream (new FileInputStream (segmentFile (n)));
+         try {
+            Record r;
+            while ((r = readRecord (in)) != null)
+               records.add (r);
+         }finally {
+            in.close ();
+         }
+      }
+      synchronized (this) {
+         for (Record r : records)
+            this.lastSequence = Math.max (this.lastSequence, r.sequence);
+      }
+      return records;
+   }//end recover
+
+   /**
+    * @return the number of the current segment; earlier ones belong to previous runs or drained batches
+    */
+   public synchronized long getSegment () {
+      return this.segment;
+   }
+
+   /**
+    * Appends a record and queues it for the next drain().  The record is
+    * not durable until awaitDurable() returns for its sequence number.
+    *
+    * @param r the record; its sequence number is assigned here
+    * @return the sequence number
+    * @throws java.io.IOException when the record cannot be written
+    */
+   public long append (Record r) throws IOException {
+      IOException failed;
+      synchronized (this) {
+         checkFailure ();
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream (64);
+         DataOutputStream body = new DataOutputStream (bytes);
+         body.writeLong (this.lastSequence + 1);
+         body.writeInt (r.storeID);
+         body.writeUTF (r.productName);
+         body.writeInt (r.delta);
+         body.writeInt (r.orderNumber);
+         body.writeInt (r.customerID);
+         body.writeLong (r.orderTime);
+         CRC32 crc = new CRC32 ();
+         crc.update (bytes.toByteArray ());
+         try {
+            this.out.writeInt (bytes.size ());
+            bytes.writeTo (this.out);
+            this.out.writeLong (crc.getValue ());
+            r.sequence = ++this.lastSequence;
+            this.length += 4 + bytes.size () + 8;
+            this.pending.add (r);
+            return r.sequence;
+         }catch (IOException e) {
+            this.failure = e;
+            failed = e;
+         }
+      }
+      // part of the record may be in the buffer or the file.
+      rollBack ();
+      throw failed;
+   }//end append
+
+   /**
+    * Waits until a record is on disk.  Concurrent callers share one force.
+    *
+    * @param sequence the sequence number append() returned
+    * @throws java.io.IOException when the segment cannot be forced
+    */
+   public void awaitDurable (long sequence) throws IOException {
+      synchronized (this.syncLock) {
+         if (this.durableSequence >= sequence)
+            return;
+         FileChannel channel;
+         long upTo;
+         long upToLength;
+         synchronized (this) {
+            checkFailure ();
+            try {
+               this.out.flush ();
+            }catch (IOException e) {
+               this.failure = e;
+               rollBack ();
+               throw e;
+            }
+            channel = this.file.getChannel ();
+            upTo = this.lastSequence;
+            upToLength = this.length;
+         }
+         try {
+            if (this.fsync)
+               channel.force (false);
+         }catch (IOException e) {
+            synchronized (this) {
+               this.failure = e;
+               rollBack ();
+            }
+            throw e;
+         }
+         ++this.syncs;
+         this.durableSequence = upTo;
+         this.durableLength = upToLength;
+      }
+   }//end awaitDurable
+
+   /**
+    * Takes back a record whose append() or awaitDurable() failed, so the
+    * next drain() does not hand it to the flusher.  The failure has already
+    * cut it from the segment; this only makes sure it is not pending.
+    *
+    * @param r the record
+    */
+   public synchronized void discard (Record r) {
+      this.pending.remove (r);
+   }
+
+   /**
+    * Takes every record appended since the last drain and moves on to a
+    * new segment, forcing the old one first.
+    *
+    * @return the records, oldest first, and the segment they end in (0 when there are none)
+    * @throws java.io.IOException when the segment cannot be forced or the next one created
+    */
+   public Batch drain () throws IOException {
+      synchronized (this.syncLock) {
+         synchronized (this) {
+            List<Record> records = this.pending;
+            if (records.isEmpty ())
+               return new Batch (records, 0);
+            if (this.failure == null) {
+               try {
+                  this.out.flush ();
+                  if (this.fsync)
+                     this.file.getChannel ().force (false);
+               }catch (IOException e) {
+                  // the durable records stay pending; the next drain hands them over from memory.
+                  this.failure = e;
+                  rollBack ();
+                  throw e;
+               }
+               this.durableSequence = this.lastSequence;
+            }
+            this.pending = new ArrayList<Record> ();
+            long drained = this.segment++;
+            try {
+               this.out.close ();
+               openSegment ();
+            }catch (IOException e) {
+               // the drained records are handed over all the same; nothing more is appended.
+               this.failure = e;
+            }
+            return new Batch (records, drained);
+         }
+      }
+   }//end drain
+
+   /**
+    * Deletes the segments up to and including one, once their records are
+    * in the database.
+    *
+    * @param last the last segment to delete
+    */
+   public void deleteThrough (long last) {
+      for (long n : segments ())
+         if (n <= last && !segmentFile (n).delete ())
+            System.err.println ("Unable to delete the journal segment " + segmentFile (n));
+   }
+
+   /**
+    * @return the number of forces issued by awaitDurable()
+    */
+   public long getSyncs () {
+      synchronized (this.syncLock) {
+         return this.syncs;
+      }
+   }
+
+   /**
+    * Closes the current segment.
+    *
+    * @throws java.io.IOException when it cannot be flushed
+    */
+   public void close () throws IOException {
+      synchronized (this.syncLock) {
+         synchronized (this) {
+            this.out.close ();
+         }
+      }
+   }
+
+   private void checkFailure () throws IOException {
+      if (this.failure != null)
+         throw new IOException ("the journal failed earlier and takes no more records: " + this.failure.getMessage (),
+                                this.failure);
+   }
+
+   // after a failure: drops the records that are not durable from pending and cuts them off
+   // the segment, buffered bytes included, so a crash does not replay them.
+   private void rollBack () {
+      synchronized (this.syncLock) {
+         synchronized (this) {
+            for (Iterator<Record> it = this.pending.iterator (); it.hasNext (); )
+               if (it.next ().sequence > this.durableSequence)
+                  it.remove ();
+            // the old stream's buffer is abandoned, never flushed.
+            this.out = new DataOutputStream (new BufferedOutputStream (this.file));
+            // length does not count a record whose write failed, so go by the file itself.
+            try {
+               FileChannel channel = this.file.getChannel ();
+               this.length = this.durableLength;
+               if (channel.size () <= this.durableLength)
+                  return;
+               channel.truncate (this.durableLength);
+               if (this.fsync)
+                  channel.force (false);
+            }catch (IOException e) {
+               System.err.println ("Unable to cut the failed records off the journal segment " + segmentFile (this.segment)
+                                   + "; a restart would replay changes that failed: " + e.getMessage ());
+            }
+         }
+      }
+   }//end rollBack
+
+   // opens a segment for appending; InventoryJournalTest overrides it to make writes fail.
+   FileOutputStream openFile (File f) throws IOException {
+      return new FileOutputStream (f, true);
+   }
+
+   private void openSegment () throws IOException {
+      this.file = openFile (segmentFile (this.segment));
+      this.out = new DataOutputStream (new BufferedOutputStream (this.file));
+      this.length = 0;
+      this.durableLength = 0;
+   }
+
+   private File segmentFile (long n) {
+      return new File (this.dir, String.format ("%s%012d%s", PREFIX, n, SUFFIX));
+   }
+
+   // the segment numbers in the directory, ascending.
+   private long[] segments () {
+      String[] names = this.dir.list ();
+      List<Long> numbers = new ArrayList<Long> ();
+      if (names != null) {
+         for (String name : names) {
+            if (name.startsWith (PREFIX) && name.endsWith (SUFFIX)) {
+               try {
+                  numbers.add (Long.parseLong (name.substring (PREFIX.length (), name.length () - SUFFIX.length ())));
+               }catch (NumberFormatException e) {
+                  // not a segment.
+               }
+            }
+         }
+      }
+      long[] result = new long[numbers.size ()];
+      for (int i = 0; i < result.length; ++i)
+         result[i] = numbers.get (i);
+      Arrays.sort (result);
+      return result;
+   }//end segments
+
+   // the next record, or null at the end of the segment or at a torn record.
+   private static Record readRecord (DataInputStream in) throws IOException {
+      try {
+         int length = in.readInt ();
+         if (length <= 0 || length > 1 << 16)
+            return null;
+         byte[] bytes = new byte[length];
+         in.readFully (bytes);
+         long expected = in.readLong ();
+         CRC32 crc = new CRC32 ();
+         crc.update (bytes);
+         if (crc.getValue () != expected)
+            return null;
+         DataInputStream body = new DataInputStream (new ByteArrayInputStream (bytes));
+         long sequence = body.readLong ();
+         Record r = new Record (body.readInt (), body.readUTF (), body.readInt (), body.readInt (), body.readInt (),
+                                body.readLong ());
+         r.sequence = sequence;
+         return r;
+      }catch (EOFException e) {
+         return null;
+      }
+   }//end readRecord
+
+}//end InventoryJournal
@@ -0,0 +1,142 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, safe to record into
+ * from many threads at once.
+ *
+ * Values are recorded in microseconds.  Below 16 every value has its own
+ * bucket; above that each power of two is split into 16 equal buckets, so
+ * a reported percentile is never more than about 6% above the true value.
+ * Memory is fixed (a few KB) however many values are recorded.
+ *
+ */
+
+public class LatencyHistogram {
+
+   // each power of two above SUB_BUCKETS is split into SUB_BUCKETS buckets.
+   private static final int SUB_BUCKET_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray buckets = new AtomicLongArray (BUCKETS);
+   private final AtomicLong count = new AtomicLong ();
+   private final AtomicLong sum = new AtomicLong ();
+   private final AtomicLong max = new AtomicLong ();
+
+   /**
+    * Records one latency.
+    *
+    * @param micros the latency in microseconds; negative values count as 0
+    */
+   public void record (long micros) {
+      long value = Math.max (micros, 0);
+      this.buckets.incrementAndGet (index (value));
+      this.count.incrementAndGet ();
+      this.sum.addAndGet (value);
+      long current;
+      while (value > (current = this.max.get ()))
+         if (this.max.compareAndSet (current, value))
+            break;
+   }//end record
+
+   /**
+    * Records the time elapsed since a System.nanoTime() reading.
+    *
+    * @param startNanos the System.nanoTime() value taken before the operation
+    */
+   public void recordSince (long startNanos) {
+      record ((System.nanoTime () - startNanos) / 1000);
+   }
+
+   /**
+    * @return the number of values recorded
+    */
+   public long getCount () {
+      return this.count.get ();
+   }
+
+   /**
+    * @return the largest value recorded, in microseconds
+    */
+   public long getMax () {
+      return this.max.get ();
+   }
+
+   /**
+    * @return the mean of the values recorded, in microseconds
+    */
+   public double getMean () {
+      long n = this.count.get ();
+      return n == 0 ? 0 : (double) this.sum.get () / n;
+   }
+
+   /**
+    * Returns the value at a percentile, as the upper edge of the bucket it
+    * falls into (capped at the maximum recorded).
+    *
+    * @param percentile the percentile, between 0 and 100
+    * @return the value in microseconds, or 0 if nothing was recorded
+    */
+   public long getPercentile (double percentile) {
+      long n = this.count.get ();
+      if (n == 0)
+         return 0;
+      long rank = Math.max (1, (long) Math.ceil (percentile / 100.0 * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this.buckets.get (i);
+         if (seen >= rank)
+            return Math.min (upperBound (i), this.max.get ());
+      }
+      return this.max.get ();
+   }//end getPercentile
+
+   /**
+    * Adds every value recorded in another histogram to this one.
+    *
+    * @param other the histogram to merge in
+    */
+   public void add (LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long n = other.buckets.get (i);
+         if (n != 0)
+            this.buckets.addAndGet (i, n);
+      }
+      this.count.addAndGet (other.count.get ());
+      this.sum.addAndGet (other.sum.get ());
+      long value = other.max.get ();
+      long current;
+      while (value > (current = this.max.get ()))
+         if (this.max.compareAndSet (current, value))
+            break;
+   }//end add
+
+   /**
+    * @return count, mean, p50, p95, p99 and max in milliseconds
+    */
+   public String toString () {
+      return String.format ("n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms",
+                            getCount (), getMean () / 1000.0, getPercentile (50) / 1000.0,
+                            getPercentile (95) / 1000.0, getPercentile (99) / 1000.0, getMax () / 1000.0);
+   }
+
+   private static int index (long value) {
+      if (value < SUB_BUCKETS)
+         return (int) value;
+      int magnitude = 63 - Long.numberOfLeadingZeros (value);
+      int shift = magnitude - SUB_BUCKET_BITS;
+      int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+      return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+   }
+
+   private static long upperBound (int index) {
+      if (index < SUB_BUCKETS)
+         return index;
+      int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      int sub = index % SUB_BUCKETS;
+      int shift = magnitude - SUB_BUCKET_BITS;
+      return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+   }
+
+}//end LatencyHistogram
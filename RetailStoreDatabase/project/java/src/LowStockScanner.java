@@ -0,0 +1,294 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that restocks products running low, so stores do not wait
+ * for a manager to notice an empty shelf.
+ *
+ * Every interval one query finds the Product rows below their store's
+ * threshold (StockThreshold, see sql/src/create_restock.sql, or the
+ * defaults), and for each one a ProductSupplyRequests row from the store's
+ * manager to its nearest warehouse brings it back up to the restock level.
+ * The requests and the stock increments of a batch are written in one
+ * transaction, the increments with a single UPDATE.
+ *
+ * The scan locks the rows it restocks with FOR UPDATE SKIP LOCKED: a row
+ * an order holds at that moment is skipped, not waited for, and picked up
+ * by the next scan, so the job never queues behind or in front of the
+ * hot products.  With the write-behind inventory engine the engine is
+ * flushed first, so the scan sees the orders it holds; the increments are
+ * still written in the batch's transaction and the engine's counts follow
+ * them once it commits.
+ *
+ */
+
+public class LowStockScanner {
+
+   static final String LOW_STOCK_QUERY =
+      "SELECT P.storeID, P.productName, S.managerID, COALESCE(T.restockTo, ?) - P.numberOfUnits "
+      + "FROM Product P JOIN Store S ON S.storeID = P.storeID LEFT JOIN StockThreshold T ON T.storeID = P.storeID "
+      + "WHERE P.numberOfUnits < COALESCE(T.minUnits, ?) "
+      + "ORDER BY P.storeID, P.productName LIMIT ? FOR UPDATE OF P SKIP LOCKED";
+
+   private static final String REQUEST_COLUMNS = "managerID, warehouseID, storeID, productName, unitsRequested";
+
+   /**
+    * One product to restock.
+    */
+   private static class Restock {
+      final int storeID;
+      final String productName;
+      final int managerID;
+      final int units;
+
+      Restock (int storeID, String productName, int managerID, int units) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.managerID = managerID;
+         this.units = units;
+      }
+   }//end Restock
+
+   private static final RowMapper<Restock> RESTOCK = new RowMapper<Restock> () {
+      public Restock mapRow (ResultSet rs) throws SQLException {
+         return new Restock (rs.getInt (1), rs.getString (2).trim (), rs.getInt (3), rs.getInt (4));
+      }
+   };
+
+   private final Retail esql;
+   private final int minUnits;
+   private final int restockTo;
+   private final int batchSize;
+   private ScheduledExecutorService scheduler = null;
+
+   private long scans = 0;
+   private long requests = 0;
+   private long failures = 0;
+
+   /**
+    * @param esql the database
+    * @param minUnits the threshold of stores without a StockThreshold row
+    * @param restockTo the stock level restocked to for stores without a StockThreshold row
+    * @param batchSize the most products restocked per transaction
+    */
+   public LowStockScanner (Retail esql, int minUnits, int restockTo, int batchSize) {
+      this.esql = esql;
+      this.minUnits = minUnits;
+      this.restockTo = restockTo;
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * Runs a scan every interval on a daemon thread.
+    *
+    * @param intervalMillis the time between the end of one scan and the start of the next
+    */
+   public synchronized void start (long intervalMillis) {
+      if (this.scheduler != null)
+         return;
+      this.scheduler = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "low-stock-scanner");
+            t.setDaemon (true);
+            return t;
+         }
+      });
+      this.scheduler.scheduleWithFixedDelay (new Runnable () {
+         public void run () {
+            try {
+               scan ();
+            }catch (Exception e) {
+               // the next scan finds the same products again.
+               System.err.println ("Low-stock scan failed: " + e.getMessage ());
+            }
+         }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops the scans, letting one in progress finish.
+    */
+   public void close () {
+      ScheduledExecutorService scheduler;
+      synchronized (this) {
+         scheduler = this.scheduler;
+         this.scheduler = null;
+      }
+      if (scheduler == null)
+         return;
+      scheduler.shutdown ();
+      try {
+         scheduler.awaitTermination (30, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }
+   }//end close
+
+   /**
+    * Restocks every product below its threshold that no one else holds
+    * locked, one batch per transaction.
+    *
+    * @return the number of supply requests placed
+    * @throws java.sql.SQLException when a batch cannot be written; earlier batches stay committed
+    */
+   public int scan () throws SQLException {
+      if (this.esql.getInventoryStats () != null)
+         this.esql.flushInventory ();
+      int placed = 0;
+      try {
+         while (true) {
+            int batch = restockBatch ();
+            placed += batch;
+            if (batch < this.batchSize)
+               break;
+         }
+      }catch (SQLException | RuntimeException e) {
+         synchronized (this) {
+            ++this.failures;
+         }
+         throw e;
+      }finally {
+         synchronized (this) {
+            ++this.scans;
+            this.requests += placed;
+         }
+      }
+      return placed;
+   }//end scan
+
+   public synchronized String toString () {
+      return String.format ("restock: scans=%d requests=%d failures=%d", this.scans, this.requests, this.failures);
+   }
+
+   // restocks one batch; a warehouse deleted since it was routed to is dropped from the routing and the batch retried.
+   private int restockBatch () throws SQLException {
+      Set<Integer> warehouses = new LinkedHashSet<Integer> ();
+      try {
+         return restockBatch (warehouses);
+      }catch (SQLException e) {
+         // the driver gives no SQLSTATE to spot a foreign key violation, so the warehouses are looked up again.
+         boolean gone = false;
+         for (int warehouseID : warehouses)
+            gone |= this.esql.isWarehouseGone (warehouseID);
+         if (!gone)
+            throw e;
+         return restockBatch (new LinkedHashSet<Integer> ());
+      }
+   }//end restockBatch
+
+   // restocks one batch in a transaction and returns how many products it restocked.
+   private int restockBatch (Set<Integer> warehouses) throws SQLException {
+      InventoryEngine inventory = this.esql.getInventoryStats ();
+      InventoryEngine.DirectWrite direct = inventory == null ? null : inventory.directWrite ();
+      List<Restock> routed = new ArrayList<Restock> ();
+      PooledConnection conn = this.esql.pinConnection ();
+      Connection c = conn.getConnection ();
+      try {
+         c.setAutoCommit (false);
+         List<Restock> restocks = this.esql.executeQueryForList (LOW_STOCK_QUERY, RESTOCK, this.restockTo,
+                                                                 this.minUnits, this.batchSize);
+         Map<Integer, Integer> nearest = new HashMap<Integer, Integer> ();
+         List<Object[]> rows = new ArrayList<Object[]> (restocks.size ());
+         for (Restock r : restocks) {
+            Integer warehouseID = nearest.get (r.storeID);
+            if (warehouseID == null) {
+               List<DistanceMatrix.Hit> hits = this.esql.getNearestWarehouses (r.storeID, 1);
+               warehouseID = hits.isEmpty () ? -1 : hits.get (0).warehouse.warehouseID;
+               nearest.put (r.storeID, warehouseID);
+            }
+            // no warehouse at all: nothing can supply the store.
+            if (warehouseID < 0)
+               continue;
+            warehouses.add (warehouseID);
+            rows.add (new Object[] { r.managerID, warehouseID, r.storeID, r.productName, r.units });
+            routed.add (r);
+         }
+         this.esql.insertRows ("ProductSupplyRequests", REQUEST_COLUMNS, rows);
+         int added = addUnits (routed);
+         if (added != routed.size ())
+            throw new SQLException ("Restocked " + added + " of " + routed.size () + " products; the batch was rolled back");
+         if (direct != null)
+            for (Restock r : routed)
+               direct.add (r.storeID, r.productName, r.units);
+         c.commit ();
+      }catch (SQLException | RuntimeException e) {
+         c.rollback ();
+         throw e;
+      }finally {
+         this.esql.unpinConnection ();
+      }
+      if (direct != null)
+         direct.committed ();
+      for (Restock r : routed)
+         this.esql.invalidateProduct (r.storeID, r.productName);
+      // products of stores with no warehouse stay low, so a batch with any of them ends the scan.
+      return routed.size ();
+   }//end restockBatch
+
+   // adds the units of every restock with one UPDATE joined to a VALUES list, in chunks like
+   // Retail.insertRows, and returns the number of Product rows updated.  Every placeholder is
+   // cast, so a server-side prepare types the whole list as char(30) and not text.
+   private int addUnits (List<Restock> restocks) throws SQLException {
+      int updated = 0;
+      for (int i = 0; i < restocks.size (); ) {
+         int n = Math.min (Integer.highestOneBit (restocks.size () - i), Retail.MAX_ROWS_PER_INSERT);
+         StringBuilder sql = new StringBuilder ("UPDATE Product P SET numberOfUnits = P.numberOfUnits + V.units FROM (VALUES ");
+         Object[] params = new Object[n * 3];
+         for (int r = 0; r < n; ++r) {
+            sql.append (r == 0 ? "(" : ", (").append ("CAST(? AS integer), CAST(? AS char(30)), CAST(? AS integer))");
+            Restock restock = restocks.get (i + r);
+            params[r * 3] = restock.storeID;
+            params[r * 3 + 1] = restock.productName;
+            params[r * 3 + 2] = restock.units;
+         }
+         sql.append (") AS V (storeID, productName, units) WHERE P.storeID = V.storeID AND P.productName = V.productName");
+         updated += this.esql.executeUpdate (sql.toString (), params);
+         i += n;
+      }
+      return updated;
+   }//end addUnits
+
+   /**
+    * Runs one scan from the command line.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LowStockScanner.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         LowStockScanner scanner = new LowStockScanner (esql, Integer.getInteger ("retail.restock.minUnits", 10),
+                                                        Integer.getInteger ("retail.restock.restockTo", 100),
+                                                        Integer.getInteger ("retail.restock.batchSize", 1000));
+         System.out.println ("\tPlaced " + scanner.scan () + " supply request(s).");
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end LowStockScanner
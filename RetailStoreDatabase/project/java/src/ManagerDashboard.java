@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A manager's overview in one step: the recent product updates, popular
+ * products, popular customers and newest orders of menu items 6, 7, 8 and
+ * 10, read at the same time.
+ *
+ * The four queries are independent and read-only, so each runs on a
+ * thread of a small pool and borrows its own pooled connection; loading
+ * the dashboard takes as long as the slowest query instead of the sum of
+ * all four.  The sections come back in menu order whatever order the
+ * queries finish in.
+ *
+ */
+
+public class ManagerDashboard {
+
+   // the QueryMetrics operation the dashboard's statements are recorded under.
+   static final String OPERATION = "viewManagerDashboard";
+
+   /**
+    * One query's part of the report.
+    */
+   public static class Section {
+      public final String title;
+      public final String[] columns;
+      public final List<Object[]> rows;
+      public final long millis;
+
+      Section (String title, String[] columns, List<Object[]> rows, long millis) {
+         this.title = title;
+         this.columns = columns;
+         this.rows = rows;
+         this.millis = millis;
+      }
+   }//end Section
+
+   /**
+    * The combined report.
+    */
+   public static class Report {
+      public final List<Section> sections;
+      public final long millis;
+
+      Report (List<Section> sections, long millis) {
+         this.sections = Collections.unmodifiableList (sections);
+         this.millis = millis;
+      }
+
+      /**
+       * @return the time of the slowest query
+       */
+      public long slowestMillis () {
+         long slowest = 0;
+         for (Section section : this.sections)
+            slowest = Math.max (slowest, section.millis);
+         return slowest;
+      }
+
+      /**
+       * Prints every section to standard out, each under its title.
+       *
+       * @param format the output format
+       * @throws java.io.IOException when the output cannot be written
+       */
+      public void print (ResultRenderer.Format format) throws IOException {
+         for (Section section : this.sections) {
+            System.out.println ();
+            System.out.println (section.title);
+            ResultRenderer renderer = ResultRenderer.toConsole (format);
+            renderer.columns (section.columns);
+            for (Object[] row : section.rows)
+               renderer.row (row);
+            renderer.finish ();
+         }
+      }//end print
+   }//end Report
+
+   // every column of a row as the driver returns it.
+   private static final RowMapper<Object[]> VALUES = new RowMapper<Object[]> () {
+      public Object[] mapRow (ResultSet rs) throws SQLException {
+         Object[] row = new Object[rs.getMetaData ().getColumnCount ()];
+         for (int i = 0; i < row.length; ++i)
+            row[i] = rs.getObject (i + 1);
+         return row;
+      }
+   };
+
+   private final Retail esql;
+   private final ExecutorService workers;
+
+   /**
+    * @param esql the database
+    * @param threads the queries run at once; more than four gains nothing
+    */
+   public ManagerDashboard (Retail esql, int threads) {
+      this.esql = esql;
+      final AtomicInteger count = new AtomicInteger ();
+      this.workers = Executors.newFixedThreadPool (threads, new ThreadFactory () {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "manager-dashboard-" + count.incrementAndGet ());
+            t.setDaemon (true);
+            return t;
+         }
+      });
+   }
+
+   /**
+    * Runs the dashboard queries in parallel and waits for all of them.
+    *
+    * @param managerID the manager whose stores are reported on
+    * @return the report, sections in menu order
+    * @throws java.sql.SQLException when a query fails; the others are cancelled
+    */
+   public Report load (final int managerID) throws SQLException {
+      long start = System.nanoTime ();
+      List<Future<Section>> tasks = new ArrayList<Future<Section>> ();
+      tasks.add (submit ("Recent product updates", new String[] { "updateNumber", "storeID", "productName", "updatedOn" },
+                         Retail.RECENT_UPDATES_QUERY, managerID));
+      tasks.add (submit ("Popular products", new String[] { "productName", "numberOfOrders" },
+                         Retail.POPULAR_PRODUCTS_QUERY, managerID));
+      tasks.add (submit ("Popular customers", new String[] { "name", "numberOfOrders" },
+                         Retail.POPULAR_CUSTOMERS_QUERY, managerID));
+      tasks.add (this.workers.submit (new Task ("Newest orders",
+                                                new String[] { "orderNumber", "name", "storeID", "productName", "orderTime" }) {
+         List<Object[]> rows () throws SQLException {
+            List<Object[]> rows = new ArrayList<Object[]> ();
+            for (OrderInfoRow order : esql.getManagerOrders (managerID, null, null, null, null, Retail.ORDER_PAGE_SIZE))
+               rows.add (new Object[] { order.orderNumber, order.customerName, order.storeID, order.productName,
+                                        order.orderTime });
+            return rows;
+         }
+      }));
+
+      List<Section> sections = new ArrayList<Section> (tasks.size ());
+      try {
+         for (Future<Section> task : tasks)
+            sections.add (task.get ());
+      }catch (ExecutionException e) {
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException ("Unable to load the dashboard: " + cause, cause);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted while loading the dashboard", e);
+      }finally {
+         for (Future<Section> task : tasks)
+            task.cancel (true);
+      }
+      return new Report (sections, (System.nanoTime () - start) / 1000000L);
+   }//end load
+
+   /**
+    * Stops the worker threads.
+    */
+   public void close () {
+      this.workers.shutdownNow ();
+      try {
+         this.workers.awaitTermination (30, TimeUnit.SECONDS);
+      }catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+      }
+   }//end close
+
+   private Future<Section> submit (String title, String[] columns, final String query, final int managerID) {
+      return this.workers.submit (new Task (title, columns) {
+         List<Object[]> rows () throws SQLException {
+            return esql.executeQueryForList (query, VALUES, managerID);
+         }
+      });
+   }
+
+   // one section's query, timed and recorded under the dashboard's operation name.
+   private abstract static class Task implements Callable<Section> {
+      private final String title;
+      private final String[] columns;
+
+      Task (String title, String[] columns) {
+         this.title = title;
+         this.columns = columns;
+      }
+
+      abstract List<Object[]> rows () throws SQLException;
+
+      public Section call () throws SQLException {
+         String previous = QueryMetrics.enter (OPERATION);
+         long start = System.nanoTime ();
+         try {
+            List<Object[]> rows = rows ();
+            return new Section (this.title, this.columns, rows, (System.nanoTime () - start) / 1000000L);
+         }finally {
+            QueryMetrics.exit (previous);
+         }
+      }
+   }//end Task
+
+}//end ManagerDashboard
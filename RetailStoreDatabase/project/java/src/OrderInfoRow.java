@@ -0,0 +1,37 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * One order as listed by checkManagerOrderInfo: the Orders row with the
+ * customer name.
+ *
+ */
+
+public class OrderInfoRow {
+
+   /** Select list matching MAPPER, for queries that alias Orders as O and Users as U. */
+   public static final String COLUMNS = "O.orderNumber, U.name, O.storeID, O.productName, O.orderTime";
+
+   public static final RowMapper<OrderInfoRow> MAPPER = new RowMapper<OrderInfoRow> () {
+      public OrderInfoRow mapRow (ResultSet rs) throws SQLException {
+         return new OrderInfoRow (rs.getInt (1), rs.getString (2).trim (), rs.getInt (3),
+                                  rs.getString (4).trim (), rs.getTimestamp (5));
+      }
+   };
+
+   public final int orderNumber;
+   public final String customerName;
+   public final int storeID;
+   public final String productName;
+   public final Timestamp orderTime;
+
+   public OrderInfoRow (int orderNumber, String customerName, int storeID, String productName, Timestamp orderTime) {
+      this.orderNumber = orderNumber;
+      this.customerName = customerName;
+      this.storeID = storeID;
+      this.productName = productName;
+      this.orderTime = orderTime;
+   }
+
+}//end OrderInfoRow
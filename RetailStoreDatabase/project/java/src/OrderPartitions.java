@@ -0,0 +1,121 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maintains the monthly partitions of Orders (see sql/src/create_tables.sql).
+ *
+ * maintain() creates the partitions of the coming months and moves any
+ * orders that landed in orders_default into partitions of their own, so
+ * time-bounded queries keep pruning to the months they ask for.  Setup
+ * creates only three months ahead, so run it at least monthly, with
+ * scripts/maintain_partitions.sh from cron (the script shows a crontab
+ * line) or from the admin menu.  Retail does not run it on its own, since
+ * moving a large orders_default would hold up a login; past the last
+ * partition every new order lands in orders_default and stops pruning.
+ * archive() detaches the months before a day into
+ * the order_archive schema; the rollups are adjusted to the orders that
+ * remain.
+ *
+ */
+
+public class OrderPartitions {
+
+   private static final String INSTALLED_QUERY =
+      "SELECT COUNT(*) FROM pg_proc P WHERE P.proname = 'orders_maintain_partitions'";
+   private static final String MAINTAIN_QUERY =
+      "SELECT orders_maintain_partitions(?)";
+   private static final String ARCHIVE_QUERY =
+      "SELECT orders_archive_partitions(?)";
+   private static final String PARTITIONS_QUERY =
+      "SELECT C.relname, pg_get_expr(C.relpartbound, C.oid), C.reltuples::bigint "
+      + "FROM pg_inherits I, pg_class C WHERE I.inhparent = 'orders'::regclass AND C.oid = I.inhrelid "
+      + "ORDER BY C.relname";
+
+   private final Retail esql;
+
+   public OrderPartitions (Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * @return whether the database has the partition functions of create_tables.sql
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public boolean isInstalled () throws SQLException {
+      return this.esql.executeQueryForObject (INSTALLED_QUERY, Retail.INT_COLUMN) > 0;
+   }
+
+   /**
+    * Creates the partitions of this month and the next monthsAhead months,
+    * and empties orders_default into partitions of the orders' months.
+    *
+    * @param monthsAhead the months after this one to create partitions for
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when a partition cannot be created
+    */
+   public int maintain (int monthsAhead) throws SQLException {
+      return this.esql.executeQueryForObject (MAINTAIN_QUERY, Retail.INT_COLUMN, monthsAhead);
+   }
+
+   /**
+    * Moves the monthly partitions ending on or before a day out of Orders
+    * into the order_archive schema.
+    *
+    * @param cutoff the first day whose month is kept
+    * @return the number of partitions archived
+    * @throws java.sql.SQLException when a partition cannot be detached
+    */
+   public int archive (java.sql.Date cutoff) throws SQLException {
+      return this.esql.executeQueryForObject (ARCHIVE_QUERY, Retail.INT_COLUMN, cutoff);
+   }
+
+   /**
+    * Prints every partition of Orders with its bounds and estimated rows.
+    *
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public void list () throws SQLException {
+      this.esql.executeQueryAndStream (PARTITIONS_QUERY, 1000, new RowHandler () {
+         public void handleRow (ResultSet rs) throws SQLException {
+            System.out.println (String.format ("\t%-16s %-70s %10d rows", rs.getString (1), rs.getString (2),
+                                               rs.getLong (3)));
+         }
+      });
+   }//end list
+
+   /**
+    * Creates the coming partitions, and with "archive" also archives the
+    * months before a day, from the command line.
+    *
+    * @param args <dbname> <port> <user> [archive yyyy-mm-dd]
+    */
+   public static void main (String[] args) {
+      if ((args.length != 3 && args.length != 5) || (args.length == 5 && !args[3].equals ("archive"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderPartitions.class.getName () +
+            " <dbname> <port> <user> [archive yyyy-mm-dd]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         OrderPartitions partitions = new OrderPartitions (esql);
+         System.out.println ("\tCreated " + partitions.maintain (Integer.getInteger ("retail.orders.partitionMonthsAhead", 3))
+                             + " partition(s).");
+         if (args.length == 5)
+            System.out.println ("\tArchived " + partitions.archive (java.sql.Date.valueOf (args[4])) + " partition(s).");
+         partitions.list ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end OrderPartitions
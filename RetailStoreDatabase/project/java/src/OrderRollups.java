@@ -0,0 +1,145 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Checks and rebuilds the per-store order count rollups
+ * (StoreProductOrderCounts and StoreCustomerOrderCounts, see
+ * sql/src/create_rollups.sql) that viewPopularProducts and
+ * viewPopularCustomers read.
+ *
+ * The trigger on Orders keeps the rollups exact, so a mismatch means the
+ * trigger was disabled or the tables were edited by hand.  verify() lists
+ * every row that differs from a GROUP BY over Orders; rebuild() recomputes
+ * both tables from Orders while blocking new orders.
+ *
+ */
+
+public class OrderRollups {
+
+   private static final String PRODUCT_MISMATCHES =
+      "SELECT COALESCE(R.storeID, O.storeID), COALESCE(R.productName, O.productName), "
+      + "COALESCE(R.numberOfOrders, 0), COALESCE(O.numberOfOrders, 0) "
+      + "FROM StoreProductOrderCounts R FULL JOIN "
+      + "(SELECT storeID, productName, COUNT(*) AS numberOfOrders FROM Orders GROUP BY storeID, productName) O "
+      + "ON R.storeID = O.storeID AND R.productName = O.productName "
+      + "WHERE COALESCE(R.numberOfOrders, 0) <> COALESCE(O.numberOfOrders, 0)";
+
+   private static final String CUSTOMER_MISMATCHES =
+      "SELECT COALESCE(R.storeID, O.storeID), COALESCE(R.customerID, O.customerID), "
+      + "COALESCE(R.numberOfOrders, 0), COALESCE(O.numberOfOrders, 0) "
+      + "FROM StoreCustomerOrderCounts R FULL JOIN "
+      + "(SELECT storeID, customerID, COUNT(*) AS numberOfOrders FROM Orders GROUP BY storeID, customerID) O "
+      + "ON R.storeID = O.storeID AND R.customerID = O.customerID "
+      + "WHERE COALESCE(R.numberOfOrders, 0) <> COALESCE(O.numberOfOrders, 0)";
+
+   // mismatches listed individually; the rest are only counted.
+   private static final int MAX_REPORTED_MISMATCHES = 20;
+
+   private final Retail esql;
+
+   public OrderRollups (Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Compares both rollups with Orders and prints the rows that differ.
+    *
+    * @return the number of rollup rows that differ from Orders
+    * @throws java.sql.SQLException when the comparison fails
+    */
+   public int verify () throws SQLException {
+      int mismatches = report ("StoreProductOrderCounts", "product", PRODUCT_MISMATCHES)
+                     + report ("StoreCustomerOrderCounts", "customer", CUSTOMER_MISMATCHES);
+      if (mismatches == 0)
+         System.out.println ("\tOrder rollups match Orders.");
+      return mismatches;
+   }//end verify
+
+   private int report (final String table, final String keyName, String query) throws SQLException {
+      final int[] seen = { 0 };
+      this.esql.executeQueryAndStream (query, 1000, new RowHandler () {
+         public void handleRow (ResultSet rs) throws SQLException {
+            if (++seen[0] <= MAX_REPORTED_MISMATCHES)
+               System.out.println (String.format ("\t%s: store %d, %s %s: rollup %d, Orders %d",
+                                                  table, rs.getInt (1), keyName, rs.getString (2).trim (),
+                                                  rs.getLong (3), rs.getLong (4)));
+         }
+      });
+      if (seen[0] > MAX_REPORTED_MISMATCHES)
+         System.out.println ("\t... and " + (seen[0] - MAX_REPORTED_MISMATCHES) + " more in " + table);
+      return seen[0];
+   }//end report
+
+   /**
+    * Recomputes both rollups from Orders in one transaction.  Orders is
+    * locked against writes for the duration, so no order is counted twice
+    * or missed; readers are not blocked.
+    *
+    * @throws java.sql.SQLException when the rebuild fails; the rollups are left unchanged
+    */
+   public void rebuild () throws SQLException {
+      PooledConnection conn = this.esql.pinConnection ();
+      Connection c = conn.getConnection ();
+      try {
+         c.setAutoCommit (false);
+         Statement stmt = c.createStatement ();
+         try {
+            stmt.execute ("LOCK TABLE Orders IN SHARE MODE");
+            stmt.executeUpdate ("DELETE FROM StoreProductOrderCounts");
+            stmt.executeUpdate ("DELETE FROM StoreCustomerOrderCounts");
+            int products = stmt.executeUpdate (
+               "INSERT INTO StoreProductOrderCounts (storeID, productName, numberOfOrders) "
+               + "SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName");
+            int customers = stmt.executeUpdate (
+               "INSERT INTO StoreCustomerOrderCounts (storeID, customerID, numberOfOrders) "
+               + "SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID");
+            c.commit ();
+            System.out.println (String.format ("\tRebuilt order rollups: %d store/product rows, %d store/customer rows.",
+                                               products, customers));
+         }finally {
+            stmt.close ();
+         }
+      }catch (SQLException | RuntimeException e) {
+         c.rollback ();
+         throw e;
+      }finally {
+         this.esql.unpinConnection ();
+      }
+   }//end rebuild
+
+   /**
+    * Verifies, and with "rebuild" also rebuilds, the rollups from the
+    * command line.
+    *
+    * @param args <dbname> <port> <user> [verify|rebuild]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3 || args.length > 4
+          || (args.length == 4 && !args[3].equals ("verify") && !args[3].equals ("rebuild"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderRollups.class.getName () +
+            " <dbname> <port> <user> [verify|rebuild]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         OrderRollups rollups = new OrderRollups (esql);
+         if (rollups.verify () > 0 && args.length == 4 && args[3].equals ("rebuild"))
+            rollups.rebuild ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end OrderRollups
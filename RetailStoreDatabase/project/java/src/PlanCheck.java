@@ -0,0 +1,307 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query plan regression check: runs EXPLAIN ANALYZE for every SQL template
+ * Retail issues, with parameters taken from the loaded data, and fails when
+ * a plan reads a table with a sequential scan or sorts where the indexes
+ * in create_indexes.sql should make that unnecessary, or reads more
+ * monthly Orders partitions than a time-bounded query needs.
+ *
+ * By default each plan is made with sequential scans and sorts disabled
+ * in the planner (they stay possible, only priced very high), so a plan
+ * that still has one has no index to use instead.  This keeps the check
+ * meaningful on the small sample data, where a sequential scan is cheaper
+ * anyway; run with -Dretail.plancheck.forceIndexes=false against a scaled
+ * dataset to check the plans the planner picks unaided.  Every statement
+ * runs in a transaction that is rolled back, so nothing is written.
+ *
+ * The statements are explained in the form a server-side prepare runs them
+ * (see StatementCache): PREPARE with the parameter types Retail binds, then
+ * EXPLAIN EXECUTE.  A placeholder without the CAST its column needs shows
+ * up as a scan that cannot use the index, or as a PREPARE that fails.
+ *
+ * Exits with status 1 when any check fails.
+ *
+ */
+
+public class PlanCheck {
+
+   private static final Pattern SEQ_SCAN = Pattern.compile ("Seq Scan on (\\w+)");
+   private static final Pattern SORT = Pattern.compile ("^\\s*(->\\s+)?(Incremental )?Sort\\s+\\(");
+   private static final Pattern PARTITION_SCAN = Pattern.compile (" on (orders_\\w+)");
+   private static final Pattern EXECUTION_TIME = Pattern.compile ("(Execution Time|Total runtime): ([0-9.]+) ms");
+
+   // the name each check is prepared under while it is explained.
+   private static final String STATEMENT = "plan_check";
+
+   /**
+    * One SQL template with sample parameters and the plan shapes it may use.
+    */
+   private static class Check {
+      final String name;
+      final String sql;
+      final Object[] params;
+      final Set<String> seqScansAllowed = new HashSet<String> ();
+      boolean sortAllowed = false;
+      int maxPartitions = -1;
+
+      Check (String name, String sql, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+      }
+
+      // lets the plan read these tables (lower case) with a sequential scan.
+      Check seqScan (String... tables) {
+         this.seqScansAllowed.addAll (Arrays.asList (tables));
+         return this;
+      }
+
+      // lets the plan sort, for results that cannot come out of an index in order.
+      Check sort () {
+         this.sortAllowed = true;
+         return this;
+      }
+
+      // limits the Orders partitions the plan may read; pruned and never executed ones do not count.
+      Check partitions (int max) {
+         this.maxPartitions = max;
+         return this;
+      }
+   }//end Check
+
+   private final Retail esql;
+   private final boolean forceIndexes;
+   private final boolean verbose;
+
+   public PlanCheck (Retail esql, boolean forceIndexes, boolean verbose) {
+      this.esql = esql;
+      this.forceIndexes = forceIndexes;
+      this.verbose = verbose;
+   }
+
+   // the Retail queries, with parameters picked from the busiest users and stores.
+   private List<Check> checks () throws SQLException {
+      Integer managerID = this.esql.executeQueryForObject (
+         "SELECT S.managerID FROM Store S GROUP BY S.managerID ORDER BY COUNT(*) DESC LIMIT 1", Retail.INT_COLUMN);
+      Integer customerID = this.esql.executeQueryForObject (
+         "SELECT O.customerID FROM Orders O GROUP BY O.customerID ORDER BY COUNT(*) DESC LIMIT 1", Retail.INT_COLUMN);
+      Integer warehouseID = this.esql.executeQueryForObject (
+         "SELECT W.WarehouseID FROM Warehouse W LIMIT 1", Retail.INT_COLUMN);
+      if (managerID == null || customerID == null || warehouseID == null)
+         throw new IllegalStateException ("the database has no stores, orders or warehouses; load it first");
+      int storeID = this.esql.executeQueryForList (Session.MANAGED_STORES_QUERY, Retail.INT_COLUMN, managerID).get (0);
+      ProductRow product = this.esql.executeQueryForObject (
+         "SELECT " + ProductRow.COLUMNS + " FROM Product P WHERE P.storeID = ? LIMIT 1", ProductRow.MAPPER, storeID);
+      String[] login = this.esql.executeQueryForObject ("SELECT U.name, U.password FROM Users U WHERE U.userID = ?",
+                                                        new RowMapper<String[]> () {
+         public String[] mapRow (ResultSet rs) throws SQLException {
+            return new String[] { rs.getString (1), rs.getString (2) };
+         }
+      }, customerID);
+      // a page cursor halfway through the manager's order history.
+      Integer orders = this.esql.executeQueryForObject (
+         "SELECT COUNT(*) FROM Orders O, Store S WHERE S.managerID = ? AND O.storeID = S.storeID",
+         Retail.INT_COLUMN, managerID);
+      OrderInfoRow middle = this.esql.executeQueryForObject (
+         "SELECT " + OrderInfoRow.COLUMNS + " FROM Orders O, Users U, Store S "
+         + "WHERE S.managerID = ? AND O.storeID = S.storeID AND U.userID = O.customerID "
+         + "ORDER BY O.orderTime DESC, O.orderNumber DESC OFFSET ? LIMIT 1",
+         OrderInfoRow.MAPPER, managerID, orders / 2);
+      Timestamp cursorTime = middle != null ? middle.orderTime : new Timestamp (System.currentTimeMillis ());
+      int cursorNumber = middle != null ? middle.orderNumber : Integer.MAX_VALUE;
+      java.sql.Date from = new java.sql.Date (cursorTime.getTime () - 365L * 24 * 3600 * 1000);
+      java.sql.Date to = new java.sql.Date (cursorTime.getTime ());
+      Timestamp since = new Timestamp (System.currentTimeMillis () - 3600000L);
+      int page = Retail.ORDER_PAGE_SIZE;
+      String name = product.productName;
+
+      List<Check> checks = new ArrayList<Check> ();
+      checks.add (new Check ("LogIn.user", Session.LOGIN_QUERY, login[0], login[1]));
+      checks.add (new Check ("LogIn.managedStores", Session.MANAGED_STORES_QUERY, managerID).sort ());
+      checks.add (new Check ("Session.refresh", Session.USER_QUERY, customerID));
+      checks.add (new Check ("viewStores.loadIndex", Retail.STORES_QUERY).seqScan ("store"));
+      checks.add (new Check ("placeOrder.findStore", Retail.STORE_QUERY, storeID));
+      checks.add (new Check ("supplyRouting.loadWarehouses", Retail.WAREHOUSES_QUERY).seqScan ("warehouse"));
+      checks.add (new Check ("supplyRouting.refreshWarehouse", Retail.WAREHOUSE_QUERY, warehouseID));
+      checks.add (new Check ("viewProducts", Retail.PRODUCTS_QUERY, storeID));
+      checks.add (new Check ("placeOrder.findProduct", Retail.PRODUCT_QUERY, name, storeID));
+      checks.add (new Check ("placeOrder.submit", Retail.SUBMIT_ORDER_QUERY, 1, storeID, name, 1, customerID, 1));
+      checks.add (new Check ("viewRecentOrders", Retail.RECENT_ORDERS_QUERY, customerID));
+      checks.add (new Check ("updateProduct.units", Retail.SET_PRODUCT_UNITS_QUERY, product.numberOfUnits, storeID, name));
+      checks.add (new Check ("updateProduct.price", Retail.SET_PRODUCT_PRICE_QUERY, product.pricePerUnit, storeID, name));
+      checks.add (new Check ("placeProductSupplyRequests.stock", Retail.ADD_PRODUCT_UNITS_QUERY, 1, storeID, name));
+      // every Product row is read on purpose: numberOfUnits has no index, so stock updates stay HOT.
+      checks.add (new Check ("lowStock.scan", LowStockScanner.LOW_STOCK_QUERY, 100, 10, 1000)
+                  .seqScan ("product", "store", "stockthreshold").sort ());
+      checks.add (new Check ("viewRecentUpdates", Retail.RECENT_UPDATES_QUERY, managerID));
+      checks.add (new Check ("viewPopularProducts", Retail.POPULAR_PRODUCTS_QUERY, managerID).sort ());
+      checks.add (new Check ("viewPopularCustomers", Retail.POPULAR_CUSTOMERS_QUERY, managerID).sort ());
+      checks.add (new Check ("checkManagerOrderInfo.firstPage",
+                             Retail.managerOrdersQuery (false, false, false, false),
+                             page, managerID, page).sort ());
+      checks.add (new Check ("checkManagerOrderInfo.deepPage",
+                             Retail.managerOrdersQuery (false, false, false, true),
+                             cursorTime, cursorNumber, page, managerID, page).sort ());
+      checks.add (new Check ("checkManagerOrderInfo.storeAndDates",
+                             Retail.managerOrdersQuery (true, true, true, true),
+                             from, to, cursorTime, cursorNumber, page, managerID, storeID, page).sort ()
+                             .partitions (14));
+      // the last hour: this month, the previous one just after midnight on the 1st, and orders_default.
+      checks.add (new Check ("topTracker.seed", Retail.ORDERS_SINCE_QUERY, since).partitions (3));
+      checks.add (new Check ("adminUpdate.usersByName", Retail.USERS_BY_NAME_QUERY, login[0]));
+      return checks;
+   }//end checks
+
+   /**
+    * Runs every check and prints one line per check.
+    *
+    * @return the number of failed checks
+    * @throws java.sql.SQLException when a plan cannot be read
+    */
+   public int run () throws SQLException {
+      int failures = 0;
+      for (Check check : checks ()) {
+         List<String> plan = explain (check);
+         List<String> problems = new ArrayList<String> ();
+         Set<String> partitions = new HashSet<String> ();
+         String time = "?";
+         for (String line : plan) {
+            Matcher seqScan = SEQ_SCAN.matcher (line);
+            if (seqScan.find () && !check.seqScansAllowed.contains (seqScan.group (1).toLowerCase ()))
+               problems.add ("sequential scan on " + seqScan.group (1));
+            if (!check.sortAllowed && SORT.matcher (line).find ())
+               problems.add ("sort");
+            Matcher partition = PARTITION_SCAN.matcher (line);
+            if (partition.find () && !line.contains ("(never executed)"))
+               partitions.add (partition.group (1));
+            Matcher executionTime = EXECUTION_TIME.matcher (line);
+            if (executionTime.find ())
+               time = executionTime.group (2);
+         }
+         if (check.maxPartitions >= 0 && partitions.size () > check.maxPartitions)
+            problems.add ("read " + partitions.size () + " Orders partitions");
+         if (!problems.isEmpty ())
+            ++failures;
+         System.out.println (String.format ("%-4s %-38s %10s ms  %s", problems.isEmpty () ? "ok" : "FAIL",
+                                            check.name, time, problems.isEmpty () ? "" : problems));
+         if (this.verbose || !problems.isEmpty ())
+            for (String line : plan)
+               System.out.println ("        " + line);
+      }
+      System.out.println (failures == 0 ? "All plans ok." : failures + " plan(s) regressed.");
+      return failures;
+   }//end run
+
+   // PREPAREs the statement and runs EXPLAIN ANALYZE EXECUTE in a transaction that is
+   // rolled back, so DML leaves no trace.  The prepared statement outlives the rollback.
+   private List<String> explain (Check check) throws SQLException {
+      final List<String> plan = new ArrayList<String> ();
+      PooledConnection conn = this.esql.pinConnection ();
+      Connection c = conn.getConnection ();
+      boolean prepared = false;
+      try {
+         c.setAutoCommit (false);
+         Statement stmt = c.createStatement ();
+         try {
+            if (this.forceIndexes) {
+               stmt.execute ("SET LOCAL enable_seqscan = off");
+               stmt.execute ("SET LOCAL enable_sort = off");
+            }
+            stmt.execute (prepare (check));
+            prepared = true;
+         }finally {
+            stmt.close ();
+         }
+         StringBuilder execute = new StringBuilder ("EXPLAIN (ANALYZE, BUFFERS) EXECUTE ").append (STATEMENT);
+         for (int i = 0; i < check.params.length; ++i)
+            execute.append (i == 0 ? "(?" : ", ?");
+         execute.append (check.params.length == 0 ? "" : ")");
+         this.esql.executeQueryAndStream (execute.toString (), 1000, new RowHandler () {
+            public void handleRow (ResultSet rs) throws SQLException {
+               plan.add (rs.getString (1));
+            }
+         }, check.params);
+      }finally {
+         try {
+            c.rollback ();
+            c.setAutoCommit (true);
+            if (prepared) {
+               Statement stmt = c.createStatement ();
+               try {
+                  stmt.execute ("DEALLOCATE " + STATEMENT);
+               }finally {
+                  stmt.close ();
+               }
+            }
+         }finally {
+            this.esql.unpinConnection ();
+         }
+      }
+      return plan;
+   }//end explain
+
+   // the PREPARE a server-side prepared statement sends: the bound types, and $n for each ?.
+   private static String prepare (Check check) {
+      StringBuilder sql = new StringBuilder ("PREPARE ").append (STATEMENT);
+      for (int i = 0; i < check.params.length; ++i)
+         sql.append (i == 0 ? " (" : ", ").append (Retail.bindType (check.params[i]));
+      sql.append (check.params.length == 0 ? " AS " : ") AS ");
+      boolean quoted = false;
+      int n = 0;
+      for (int i = 0; i < check.sql.length (); ++i) {
+         char ch = check.sql.charAt (i);
+         if (ch == '\'')
+            quoted = !quoted;
+         if (ch == '?' && !quoted)
+            sql.append ('$').append (++n);
+         else
+            sql.append (ch);
+      }
+      return sql.toString ();
+   }//end prepare
+
+   /**
+    * Runs the plan checks from the command line.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PlanCheck.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      int failures = 1;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         boolean forceIndexes = !"false".equals (System.getProperty ("retail.plancheck.forceIndexes"));
+         failures = new PlanCheck (esql, forceIndexes, Boolean.getBoolean ("retail.plancheck.verbose")).run ();
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+      System.exit (failures == 0 ? 0 : 1);
+   }//end main
+
+}//end PlanCheck
@@ -0,0 +1,67 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A physical connection owned by a ConnectionPool together with the
+ * bookkeeping the pool needs to validate, evict and retire it.
+ *
+ */
+
+public class PooledConnection {
+
+   private final Connection connection;
+   private final StatementCache statements;
+   private final long createdAt;
+   private volatile long lastUsedAt;
+
+   PooledConnection (Connection connection, int statementCacheSize, StatementCache.Counters counters) {
+      this.connection = connection;
+      this.statements = new StatementCache (connection, statementCacheSize, counters);
+      this.createdAt = System.currentTimeMillis ();
+      this.lastUsedAt = this.createdAt;
+   }
+
+   /**
+    * @return the underlying JDBC connection
+    */
+   public Connection getConnection () {
+      return this.connection;
+   }
+
+   /**
+    * Returns the cached prepared statement for a SQL template on this
+    * connection, preparing it the first time it is seen.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      return this.statements.prepare (sql);
+   }
+
+   // milliseconds since the connection was last handed back to the pool.
+   long idleMillis () {
+      return System.currentTimeMillis () - this.lastUsedAt;
+   }
+
+   // true once the connection has outlived maxLifetimeMillis.
+   boolean isExpired (long maxLifetimeMillis) {
+      return System.currentTimeMillis () - this.createdAt >= maxLifetimeMillis;
+   }
+
+   void touch () {
+      this.lastUsedAt = System.currentTimeMillis ();
+   }
+
+   void close () {
+      this.statements.clear ();
+      try {
+         this.connection.close ();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}//end PooledConnection
@@ -0,0 +1,261 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through cache of Product rows, keyed by (storeID, productName), and
+ * of whole per-store product listings.
+ *
+ * The cache holds at most maxRows product rows, a listing counting one per
+ * product in it, and drops the least recently used entries beyond that.
+ * Entries also expire ttlMillis after they were loaded, which bounds how
+ * long a change made outside this process can go unseen.  Changes made
+ * through Retail call invalidate() and are seen at once.  A product that
+ * does not exist is cached too, so a mistyped name re-entered in a
+ * validation loop does not go back to the database each time.
+ *
+ * A row loaded concurrently with an invalidation of a product of the same
+ * store is not cached, so a load that read the row before a write cannot
+ * put the old value back after the write invalidated it.  Invalidations
+ * in other stores do not hold loads back.
+ *
+ */
+
+public class ProductCache implements ProductCacheMBean {
+
+   /**
+    * Reads products from the database on a miss.
+    */
+   public interface Loader {
+      ProductRow loadProduct (int storeID, String productName) throws SQLException;
+
+      List<ProductRow> loadProducts (int storeID) throws SQLException;
+   }
+
+   // (storeID, productName) for a product, (storeID, null) for the store's listing.
+   private static class Key {
+      final int storeID;
+      final String productName;
+
+      Key (int storeID, String productName) {
+         this.storeID = storeID;
+         this.productName = productName;
+      }
+
+      public boolean equals (Object o) {
+         if (!(o instanceof Key))
+            return false;
+         Key other = (Key) o;
+         return this.storeID == other.storeID
+            && (this.productName == null ? other.productName == null : this.productName.equals (other.productName));
+      }
+
+      public int hashCode () {
+         return 31 * this.storeID + (this.productName == null ? 0 : this.productName.hashCode ());
+      }
+   }//end Key
+
+   private static class Entry {
+      // a ProductRow, NO_PRODUCT, or a listing.
+      final Object value;
+      final int rows;
+      final long expiresAt;
+
+      Entry (Object value, int rows, long expiresAt) {
+         this.value = value;
+         this.rows = rows;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   // cached for a product the store does not carry.
+   private static final Object NO_PRODUCT = new Object ();
+
+   private final Loader loader;
+   private final int maxRows;
+   private final long ttlMillis;
+   private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry> (16, 0.75f, true);
+   private int rows = 0;
+
+   // bumped by every invalidation; a load is only cached if its store was not invalidated, nor the
+   // cache cleared, at a later generation than the one it started at.
+   private long generation = 0;
+   private final Map<Integer, Long> invalidatedAt = new HashMap<Integer, Long> ();
+   private long clearedAt = 0;
+
+   private long hits = 0;
+   private long misses = 0;
+   private long evictions = 0;
+   private long expirations = 0;
+   private long invalidations = 0;
+
+   /**
+    * @param loader reads products on a miss
+    * @param maxRows the product rows kept, 0 to cache nothing
+    * @param ttlMillis how long an entry is served after it was loaded
+    */
+   public ProductCache (Loader loader, int maxRows, long ttlMillis) {
+      this.loader = loader;
+      this.maxRows = maxRows;
+      this.ttlMillis = ttlMillis;
+   }
+
+   /**
+    * Looks a product up, from the product's own entry or a cached listing
+    * of its store, loading it on a miss.
+    *
+    * @param storeID the store of the product
+    * @param productName the product name; trailing blanks are ignored, as in the char column
+    * @return the product, or null if the store does not carry it
+    * @throws java.sql.SQLException when the product cannot be loaded
+    */
+   public ProductRow get (int storeID, String productName) throws SQLException {
+      String name = ProductRow.stripTrailing (productName);
+      Key key = new Key (storeID, name);
+      long loadGeneration;
+      synchronized (this) {
+         Entry e = lookup (key);
+         if (e != null) {
+            ++this.hits;
+            return e.value == NO_PRODUCT ? null : (ProductRow) e.value;
+         }
+         // a listing holds every product of the store, so it also answers for a missing one.
+         Entry listing = lookup (new Key (storeID, null));
+         if (listing != null) {
+            ++this.hits;
+            for (ProductRow product : rowsOf (listing))
+               if (product.productName.equals (name))
+                  return product;
+            return null;
+         }
+         ++this.misses;
+         loadGeneration = this.generation;
+      }
+      ProductRow product = this.loader.loadProduct (storeID, productName);
+      put (key, product == null ? NO_PRODUCT : product, 1, loadGeneration);
+      return product;
+   }//end get
+
+   /**
+    * Lists the products of a store, loading the listing on a miss.
+    *
+    * @param storeID the store
+    * @return its products, unmodifiable
+    * @throws java.sql.SQLException when the listing cannot be loaded
+    */
+   public List<ProductRow> list (int storeID) throws SQLException {
+      Key key = new Key (storeID, null);
+      long loadGeneration;
+      synchronized (this) {
+         Entry e = lookup (key);
+         if (e != null) {
+            ++this.hits;
+            return rowsOf (e);
+         }
+         ++this.misses;
+         loadGeneration = this.generation;
+      }
+      List<ProductRow> products = Collections.unmodifiableList (this.loader.loadProducts (storeID));
+      put (key, products, Math.max (1, products.size ()), loadGeneration);
+      return products;
+   }//end list
+
+   /**
+    * Drops a product and its store's listing.  Call after writing the row,
+    * or after inserting or deleting the product.
+    *
+    * @param storeID the store of the product
+    * @param productName the product changed
+    */
+   public synchronized void invalidate (int storeID, String productName) {
+      this.invalidatedAt.put (storeID, ++this.generation);
+      ++this.invalidations;
+      remove (new Key (storeID, ProductRow.stripTrailing (productName)));
+      remove (new Key (storeID, null));
+   }
+
+   public synchronized void clear () {
+      this.clearedAt = ++this.generation;
+      this.invalidatedAt.clear ();
+      this.entries.clear ();
+      this.rows = 0;
+   }
+
+   public synchronized long getHits () {
+      return this.hits;
+   }
+
+   public synchronized long getMisses () {
+      return this.misses;
+   }
+
+   public synchronized double getHitRatio () {
+      long lookups = this.hits + this.misses;
+      return lookups == 0 ? 0.0 : 100.0 * this.hits / lookups;
+   }
+
+   public synchronized long getEvictions () {
+      return this.evictions;
+   }
+
+   public synchronized long getExpirations () {
+      return this.expirations;
+   }
+
+   public synchronized long getInvalidations () {
+      return this.invalidations;
+   }
+
+   public synchronized int getSize () {
+      return this.rows;
+   }
+
+   public synchronized String toString () {
+      return String.format ("products: hits=%d misses=%d hitRatio=%.1f%% rows=%d/%d evictions=%d expirations=%d invalidations=%d",
+                            this.hits, this.misses, getHitRatio (), this.rows, this.maxRows,
+                            this.evictions, this.expirations, this.invalidations);
+   }
+
+   // the live entry of a key, dropping it if it expired.
+   private Entry lookup (Key key) {
+      Entry e = this.entries.get (key);
+      if (e != null && System.currentTimeMillis () >= e.expiresAt) {
+         remove (key);
+         ++this.expirations;
+         return null;
+      }
+      return e;
+   }
+
+   private synchronized void put (Key key, Object value, int rows, long loadGeneration) {
+      Long storeInvalidated = this.invalidatedAt.get (key.storeID);
+      if (this.clearedAt > loadGeneration || (storeInvalidated != null && storeInvalidated > loadGeneration)
+          || rows > this.maxRows)
+         return;
+      remove (key);
+      this.entries.put (key, new Entry (value, rows, System.currentTimeMillis () + this.ttlMillis));
+      this.rows += rows;
+      Iterator<Map.Entry<Key, Entry>> eldest = this.entries.entrySet ().iterator ();
+      while (this.rows > this.maxRows) {
+         this.rows -= eldest.next ().getValue ().rows;
+         eldest.remove ();
+         ++this.evictions;
+      }
+   }//end put
+
+   private void remove (Key key) {
+      Entry e = this.entries.remove (key);
+      if (e != null)
+         this.rows -= e.rows;
+   }
+
+   @SuppressWarnings ("unchecked")
+   private static List<ProductRow> rowsOf (Entry listing) {
+      return (List<ProductRow>) listing.value;
+   }
+
+}//end ProductCache
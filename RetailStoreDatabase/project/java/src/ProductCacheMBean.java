@@ -0,0 +1,33 @@
+/**
+ * JMX view of a ProductCache, registered as Retail:type=ProductCache.
+ *
+ */
+
+public interface ProductCacheMBean {
+
+   long getHits ();
+
+   long getMisses ();
+
+   /**
+    * @return hits as a percentage of all lookups
+    */
+   double getHitRatio ();
+
+   long getEvictions ();
+
+   long getExpirations ();
+
+   long getInvalidations ();
+
+   /**
+    * @return the cached product rows, listing rows included
+    */
+   int getSize ();
+
+   /**
+    * Drops every cached entry; the counters are kept.
+    */
+   void clear ();
+
+}//end ProductCacheMBean
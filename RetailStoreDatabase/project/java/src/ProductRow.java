@@ -0,0 +1,46 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Product table.
+ *
+ */
+
+public class ProductRow {
+
+   /** Select list matching MAPPER, for queries that alias Product as P. */
+   public static final String COLUMNS = "P.storeID, P.productName, P.numberOfUnits, P.pricePerUnit";
+
+   public static final RowMapper<ProductRow> MAPPER = new RowMapper<ProductRow> () {
+      public ProductRow mapRow (ResultSet rs) throws SQLException {
+         return new ProductRow (rs.getInt (1), rs.getString (2).trim (), rs.getInt (3), rs.getDouble (4));
+      }
+   };
+
+   public final int storeID;
+   public final String productName;
+   public final int numberOfUnits;
+   public final double pricePerUnit;
+
+   public ProductRow (int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      this.storeID = storeID;
+      this.productName = productName;
+      this.numberOfUnits = numberOfUnits;
+      this.pricePerUnit = pricePerUnit;
+   }
+
+   /**
+    * Drops the blanks a char(n) column such as productName pads its values
+    * with, so names compare and print the way they were entered.
+    *
+    * @param s the value
+    * @return s without trailing spaces
+    */
+   public static String stripTrailing (String s) {
+      int end = s.length ();
+      while (end > 0 && s.charAt (end - 1) == ' ')
+         --end;
+      return s.substring (0, end);
+   }
+
+}//end ProductRow
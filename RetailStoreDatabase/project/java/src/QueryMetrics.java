@@ -0,0 +1,268 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row and error counters for every statement the Retail helpers
+ * run, keyed by "operation.statement", e.g. "placeOrder.insert" or
+ * "viewStores.select".
+ *
+ * The operation is whatever the calling thread entered last with enter()
+ * (the menus enter their own name); the statement is the SQL verb, taken
+ * from the main statement for a WITH query.  Recording costs a map lookup
+ * and a few atomic increments, so it is always on.  The counters are
+ * exposed over JMX as Retail:type=QueryMetrics and, every
+ * retail.metrics.dumpSeconds seconds (60, 0 to disable), written to
+ * the file named by retail.metrics.file (retail-metrics.txt).
+ *
+ */
+
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // operation label used for statements run outside any enter().
+   private static final String NO_OPERATION = "other";
+
+   /**
+    * The counters of one label.
+    */
+   public static class Stat {
+      public final LatencyHistogram latency = new LatencyHistogram ();
+      public final AtomicLong rows = new AtomicLong ();
+      public final AtomicLong errors = new AtomicLong ();
+
+      public String toString () {
+         return String.format ("calls=%d errors=%d rows=%d %s",
+                               this.latency.getCount (), this.errors.get (), this.rows.get (), this.latency);
+      }
+   }//end Stat
+
+   private static final ConcurrentMap<String, Stat> STATS = new ConcurrentHashMap<String, Stat> ();
+
+   // SQL verb per statement text; the statements come from a fixed set of templates.
+   private static final ConcurrentMap<String, String> VERBS = new ConcurrentHashMap<String, String> ();
+
+   private static final ThreadLocal<String> OPERATION = new ThreadLocal<String> ();
+
+   private static ScheduledExecutorService dumper = null;
+   private static File dumpFile = null;
+   private static boolean registered = false;
+
+   /**
+    * Makes the calling thread record its statements under an operation name
+    * until exit() is called.
+    *
+    * @param operation the operation name, e.g. a menu function
+    * @return the previous operation name, to hand to exit()
+    */
+   public static String enter (String operation) {
+      String previous = OPERATION.get ();
+      OPERATION.set (operation);
+      return previous;
+   }
+
+   /**
+    * Restores the operation name that was current before enter().
+    *
+    * @param previous the value enter() returned
+    */
+   public static void exit (String previous) {
+      if (previous == null)
+         OPERATION.remove ();
+      else
+         OPERATION.set (previous);
+   }
+
+   /**
+    * Records one statement.
+    *
+    * @param sql the statement text
+    * @param startNanos System.nanoTime() before the statement was sent
+    * @param rows the rows returned or changed
+    * @param failed true if the statement threw
+    */
+   public static void record (String sql, long startNanos, long rows, boolean failed) {
+      String operation = OPERATION.get ();
+      String label = (operation == null ? NO_OPERATION : operation) + "." + verb (sql);
+      Stat stat = STATS.get (label);
+      if (stat == null) {
+         Stat created = new Stat ();
+         stat = STATS.putIfAbsent (label, created);
+         if (stat == null)
+            stat = created;
+      }
+      stat.latency.recordSince (startNanos);
+      if (failed)
+         stat.errors.incrementAndGet ();
+      else
+         stat.rows.addAndGet (rows);
+   }//end record
+
+   /**
+    * @param label an operation label
+    * @return its counters, or null if it was never recorded
+    */
+   public static Stat get (String label) {
+      return STATS.get (label);
+   }
+
+   // the verb of the main statement: the first select/insert/update/delete outside parentheses.
+   static String verb (String sql) {
+      String verb = VERBS.get (sql);
+      if (verb == null) {
+         verb = "statement";
+         String lower = sql.toLowerCase (Locale.ROOT);
+         int depth = 0;
+         for (int i = 0; i < lower.length (); ++i) {
+            char ch = lower.charAt (i);
+            if (ch == '(') {
+               ++depth;
+            } else if (ch == ')') {
+               --depth;
+            } else if (depth == 0 && Character.isLetter (ch) && (i == 0 || !Character.isLetterOrDigit (lower.charAt (i - 1)))) {
+               int end = i;
+               while (end < lower.length () && Character.isLetter (lower.charAt (end)))
+                  ++end;
+               String word = lower.substring (i, end);
+               if (word.equals ("select") || word.equals ("insert") || word.equals ("update")
+                   || word.equals ("delete") || word.equals ("explain")) {
+                  verb = word;
+                  break;
+               }
+               if (i == 0 && !word.equals ("with")) {
+                  verb = word;
+                  break;
+               }
+               i = end - 1;
+            }
+         }
+         VERBS.putIfAbsent (sql, verb);
+      }
+      return verb;
+   }//end verb
+
+   /**
+    * Registers the JMX bean and starts the periodic file dump, once per
+    * process.
+    */
+   public static synchronized void start () {
+      if (!registered) {
+         try {
+            ManagementFactory.getPlatformMBeanServer ().registerMBean (
+               new QueryMetrics (), new ObjectName ("Retail:type=QueryMetrics"));
+         }catch (Exception e) {
+            System.err.println ("Unable to register the query metrics bean: " + e.getMessage ());
+         }
+         registered = true;
+      }
+      long seconds = Long.getLong ("retail.metrics.dumpSeconds", 60L);
+      if (dumper == null && seconds > 0) {
+         dumpFile = new File (System.getProperty ("retail.metrics.file", "retail-metrics.txt"));
+         dumper = Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread (r, "query-metrics-dump");
+               t.setDaemon (true);
+               return t;
+            }
+         });
+         dumper.scheduleWithFixedDelay (new Runnable () {
+            public void run () {
+               dump ();
+            }
+         }, seconds, seconds, TimeUnit.SECONDS);
+      }
+   }//end start
+
+   /**
+    * Stops the periodic dump after writing the file one last time.
+    */
+   public static synchronized void stop () {
+      if (dumper != null) {
+         dumper.shutdownNow ();
+         dumper = null;
+         dump ();
+      }
+   }
+
+   // replaces the dump file with the current summary, so readers never see half a file.
+   private static void dump () {
+      File file;
+      synchronized (QueryMetrics.class) {
+         file = dumpFile;
+      }
+      if (file == null)
+         return;
+      try {
+         File parent = file.getAbsoluteFile ().getParentFile ();
+         File tmp = File.createTempFile ("retail-metrics", ".tmp", parent);
+         Writer out = new OutputStreamWriter (new FileOutputStream (tmp), "UTF-8");
+         try {
+            out.write ("# " + new Date () + "\n");
+            for (String line : summary ())
+               out.write (line + "\n");
+         }finally {
+            out.close ();
+         }
+         Files.move (tmp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }catch (IOException e) {
+         System.err.println ("Unable to write the query metrics to " + file + ": " + e.getMessage ());
+      }
+   }//end dump
+
+   /**
+    * @return one line per label, sorted by label
+    */
+   static List<String> summary () {
+      List<String> labels = new ArrayList<String> (STATS.keySet ());
+      Collections.sort (labels);
+      List<String> lines = new ArrayList<String> (labels.size ());
+      for (String label : labels)
+         lines.add (label + " " + STATS.get (label));
+      return lines;
+   }
+
+   public String[] getLabels () {
+      List<String> labels = new ArrayList<String> (STATS.keySet ());
+      Collections.sort (labels);
+      return labels.toArray (new String[labels.size ()]);
+   }
+
+   public String[] getSummary () {
+      List<String> lines = summary ();
+      return lines.toArray (new String[lines.size ()]);
+   }
+
+   public String describe (String label) {
+      Stat stat = STATS.get (label);
+      return stat == null ? null : label + " " + stat;
+   }
+
+   public void reset () {
+      clear ();
+   }
+
+   /**
+    * Forgets everything recorded so far.
+    */
+   static void clear () {
+      STATS.clear ();
+   }
+
+}//end QueryMetrics
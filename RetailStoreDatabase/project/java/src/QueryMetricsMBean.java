@@ -0,0 +1,29 @@
+/**
+ * JMX view of QueryMetrics, registered as Retail:type=QueryMetrics.
+ *
+ */
+
+public interface QueryMetricsMBean {
+
+   /**
+    * @return the labels recorded so far, "operation.statement"
+    */
+   String[] getLabels ();
+
+   /**
+    * @return one line per label: calls, errors, rows and latency percentiles
+    */
+   String[] getSummary ();
+
+   /**
+    * @param label an operation label
+    * @return the summary line of one label, or null if it was never recorded
+    */
+   String describe (String label);
+
+   /**
+    * Forgets everything recorded so far.
+    */
+   void reset ();
+
+}//end QueryMetricsMBean
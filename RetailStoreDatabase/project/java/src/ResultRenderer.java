@@ -0,0 +1,330 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Renders query results as a fixed-width table, CSV or JSON into one large
+ * buffer, so a result costs a write per buffer-full rather than one per
+ * cell.
+ *
+ * A renderer takes rows either straight from a query, as the RowHandler of
+ * Retail.executeQueryAndStream(), or as values after columns() has named
+ * them.  toConsole() writes to standard out, which is flushed but left
+ * open; toFile() writes through a FileChannel, for exports.  finish() must
+ * be called, or close() for a file, once the last row is in: it ends the
+ * JSON array and flushes the buffer.
+ *
+ * Trailing blanks of char(n) columns are dropped.  CSV follows RFC 4180
+ * with CRLF line ends, like the files in data/; JSON is an array with one
+ * object per row, with numbers unquoted.
+ *
+ */
+
+public class ResultRenderer implements RowHandler {
+
+   public enum Format {
+      TABLE, CSV, JSON;
+
+      /**
+       * @param fileName an export file name
+       * @return CSV for .csv, JSON for .json, TABLE otherwise
+       */
+      public static Format forFile (String fileName) {
+         String name = fileName.toLowerCase ();
+         return name.endsWith (".csv") ? CSV : name.endsWith (".json") ? JSON : TABLE;
+      }
+   }//end Format
+
+   private static final int BUFFER_SIZE = 1 << 16;
+
+   // table column widths: at least the header, at most this unless the header is longer.
+   private static final int MIN_WIDTH = 6;
+   private static final int MAX_WIDTH = 30;
+   // the width of columns named by columns(), which have no declared size.
+   private static final int DEFAULT_WIDTH = 12;
+
+   private final Writer out;
+   private final Format format;
+   private final boolean ownsOutput;
+
+   private String[] names = null;
+   private int[] widths;
+   private boolean[] numeric;
+   private long rows = 0;
+   private boolean finished = false;
+
+   private ResultRenderer (Writer out, Format format, boolean ownsOutput) {
+      this.out = out;
+      this.format = format;
+      this.ownsOutput = ownsOutput;
+   }
+
+   /**
+    * @param format the output format
+    * @return a renderer writing to standard out
+    */
+   public static ResultRenderer toConsole (Format format) {
+      return new ResultRenderer (new BufferedWriter (new OutputStreamWriter (System.out), BUFFER_SIZE), format, false);
+   }
+
+   /**
+    * @param out where the output goes; finish() flushes it, close() leaves it open
+    * @param format the output format
+    * @return a renderer writing to the caller's writer through the renderer's buffer
+    */
+   public static ResultRenderer toWriter (Writer out, Format format) {
+      return new ResultRenderer (new BufferedWriter (out, BUFFER_SIZE), format, false);
+   }
+
+   /**
+    * Creates or truncates a file and renders into it.
+    *
+    * @param file the file written
+    * @param format the output format
+    * @return a renderer that close() must be called on
+    * @throws java.io.IOException when the file cannot be opened
+    */
+   public static ResultRenderer toFile (File file, Format format) throws IOException {
+      FileChannel channel = FileChannel.open (file.toPath (), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING);
+      return new ResultRenderer (new BufferedWriter (Channels.newWriter (channel, "UTF-8"), BUFFER_SIZE), format, true);
+   }
+
+   /**
+    * Names the columns of the rows to come and writes the header.  Must be
+    * called once, before row().
+    *
+    * @param names the column names
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void columns (String... names) throws IOException {
+      int[] widths = new int[names.length];
+      for (int i = 0; i < names.length; ++i)
+         widths[i] = Math.max (DEFAULT_WIDTH, names[i].length ());
+      start (names, widths, new boolean[names.length]);
+   }
+
+   /**
+    * Writes one row.  Numbers are written unquoted in JSON.
+    *
+    * @param values the row, in column order; null for SQL NULL
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void row (Object... values) throws IOException {
+      String[] cells = new String[values.length];
+      boolean[] numbers = new boolean[values.length];
+      for (int i = 0; i < values.length; ++i) {
+         cells[i] = values[i] == null ? null : ProductRow.stripTrailing (values[i].toString ());
+         numbers[i] = values[i] instanceof Number;
+      }
+      write (cells, numbers);
+   }//end row
+
+   public void handleRow (ResultSet rs) throws SQLException {
+      try {
+         if (this.names == null) {
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            String[] names = new String[numCol];
+            int[] widths = new int[numCol];
+            boolean[] numeric = new boolean[numCol];
+            for (int i = 0; i < numCol; ++i) {
+               names[i] = rsmd.getColumnName (i + 1);
+               widths[i] = Math.max (names[i].length (),
+                                     Math.max (MIN_WIDTH, Math.min (MAX_WIDTH, rsmd.getColumnDisplaySize (i + 1))));
+               numeric[i] = isNumeric (rsmd.getColumnType (i + 1));
+            }
+            start (names, widths, numeric);
+         }
+         String[] cells = new String[this.names.length];
+         for (int i = 0; i < cells.length; ++i) {
+            String value = rs.getString (i + 1);
+            cells[i] = value == null ? null : ProductRow.stripTrailing (value);
+         }
+         write (cells, this.numeric);
+      }catch (IOException e) {
+         throw new SQLException ("Unable to write the result: " + e.getMessage (), e);
+      }
+   }//end handleRow
+
+   /**
+    * @return the rows written so far
+    */
+   public long getRows () {
+      return this.rows;
+   }
+
+   /**
+    * Writes what is still buffered, so a page shows before the next prompt.
+    *
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void flush () throws IOException {
+      this.out.flush ();
+   }
+
+   /**
+    * Ends the output after the last row and flushes it.  Further calls do
+    * nothing.
+    *
+    * @throws java.io.IOException when the output cannot be written
+    */
+   public void finish () throws IOException {
+      if (this.finished)
+         return;
+      this.finished = true;
+      if (this.format == Format.JSON)
+         this.out.write (this.rows == 0 ? "[]\n" : "\n]\n");
+      this.out.flush ();
+   }//end finish
+
+   /**
+    * Finishes the output and closes it if it is a file.
+    *
+    * @throws java.io.IOException when the output cannot be written or closed
+    */
+   public void close () throws IOException {
+      try {
+         finish ();
+      }finally {
+         if (this.ownsOutput)
+            this.out.close ();
+      }
+   }//end close
+
+   private void start (String[] names, int[] widths, boolean[] numeric) throws IOException {
+      if (this.names != null)
+         throw new IllegalStateException ("the columns are already set");
+      this.names = names;
+      this.widths = widths;
+      this.numeric = numeric;
+      switch (this.format) {
+      case TABLE:
+         StringBuilder rule = new StringBuilder ();
+         for (int i = 0; i < names.length; ++i) {
+            pad (names[i], widths[i], i == names.length - 1);
+            for (int j = 0; j < widths[i]; ++j)
+               rule.append ('-');
+            if (i < names.length - 1)
+               rule.append (' ');
+         }
+         this.out.write ('\n');
+         this.out.write (rule.toString ());
+         this.out.write ('\n');
+         break;
+      case CSV:
+         for (int i = 0; i < names.length; ++i) {
+            if (i > 0)
+               this.out.write (',');
+            csv (names[i]);
+         }
+         this.out.write ("\r\n");
+         break;
+      case JSON:
+         break;
+      }
+   }//end start
+
+   private void write (String[] cells, boolean[] numbers) throws IOException {
+      if (this.names == null)
+         throw new IllegalStateException ("columns() must be called before row()");
+      switch (this.format) {
+      case TABLE:
+         for (int i = 0; i < cells.length; ++i)
+            pad (cells[i] == null ? "" : cells[i], this.widths[i], i == cells.length - 1);
+         this.out.write ('\n');
+         break;
+      case CSV:
+         for (int i = 0; i < cells.length; ++i) {
+            if (i > 0)
+               this.out.write (',');
+            if (cells[i] != null)
+               csv (cells[i]);
+         }
+         this.out.write ("\r\n");
+         break;
+      case JSON:
+         this.out.write (this.rows == 0 ? "[\n{" : ",\n{");
+         for (int i = 0; i < cells.length; ++i) {
+            if (i > 0)
+               this.out.write (',');
+            json (this.names[i]);
+            this.out.write (':');
+            if (cells[i] == null)
+               this.out.write ("null");
+            else if (numbers[i] && isJsonNumber (cells[i]))
+               this.out.write (cells[i]);
+            else
+               json (cells[i]);
+         }
+         this.out.write ('}');
+         break;
+      }
+      ++this.rows;
+   }//end write
+
+   // a table cell: left aligned and padded to its width, unless it is the last of the line.
+   private void pad (String cell, int width, boolean last) throws IOException {
+      this.out.write (cell);
+      if (last)
+         return;
+      for (int i = cell.length (); i < width; ++i)
+         this.out.write (' ');
+      this.out.write (' ');
+   }
+
+   private void csv (String cell) throws IOException {
+      if (cell.indexOf (',') < 0 && cell.indexOf ('"') < 0 && cell.indexOf ('\n') < 0 && cell.indexOf ('\r') < 0) {
+         this.out.write (cell);
+         return;
+      }
+      this.out.write ('"');
+      this.out.write (cell.replace ("\"", "\"\""));
+      this.out.write ('"');
+   }
+
+   private void json (String s) throws IOException {
+      this.out.write ('"');
+      for (int i = 0; i < s.length (); ++i) {
+         char c = s.charAt (i);
+         switch (c) {
+         case '"':  this.out.write ("\\\""); break;
+         case '\\': this.out.write ("\\\\"); break;
+         case '\n': this.out.write ("\\n"); break;
+         case '\r': this.out.write ("\\r"); break;
+         case '\t': this.out.write ("\\t"); break;
+         default:
+            if (c < 0x20)
+               this.out.write (String.format ("\\u%04x", (int) c));
+            else
+               this.out.write (c);
+         }
+      }
+      this.out.write ('"');
+   }//end json
+
+   private static boolean isNumeric (int sqlType) {
+      switch (sqlType) {
+      case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+      case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   // NaN and Infinity are numeric columns' values that JSON has no literal for.
+   private static boolean isJsonNumber (String s) {
+      return !s.isEmpty () && !s.equals ("NaN") && !s.endsWith ("Infinity");
+   }
+
+}//end ResultRenderer
@@ -11,19 +11,27 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.sql.Timestamp;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.Math;
+import java.math.BigDecimal;
+import java.lang.management.ManagementFactory;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,8 +41,140 @@ import java.lang.Math;
 
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // maps the first column of a row as an int.
+   static final RowMapper<Integer> INT_COLUMN = new RowMapper<Integer>() {
+      public Integer mapRow (ResultSet rs) throws SQLException {
+         return rs.getInt (1);
+      }
+   };
+
+   // maps the first column of a row as a long.
+   static final RowMapper<Long> LONG_COLUMN = new RowMapper<Long>() {
+      public Long mapRow (ResultSet rs) throws SQLException {
+         return rs.getLong (1);
+      }
+   };
+
+   // maps the first column of a row as a timestamp.
+   static final RowMapper<Timestamp> TIMESTAMP_COLUMN = new RowMapper<Timestamp>() {
+      public Timestamp mapRow (ResultSet rs) throws SQLException {
+         return rs.getTimestamp (1);
+      }
+   };
+
+   // the store search radius, which the store index sizes its grid cells against.
+   static final double STORE_SEARCH_RADIUS = 30.0;
+
+   // grid index over the store locations, built on first use.
+   private volatile StoreIndex _storeIndex = null;
+
+   // store-to-warehouse distances for supply request routing, built on first use.
+   private volatile DistanceMatrix _distances = null;
+
+   // warehouses offered, and tried in turn, for a supply request.
+   static final int SUPPLY_ROUTE_CHOICES = 3;
+
+   // queries shared by the menus, headless callers such as WorkloadDriver and PlanCheck.
+   static final String STORES_QUERY =
+      "SELECT " + StoreRow.COLUMNS + " FROM Store S";
+   static final String STORE_QUERY =
+      "SELECT " + StoreRow.COLUMNS + " FROM Store S WHERE S.storeID = ?";
+   static final String WAREHOUSES_QUERY =
+      "SELECT " + WarehouseRow.COLUMNS + " FROM Warehouse W";
+   static final String WAREHOUSE_QUERY =
+      "SELECT " + WarehouseRow.COLUMNS + " FROM Warehouse W WHERE W.WarehouseID = ?";
+   static final String PRODUCT_QUERY =
+      "SELECT " + ProductRow.COLUMNS + " FROM Product P WHERE P.productName = CAST(? AS bpchar) AND P.storeID = ?";
+   static final String SUBMIT_ORDER_QUERY =
+      "WITH stock AS (UPDATE Product SET numberOfUnits = numberOfUnits - ? "
+      + "WHERE storeID = ? AND productName = CAST(? AS bpchar) AND numberOfUnits >= ? RETURNING storeID, productName) "
+      + "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) "
+      + "SELECT ?, stock.storeID, stock.productName, ?, current_timestamp FROM stock "
+      + "RETURNING orderNumber";
+   static final String ORDERS_SINCE_QUERY =
+      "SELECT O.productName, O.customerID, O.orderTime FROM Orders O WHERE O.orderTime >= CAST(? AS timestamp)";
+   static final String SET_PRODUCT_UNITS_QUERY =
+      "UPDATE Product SET numberOfUnits = ? WHERE (storeID = ?) AND (productName = CAST(? AS bpchar))";
+   static final String SET_PRODUCT_PRICE_QUERY =
+      "UPDATE Product SET pricePerUnit = CAST(? AS float) WHERE (storeID = ?) AND (productName = CAST(? AS bpchar))";
+   static final String ADD_PRODUCT_UNITS_QUERY =
+      "UPDATE Product SET numberOfUnits = numberOfUnits+? WHERE (storeID = ?) AND (productName = CAST(? AS bpchar))";
+   static final String USERS_BY_NAME_QUERY =
+      "SELECT * FROM Users U WHERE U.name = CAST(? AS bpchar)";
+   static final String PRODUCTS_QUERY =
+      "SELECT " + ProductRow.COLUMNS + " FROM Product P WHERE P.storeID = ?";
+   // the latest five are picked before the join, so only they are joined to Store.
+   static final String RECENT_ORDERS_QUERY =
+      "SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM (SELECT * FROM Orders WHERE customerID = ? ORDER BY orderTime DESC LIMIT 5) O, Store S WHERE (O.storeID = S.storeID) ORDER BY O.orderTime DESC";
+   static final String RECENT_UPDATES_QUERY =
+      "SELECT U.updateNumber, U.storeID, U.productName, U.updatedOn FROM ProductUpdates U WHERE (U.managerID = ?) ORDER BY updatedOn DESC LIMIT 5";
+   // the popular queries read the per-store rollups kept by the Orders trigger (see OrderRollups),
+   // so their cost depends on the manager's stores, not on the order history.
+   static final String POPULAR_PRODUCTS_QUERY =
+      "SELECT R.productName, SUM(R.numberOfOrders) AS numberOfOrders FROM StoreProductOrderCounts R, Store S WHERE R.storeID = S.storeID AND S.managerID = ? GROUP BY (R.productName) ORDER BY SUM(R.numberOfOrders) DESC LIMIT 5";
+   static final String POPULAR_CUSTOMERS_QUERY =
+      "SELECT U.name, SUM(R.numberOfOrders) AS numberOfOrders FROM StoreCustomerOrderCounts R, Store S, Users U WHERE R.storeID = S.storeID AND S.managerID = ? AND U.userID = R.customerID GROUP BY (U.userID) ORDER BY SUM(R.numberOfOrders) DESC LIMIT 5";
+
+   // query metrics operation name of each user menu choice.
+   private static final String[] MENU_OPERATIONS = {
+      "menu", "viewStores", "viewProducts", "placeOrder", "viewRecentOrders", "updateProduct",
+      "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers", "placeProductSupplyRequests",
+      "checkManagerOrderInfo", "adminUpdate", ManagerDashboard.OPERATION
+   };
+
+   // rows per statement in insertRows.
+   static final int MAX_ROWS_PER_INSERT = 64;
+
+   // orders listed per page by checkManagerOrderInfo.
+   static final int ORDER_PAGE_SIZE = Integer.getInteger("retail.orderPageSize", 20);
+
+   // orders placed and rejected by submitOrder, for measuring contention.
+   private final AtomicLong _ordersPlaced = new AtomicLong ();
+   private final AtomicLong _ordersRejected = new AtomicLong ();
+
+   // chain-wide approximate top products and customers over a sliding window,
+   // seeded from Orders when Retail starts and fed by submitOrder afterwards.
+   private final HeavyHitters<String> _hotProducts;
+   private final HeavyHitters<Integer> _topCustomers;
+
+   // Product rows and per-store listings, invalidated by the writes made here.
+   private final ProductCache _productCache;
+
+   // writes ProductUpdates rows in batches from a background thread.
+   private AuditWriter _audit = null;
+
+   // how long removeProduct waits for the queued ProductUpdates rows.
+   private static final long AUDIT_FLUSH_MILLIS = 10000;
+
+   // owns the stock counts and writes orders behind when retail.inventory.writeBehind is set.
+   private InventoryEngine _inventory = null;
+
+   // places supply requests for products running low when retail.restock.scan is set.
+   private LowStockScanner _restock = null;
+
+   // runs the manager dashboard queries in parallel, each on its own pooled connection.
+   private ManagerDashboard _dashboard = null;
+
+   // how executeQueryAndPrintResult and the menus show results.
+   static final ResultRenderer.Format CONSOLE_FORMAT =
+      ResultRenderer.Format.valueOf(System.getProperty("retail.output.format", "table").toUpperCase());
+
+   // orders read per query when a manager's orders are exported.
+   static final int EXPORT_PAGE_SIZE = 1000;
+
+   // rows fetched per round trip when a query result is streamed.
+   private int _fetchSize = Integer.getInteger("retail.fetchSize", 1000);
+
+   // cursors executeQueryAndStream has open on this thread; a handler may stream another
+   // query on the same pinned connection, which needs a cursor name of its own.
+   private static final ThreadLocal<int[]> _streamDepth = new ThreadLocal<int[]>() {
+      protected int[] initialValue () {
+         return new int[1];
+      }
+   };
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -51,6 +191,21 @@ public class Retail {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Retail(String dbname, String dbport, String user, String passwd) throws SQLException {
+      int hitterCapacity = Integer.getInteger("retail.heavyHitters.capacity", 200);
+      long hitterWindow = Long.getLong("retail.heavyHitters.windowMinutes", 60L) * 60000L;
+      int hitterEpochs = Integer.getInteger("retail.heavyHitters.epochs", 12);
+      this._hotProducts = new HeavyHitters<String>(hitterCapacity, hitterWindow, hitterEpochs);
+      this._topCustomers = new HeavyHitters<Integer>(hitterCapacity, hitterWindow, hitterEpochs);
+      this._productCache = new ProductCache(new ProductCache.Loader() {
+         public ProductRow loadProduct (int storeID, String productName) throws SQLException {
+            return executeQueryForObject (PRODUCT_QUERY, ProductRow.MAPPER, productName, storeID);
+         }
+
+         public List<ProductRow> loadProducts (int storeID) throws SQLException {
+            return executeQueryForList (PRODUCTS_QUERY, ProductRow.MAPPER, storeID);
+         }
+      }, Integer.getInteger("retail.productCache.rows", 10000),
+         Long.getLong("retail.productCache.ttlSeconds", 30L) * 1000L);
 
       System.out.print("Connecting to database...");
       try{
@@ -58,8 +213,38 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // create the connection pool and open the first physical connection
+         this._pool = new ConnectionPool(url, user, passwd,
+                                         Integer.getInteger("retail.pool.maxSize", 8),
+                                         Integer.getInteger("retail.pool.minIdle", 1),
+                                         Long.getLong("retail.pool.maxWaitMillis", 30000L),
+                                         Long.getLong("retail.pool.idleTimeoutMillis", 600000L),
+                                         Long.getLong("retail.pool.maxLifetimeMillis", 1800000L),
+                                         Integer.getInteger("retail.statementCache.size", 64));
+         this._pool.release(this._pool.borrow());
+         seedHeavyHitters();
+         QueryMetrics.start();
+         registerProductCache();
+         this._audit = new AuditWriter(this,
+                                       Integer.getInteger("retail.audit.queueSize", 10000),
+                                       Integer.getInteger("retail.audit.batchSize", 256),
+                                       Long.getLong("retail.audit.maxWaitMillis", 1000L),
+                                       new File(System.getProperty("retail.audit.rejectFile", "audit-rejected.txt")));
+         if (Boolean.getBoolean("retail.inventory.writeBehind"))
+            this._inventory = new InventoryEngine(this,
+                                                  new File(System.getProperty("retail.inventory.journalDir", "inventory-journal")),
+                                                  !"false".equals(System.getProperty("retail.inventory.fsync")),
+                                                  Long.getLong("retail.inventory.flushMillis", 100L),
+                                                  Integer.getInteger("retail.inventory.orderNumberBlock", 100),
+                                                  new File(System.getProperty("retail.inventory.rejectFile", "inventory-rejected.txt")));
+         this._dashboard = new ManagerDashboard(this, Integer.getInteger("retail.dashboard.threads", 4));
+         if (Boolean.getBoolean("retail.restock.scan")){
+            this._restock = new LowStockScanner(this,
+                                                Integer.getInteger("retail.restock.minUnits", 10),
+                                                Integer.getInteger("retail.restock.restockTo", 100),
+                                                Integer.getInteger("retail.restock.batchSize", 1000));
+            this._restock.start(Long.getLong("retail.restock.intervalSeconds", 60L) * 1000L);
+         }
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -69,163 +254,1128 @@ public class Retail {
    }//end Retail
 
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+   public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   /**
+    * Returns the spatial index over the Store table, building it from the
+    * database the first time it is needed.
+    *
+    * @return the store index
+    * @throws java.sql.SQLException when the stores cannot be read
+    */
+   public StoreIndex getStoreIndex () throws SQLException {
+      StoreIndex index = this._storeIndex;
+      if (index == null) {
+         synchronized (this) {
+            index = this._storeIndex;
+            if (index == null) {
+               List<StoreRow> stores = executeQueryForList (STORES_QUERY, StoreRow.MAPPER);
+               index = new StoreIndex (StoreIndex.cellSizeFor (stores, STORE_SEARCH_RADIUS));
+               for (StoreRow store : stores)
+                  index.put (store);
+               this._storeIndex = index;
+            }
+         }
+      }
+      return index;
+   }//end getStoreIndex
+
+   /**
+    * Re-reads one store and applies it to the store index: a new or moved
+    * store is (re)indexed and a deleted one is dropped.  Call this after
+    * any change to a Store row.
+    *
+    * @param storeID the store that changed
+    * @return the current store row, or null if the store no longer exists
+    * @throws java.sql.SQLException when the store cannot be read
+    */
+   public StoreRow refreshStore (int storeID) throws SQLException {
+      StoreRow store = executeQueryForObject (STORE_QUERY, StoreRow.MAPPER, storeID);
+      DistanceMatrix distances = this._distances;
+      if (store == null) {
+         getStoreIndex ().remove (storeID);
+         if (distances != null)
+            distances.removeStore (storeID);
+      }else {
+         getStoreIndex ().put (store);
+         if (distances != null)
+            distances.putStore (store);
+      }
+      return store;
+   }//end refreshStore
+
+   /**
+    * Returns the store-to-warehouse distance matrix, building it from the
+    * database the first time it is needed.
+    *
+    * @return the distance matrix
+    * @throws java.sql.SQLException when the stores or warehouses cannot be read
+    */
+   public DistanceMatrix getDistanceMatrix () throws SQLException {
+      DistanceMatrix distances = this._distances;
+      if (distances == null) {
+         synchronized (this) {
+            distances = this._distances;
+            if (distances == null) {
+               distances = new DistanceMatrix ();
+               for (WarehouseRow warehouse : executeQueryForList (WAREHOUSES_QUERY, WarehouseRow.MAPPER))
+                  distances.putWarehouse (warehouse);
+               for (StoreRow store : executeQueryForList (STORES_QUERY, StoreRow.MAPPER))
+                  distances.putStore (store);
+               this._distances = distances;
+            }
+         }
+      }
+      return distances;
+   }//end getDistanceMatrix
+
+   /**
+    * Re-reads one warehouse and applies it to the distance matrix.  Call
+    * this after any change to a Warehouse row.
+    *
+    * @param warehouseID the warehouse that changed
+    * @return the current warehouse row, or null if it no longer exists
+    * @throws java.sql.SQLException when the warehouse cannot be read
+    */
+   public WarehouseRow refreshWarehouse (int warehouseID) throws SQLException {
+      WarehouseRow warehouse = executeQueryForObject (WAREHOUSE_QUERY, WarehouseRow.MAPPER, warehouseID);
+      if (warehouse == null)
+         getDistanceMatrix ().removeWarehouse (warehouseID);
+      else
+         getDistanceMatrix ().putWarehouse (warehouse);
+      return warehouse;
+   }//end refreshWarehouse
+
+   /**
+    * Adds a warehouse with the next free ID.
+    *
+    * @param area the floor area
+    * @param latitude the latitude
+    * @param longitude the longitude
+    * @return the new warehouse ID
+    * @throws java.sql.SQLException when the warehouse cannot be written
+    */
+   public int addWarehouse (int area, double latitude, double longitude) throws SQLException {
+      String query = "INSERT INTO Warehouse (WarehouseID, area, latitude, longitude) "
+                     + "SELECT COALESCE(MAX(WarehouseID), 0) + 1, ?, CAST(? AS numeric), CAST(? AS numeric) FROM Warehouse RETURNING WarehouseID";
+      int warehouseID = executeQueryForObject (query, INT_COLUMN, area, latitude, longitude);
+      refreshWarehouse (warehouseID);
+      return warehouseID;
+   }//end addWarehouse
+
+   /**
+    * @param storeID the store to supply
+    * @param k the number of warehouses wanted
+    * @return at most k warehouses, nearest to the store first
+    * @throws java.sql.SQLException when the store or the matrix cannot be read
+    */
+   public List<DistanceMatrix.Hit> getNearestWarehouses (int storeID, int k) throws SQLException {
+      DistanceMatrix distances = getDistanceMatrix ();
+      if (!distances.hasStore (storeID))
+         refreshStore (storeID);
+      return distances.nearest (storeID, k);
+   }//end getNearestWarehouses
+
+   /**
+    * Places a supply request with the warehouse nearest to the store.  If
+    * that warehouse is gone (removed since the matrix was built) the next
+    * nearest is tried, up to SUPPLY_ROUTE_CHOICES warehouses.
+    *
+    * @param managerID the manager placing the request
+    * @param storeID the store receiving the units
+    * @param productName the product requested
+    * @param units the number of units requested
+    * @return the warehouse the request went to, or -1 if there was none to send it to
+    * @throws java.sql.SQLException when the request cannot be written
+    */
+   public int routeSupplyRequest (int managerID, int storeID, String productName, int units) throws SQLException {
+      for (DistanceMatrix.Hit hit : getNearestWarehouses (storeID, SUPPLY_ROUTE_CHOICES)) {
+         try {
+            submitSupplyRequest (managerID, hit.warehouse.warehouseID, storeID, productName, units);
+            return hit.warehouse.warehouseID;
+         }catch (SQLException e) {
+            // a warehouse that no longer exists moves on to the next one.  The driver gives no
+            // SQLSTATE to tell a foreign key violation apart, so the warehouse is looked up again.
+            if (!isWarehouseGone (hit.warehouse.warehouseID))
+               throw e;
+         }
+      }
+      return -1;
+   }//end routeSupplyRequest
+
+   /**
+    * Checks a warehouse after a write that referenced it failed, dropping
+    * it from the distance matrix if it was deleted.
+    *
+    * @param warehouseID the warehouse written to
+    * @return true if the warehouse no longer exists; false if it does, or cannot be read
+    */
+   public boolean isWarehouseGone (int warehouseID) {
+      try {
+         return refreshWarehouse (warehouseID) == null;
+      }catch (SQLException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Looks a store up in the store index, falling back to the database (and
+    * indexing the result) for stores added since the index was built.
+    *
+    * @param storeID the store to find
+    * @return the store, or null if it does not exist
+    * @throws java.sql.SQLException when the store cannot be read
+    */
+   public StoreRow findStore (int storeID) throws SQLException {
+      StoreRow store = getStoreIndex ().get (storeID);
+      return store != null ? store : refreshStore (storeID);
+   }//end findStore
+
+   /**
+    * @param storeID the store of the product
+    * @param productName the product to look up
+    * @return the product, or null if the store does not carry it
+    * @throws java.sql.SQLException when the product cannot be read
+    */
+   public ProductRow findProduct (int storeID, String productName) throws SQLException {
+      return withInventory (this._productCache.get (storeID, productName));
+   }//end findProduct
+
+   /**
+    * @param storeID the store
+    * @return every product the store carries
+    * @throws java.sql.SQLException when the products cannot be read
+    */
+   public List<ProductRow> listProducts (int storeID) throws SQLException {
+      List<ProductRow> products = this._productCache.list (storeID);
+      if (this._inventory == null)
+         return products;
+      List<ProductRow> current = new ArrayList<ProductRow> (products.size ());
+      for (ProductRow product : products)
+         current.add (withInventory (product));
+      return current;
+   }//end listProducts
+
+   // the product with the write-behind stock count, which may be ahead of the table.
+   private ProductRow withInventory (ProductRow product) {
+      if (product == null || this._inventory == null)
+         return product;
+      Integer units = this._inventory.getUnits (product.storeID, product.productName);
+      return units == null ? product : new ProductRow (product.storeID, product.productName, units, product.pricePerUnit);
+   }
+
+   /**
+    * Adds a product to a store.
+    *
+    * @param storeID the store carrying the product
+    * @param productName the new product
+    * @param units the number of units in stock
+    * @param price the price per unit
+    * @throws java.sql.SQLException when the product cannot be written
+    */
+   public void addProduct (int storeID, String productName, int units, double price) throws SQLException {
+      String query = "INSERT INTO Product (productName, storeID, numberOfUnits, pricePerUnit) VALUES (?, ?, ?, CAST(? AS float))";
+      try {
+         executeUpdate (query, productName, storeID, units, price);
+      }finally {
+         this._productCache.invalidate (storeID, productName);
+      }
+   }//end addProduct
+
+   /**
+    * Removes a product from a store.
+    *
+    * @param storeID the store carrying the product
+    * @param productName the product removed
+    * @return the number of products removed, 0 or 1
+    * @throws java.sql.SQLException when the product cannot be deleted
+    */
+   public int removeProduct (int storeID, String productName) throws SQLException {
+      String query = "DELETE FROM Product P WHERE P.productName = CAST(? AS bpchar) AND P.storeID = ?";
+      if (this._inventory != null)
+         flushInventory ();
+      // queued ProductUpdates rows reference the product; they must be in before the DELETE checks them.
+      if (this._audit != null && !this._audit.flush (AUDIT_FLUSH_MILLIS))
+         throw new SQLException ("Product updates are still being recorded; try again later");
+      try {
+         int removed = executeUpdate (query, productName, storeID);
+         if (removed > 0 && this._inventory != null)
+            this._inventory.forget (storeID, productName);
+         return removed;
+      }finally {
+         this._productCache.invalidate (storeID, productName);
+      }
+   }//end removeProduct
+
+   /**
+    * Deletes a user.  Orders of the user still held by the inventory
+    * engine are flushed first, or their Orders rows would fail the
+    * customerID reference.
+    *
+    * @param userID the user to delete
+    * @return the number of users removed, 0 or 1
+    * @throws java.sql.SQLException when the user cannot be deleted
+    */
+   public int removeUser (int userID) throws SQLException {
+      if (this._inventory != null)
+         flushInventory ();
+      return executeUpdate ("DELETE FROM USERS U WHERE U.userID = ?", userID);
+   }
+
+   /**
+    * Places an order in a single statement: the stock is decremented only if
+    * enough units are left and the order row is inserted in the same
+    * statement, so it is one round trip and one transaction.  Concurrent
+    * orders for the same product queue on the Product row lock and re-check
+    * the stock after it is released, which rules out overselling.  The order
+    * time is taken from the database clock.
+    *
+    * With retail.inventory.writeBehind set, the InventoryEngine reserves the
+    * units in memory instead, and the order row is written by its next
+    * flush.
+    *
+    * @param customerID the ordering user
+    * @param storeID the store the product is ordered from
+    * @param productName the product ordered
+    * @param units the number of units ordered, at least 1
+    * @return the new orderNumber, or -1 if the store does not have enough units
+    * @throws java.sql.SQLException when the order cannot be written
+    */
+   public int submitOrder (int customerID, int storeID, String productName, int units) throws SQLException {
+      if (units <= 0)
+         throw new IllegalArgumentException ("units must be at least 1");
+      Integer orderNumber;
+      try {
+         if (this._inventory != null) {
+            int reserved = this._inventory.placeOrder (customerID, storeID, productName, units);
+            orderNumber = reserved < 0 ? null : reserved;
+         } else {
+            orderNumber = executeQueryForObject (SUBMIT_ORDER_QUERY, INT_COLUMN, units, storeID, productName, units,
+                                                 customerID, units);
+         }
+      }finally {
+         // the stock changed, or was lower than the cached row said.
+         this._productCache.invalidate (storeID, productName);
+      }
+      if (orderNumber == null) {
+         this._ordersRejected.incrementAndGet ();
+         return -1;
+      }
+      this._ordersPlaced.incrementAndGet ();
+      long now = System.currentTimeMillis ();
+      this._hotProducts.offer (productName.trim (), now);
+      this._topCustomers.offer (customerID, now);
+      return orderNumber;
+   }//end submitOrder
+
+   /**
+    * @return how many orders submitOrder placed and rejected for lack of stock
+    */
+   public String getOrderStats () {
+      return String.format ("orders: placed=%d rejectedOutOfStock=%d",
+                            this._ordersPlaced.get (), this._ordersRejected.get ());
+   }
+
+   // counts the orders of the last window in the heavy hitter trackers.
+   private void seedHeavyHitters () {
+      long since = System.currentTimeMillis () - this._hotProducts.getWindowMillis ();
+      try {
+         executeQueryAndStream (ORDERS_SINCE_QUERY, this._fetchSize, new RowHandler () {
+            public void handleRow (ResultSet rs) throws SQLException {
+               long time = rs.getTimestamp (3).getTime ();
+               _hotProducts.offer (rs.getString (1).trim (), time);
+               _topCustomers.offer (rs.getInt (2), time);
+            }
+         }, new Timestamp (since));
+      }catch (SQLException e) {
+         // the trackers only start from the orders placed from now on.
+         System.err.println ("Unable to seed the top product and customer trackers: " + e.getMessage ());
+      }
+   }//end seedHeavyHitters
+
+   /**
+    * @param k the number of products wanted
+    * @return the most ordered product names chain-wide in the sliding
+    *         window, with estimated order counts and error bounds
+    */
+   public List<HeavyHitters.Estimate<String>> getHotProducts (int k) {
+      return this._hotProducts.top (k, System.currentTimeMillis ());
+   }
+
+   /**
+    * @param k the number of customers wanted
+    * @return the user IDs of the customers with the most orders chain-wide
+    *         in the sliding window, with estimated order counts and error bounds
+    */
+   public List<HeavyHitters.Estimate<Integer>> getTopCustomers (int k) {
+      return this._topCustomers.top (k, System.currentTimeMillis ());
+   }
+
+   /**
+    * @return the length of the top product and customer window, in minutes
+    */
+   public long getHeavyHittersWindowMinutes () {
+      return this._hotProducts.getWindowMillis () / 60000L;
+   }
+
+   /**
+    * Returns one page of the orders placed at a manager's stores, newest
+    * first, continuing after a given order.
+    *
+    * Pages are keyed on (orderTime, orderNumber) rather than an OFFSET: each
+    * store contributes at most pageSize orders read backwards from the
+    * Orders(storeID, orderTime, orderNumber) index starting at the key, and
+    * the newest pageSize of those are returned.  A page therefore costs the
+    * same however deep into the history it is.
+    *
+    * @param managerID the manager whose stores are listed
+    * @param storeID only list this store, or null for all the manager's stores
+    * @param from only list orders on or after this day, or null
+    * @param to only list orders on or before this day, or null
+    * @param after the last order of the previous page, or null for the first page
+    * @param pageSize the number of orders per page
+    * @return at most pageSize orders, newest first
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public List<OrderInfoRow> getManagerOrders (int managerID, Integer storeID, java.sql.Date from, java.sql.Date to,
+                                               OrderInfoRow after, int pageSize) throws SQLException {
+      List<Object> params = new ArrayList<Object> ();
+      if (from != null)
+         params.add (from);
+      if (to != null)
+         params.add (to);
+      if (after != null) {
+         params.add (after.orderTime);
+         params.add (after.orderNumber);
+      }
+      params.add (pageSize);
+      params.add (managerID);
+      if (storeID != null)
+         params.add (storeID);
+      params.add (pageSize);
+      String query = managerOrdersQuery (storeID != null, from != null, to != null, after != null);
+      return executeQueryForList (query, OrderInfoRow.MAPPER, params.toArray ());
+   }//end getManagerOrders
+
+   /**
+    * Reads a manager's recent updates, popular products and customers and
+    * newest orders at the same time.
+    *
+    * @param managerID the manager whose stores are reported on
+    * @return the combined report
+    * @throws java.sql.SQLException when one of the queries fails
+    */
+   public ManagerDashboard.Report getManagerDashboard (int managerID) throws SQLException {
+      return this._dashboard.load (managerID);
+   }
+
+   /**
+    * Writes all the orders getManagerOrders() would page through, newest
+    * first, reading them EXPORT_PAGE_SIZE at a time.
+    *
+    * @param managerID the manager whose stores are listed
+    * @param storeID only list this store, or null for all the manager's stores
+    * @param from only list orders on or after this day, or null
+    * @param to only list orders on or before this day, or null
+    * @param renderer where the orders are written; finishing it is left to the caller
+    * @return the number of orders written
+    * @throws java.sql.SQLException when the orders cannot be read
+    * @throws java.io.IOException when the renderer cannot write
+    */
+   public long exportManagerOrders (int managerID, Integer storeID, java.sql.Date from, java.sql.Date to,
+                                    ResultRenderer renderer) throws SQLException, IOException {
+      renderer.columns ("orderNumber", "name", "storeID", "productName", "orderTime");
+      long written = 0;
+      OrderInfoRow last = null;
+      while (true) {
+         List<OrderInfoRow> page = getManagerOrders (managerID, storeID, from, to, last, EXPORT_PAGE_SIZE);
+         for (OrderInfoRow order : page)
+            renderer.row (order.orderNumber, order.customerName, order.storeID, order.productName, order.orderTime);
+         written += page.size ();
+         if (page.size () < EXPORT_PAGE_SIZE)
+            return written;
+         last = page.get (page.size () - 1);
+      }
+   }//end exportManagerOrders
+
+   /**
+    * Builds the getManagerOrders query for a combination of filters.  The
+    * parameters are, in order: [from] [to] [after orderTime, after
+    * orderNumber] pageSize managerID [storeID] pageSize.
+    */
+   static String managerOrdersQuery (boolean byStore, boolean from, boolean to, boolean after) {
+      StringBuilder query = new StringBuilder (
+         "SELECT " + OrderInfoRow.COLUMNS + " FROM Store S CROSS JOIN LATERAL ("
+         + "SELECT O.orderNumber, O.customerID, O.storeID, O.productName, O.orderTime FROM Orders O "
+         + "WHERE O.storeID = S.storeID");
+      if (from)
+         query.append (" AND O.orderTime >= CAST(? AS date)");
+      if (to)
+         query.append (" AND O.orderTime < CAST(? AS date) + 1");
+      if (after)
+         query.append (" AND (O.orderTime, O.orderNumber) < (CAST(? AS timestamp), ?)");
+      query.append (" ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?) O, Users U "
+                    + "WHERE S.managerID = ? AND U.userID = O.customerID");
+      if (byStore)
+         query.append (" AND S.storeID = ?");
+      query.append (" ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?");
+      return query.toString ();
+   }//end managerOrdersQuery
+
+   /**
+    * Sets the number of units of a product and records the change in
+    * ProductUpdates.
+    *
+    * @param managerID the manager or admin making the change
+    * @param storeID the store of the product
+    * @param productName the product changed
+    * @param units the new number of units
+    * @throws java.sql.SQLException when the change cannot be written
+    */
+   public void updateProductUnits (int managerID, int storeID, String productName, int units) throws SQLException {
+      try {
+         if (this._inventory != null)
+            this._inventory.setUnits (storeID, productName, units);
+         else
+            executeUpdate (SET_PRODUCT_UNITS_QUERY, units, storeID, productName);
+      }finally {
+         this._productCache.invalidate (storeID, productName);
+      }
+      recordProductUpdate (managerID, storeID, productName);
+   }//end updateProductUnits
+
+   /**
+    * Sets the price per unit of a product and records the change in
+    * ProductUpdates.
+    *
+    * @param managerID the manager or admin making the change
+    * @param storeID the store of the product
+    * @param productName the product changed
+    * @param price the new price per unit
+    * @throws java.sql.SQLException when the change cannot be written
+    */
+   public void updateProductPrice (int managerID, int storeID, String productName, double price) throws SQLException {
+      try {
+         executeUpdate (SET_PRODUCT_PRICE_QUERY, price, storeID, productName);
+      }finally {
+         this._productCache.invalidate (storeID, productName);
+      }
+      recordProductUpdate (managerID, storeID, productName);
+   }//end updateProductPrice
+
+   // queues a ProductUpdates row for a change a manager just made.
+   private void recordProductUpdate (int managerID, int storeID, String productName) throws SQLException {
+      this._audit.record (managerID, storeID, productName);
+   }//end recordProductUpdate
+
+   /**
+    * Records a supply request to a warehouse and adds the requested units
+    * to the store's stock.
+    *
+    * @param managerID the manager placing the request
+    * @param warehouseID the warehouse supplying the units
+    * @param storeID the store receiving the units
+    * @param productName the product requested
+    * @param units the number of units requested
+    * @throws java.sql.SQLException when the request cannot be written
+    */
+   public void submitSupplyRequest (int managerID, int warehouseID, int storeID, String productName, int units) throws SQLException {
+      String query1 = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)";
+      executeUpdate (query1, managerID, warehouseID, storeID, productName, units);
+      addStock (storeID, productName, units);
+   }//end submitSupplyRequest
+
+   /**
+    * Adds units to a store's stock, through the write-behind inventory
+    * engine when it is on.
+    *
+    * @param storeID the store receiving the units
+    * @param productName the product restocked
+    * @param units the number of units added
+    * @throws java.sql.SQLException when the stock cannot be written
+    */
+   public void addStock (int storeID, String productName, int units) throws SQLException {
+      try {
+         if (this._inventory != null)
+            this._inventory.addUnits (storeID, productName, units);
+         else
+            executeUpdate (ADD_PRODUCT_UNITS_QUERY, units, storeID, productName);
+      }finally {
+         this._productCache.invalidate (storeID, productName);
+      }
+   }//end addStock
+
+   /**
+    * Drops a product from the cache after it was written elsewhere.
+    *
+    * @param storeID the store carrying the product
+    * @param productName the product written
+    */
+   public void invalidateProduct (int storeID, String productName) {
+      this._productCache.invalidate (storeID, productName);
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * The statement is prepared once per connection and cached by its SQL
+    * text, so callers pass a template with ? placeholders and the values
+    * separately instead of formatting them into the string.
+    *
+    * @param sql the input SQL template
+    * @param params the values bound to the ? placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         // fetches the cached statement object and binds the parameters
+         PreparedStatement stmt = conn.prepare (sql);
+         bind (stmt, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         rowCount = stmt.executeUpdate ();
+         return rowCount;
+      }finally {
+         this._pool.release (conn);
+         QueryMetrics.record (sql, start, rowCount, rowCount < 0);
+      }
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out, in the retail.output.format format (table, csv or json).
+    * Rows are streamed through executeQueryAndStream into one buffer, so
+    * large results are printed without being held in memory.
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the ? placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ResultRenderer renderer = ResultRenderer.toConsole (CONSOLE_FORMAT);
+      int rows = executeQueryAndStream (query, this._fetchSize, renderer, params);
+      try {
+         renderer.finish ();
+      }catch (IOException e) {
+         throw new SQLException ("Unable to write the result: " + e.getMessage (), e);
+      }
+      return rows;
+   }//end executeQuery
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Inserts rows with multi-row INSERT statements.  The rows are split into
+    * chunks of a power of two, at most MAX_ROWS_PER_INSERT, so only a few
+    * statement texts are ever prepared and cached.  Each chunk commits on
+    * its own unless the connection is pinned inside a transaction.
+    *
+    * @param table the table inserted into
+    * @param columns the column list, e.g. "managerID, storeID"
+    * @param rows the values of each row, in column order
+    * @return the number of rows inserted
+    * @throws java.sql.SQLException when a chunk cannot be inserted
+    */
+   public int insertRows (String table, String columns, List<Object[]> rows) throws SQLException {
+      int inserted = 0;
+      for (int i = 0; i < rows.size (); ) {
+         int n = Math.min (Integer.highestOneBit (rows.size () - i), MAX_ROWS_PER_INSERT);
+         int width = rows.get (i).length;
+         StringBuilder sql = new StringBuilder ("INSERT INTO ").append (table).append (" (").append (columns).append (") VALUES ");
+         Object[] params = new Object[n * width];
+         for (int r = 0; r < n; ++r) {
+            sql.append (r == 0 ? "(" : ", (");
+            for (int c = 0; c < width; ++c)
+               sql.append (c == 0 ? "?" : ", ?");
+            sql.append (')');
+            System.arraycopy (rows.get (i + r), 0, params, r * width, width);
+         }
+         inserted += executeUpdate (sql.toString (), params);
+         i += n;
+      }
+      return inserted;
+   }//end insertRows
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * every row to a callback as it arrives.
+    *
+    * The query is opened as a server-side cursor (DECLARE ... NO SCROLL
+    * CURSOR) inside a transaction and read with FETCH FORWARD, fetchSize
+    * rows per round trip, so memory use stays flat no matter how many rows
+    * match.  This only uses SQL, so it works with any driver, the bundled
+    * pg73jdbc3 included.  Statements a cursor cannot hold (EXPLAIN, SHOW)
+    * are read whole.  When the connection is already inside a transaction
+    * (see pinConnection()) the query joins it instead of committing on its
+    * own, and the cursor is closed when the rows are read.
+    *
+    * @param query the input query template
+    * @param fetchSize the number of rows fetched per round trip
+    * @param handler the callback invoked for every row
+    * @param params the values bound to the ? placeholders, in order
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
       int rowCount = 0;
+      boolean failed = true;
+      PooledConnection conn = this._pool.borrow ();
+      int[] depth = _streamDepth.get ();
+      String cursor = "retail_stream_" + depth[0];
+      ++depth[0];
+      try {
+         Connection c = conn.getConnection ();
+         boolean ownTransaction = c.getAutoCommit ();
+         if (ownTransaction)
+            c.setAutoCommit (false);
+         boolean declared = false;
+         try {
+            if (isCursorQuery (query)) {
+               PreparedStatement declare = conn.prepare ("DECLARE " + cursor + " NO SCROLL CURSOR FOR " + query);
+               bind (declare, params);
+               declare.execute ();
+               declared = true;
+               int batch = Math.max (fetchSize, 1);
+               String next = "FETCH FORWARD " + batch + " FROM " + cursor;
+               Statement fetch = c.createStatement ();
+               try {
+                  int fetched;
+                  do {
+                     fetched = handleRows (fetch.executeQuery (next), handler);
+                     rowCount += fetched;
+                  } while (fetched == batch);
+                  if (!ownTransaction) {
+                     declared = false;
+                     fetch.execute ("CLOSE " + cursor);
+                  }
+               }finally {
+                  fetch.close ();
+               }
+            }else {
+               PreparedStatement stmt = conn.prepare (query);
+               bind (stmt, params);
+               rowCount = handleRows (stmt.executeQuery (), handler);
+            }
+            if (ownTransaction)
+               c.commit ();
+            failed = false;
+            return rowCount;
+         }catch (SQLException | RuntimeException e) {
+            if (ownTransaction)
+               c.rollback ();
+            else if (declared)
+               closeCursor (c, cursor);
+            throw e;
+         }finally {
+            if (ownTransaction)
+               c.setAutoCommit (true);
+         }
+      }finally {
+         --depth[0];
+         this._pool.release (conn);
+         QueryMetrics.record (query, start, rowCount, failed);
+      }
+   }//end executeQueryAndStream
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   // closes a cursor left open in a caller's transaction by a failed stream; an aborted
+   // transaction refuses the CLOSE but drops the cursor with it anyway.
+   private static void closeCursor (Connection c, String cursor) {
+      try {
+         Statement stmt = c.createStatement ();
+         try {
+            stmt.execute ("CLOSE " + cursor);
+         }finally {
+            stmt.close ();
+         }
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+   // hands every row of a result to the callback, closes it and returns the number of rows.
+   private static int handleRows (ResultSet rs, RowHandler handler) throws SQLException {
+      int rows = 0;
+      try {
+         while (rs.next ()){
+            handler.handleRow (rs);
+            ++rows;
+         }//end while
+      }finally {
+         rs.close ();
+      }
+      return rows;
+   }
+
+   // whether DECLARE CURSOR takes the statement: plain queries, not EXPLAIN, SHOW or DML.
+   private static boolean isCursorQuery (String query) {
+      String head = StatementCache.leadingKeyword (query);
+      return head.equals ("SELECT") || head.equals ("WITH") || head.equals ("VALUES") || head.equals ("TABLE");
+   }
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the ? placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            result = readResult (rs);
+            return result;
+         }finally {
+            rs.close ();
+         }
+      }finally {
+         this._pool.release (conn);
+         QueryMetrics.record (query, start, result == null ? 0 : result.size (), result == null);
+      }
+   }//end executeQueryAndReturnResult
 
+   // reads the remaining rows of a result set as lists of column strings.
+   static List<List<String>> readResult (ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the ? placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean failed = true;
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            // iterates through the result set and count nuber of results.
+            while (rs.next()){
+               rowCount++;
+            }//end while
+            failed = false;
+            return rowCount;
+         }finally {
+            rs.close ();
+         }
+      }finally {
+         this._pool.release (conn);
+         QueryMetrics.record (query, start, rowCount, failed);
+      }
+   }
 
-       int rowCount = 0;
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and maps every row to a typed
+    * object, reading the columns directly as int / double / timestamp.
+    *
+    * @param query the input query template
+    * @param mapper builds one object per row
+    * @param params the values bound to the ? placeholders, in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryForList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<T> result = new ArrayList<T>();
+      boolean failed = true;
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            while (rs.next()){
+               result.add(mapper.mapRow (rs));
+            }//end while
+            failed = false;
+            return result;
+         }finally {
+            rs.close ();
+         }
+      }finally {
+         this._pool.release (conn);
+         QueryMetrics.record (query, start, result.size (), failed);
+      }
+   }//end executeQueryForList
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) that is
+    * expected to return at most one row, mapped to a typed object.
+    *
+    * @param query the input query template
+    * @param mapper builds the object from the row
+    * @param params the values bound to the ? placeholders, in order
+    * @return the mapped first row, or null when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean failed = true;
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            T row = null;
+            if (rs.next ()) {
+               row = mapper.mapRow (rs);
+               rowCount = 1;
+            }
+            failed = false;
+            return row;
+         }finally {
+            rs.close ();
+         }
+      }finally {
+         this._pool.release (conn);
+         QueryMetrics.record (query, start, rowCount, failed);
+      }
+   }//end executeQueryForObject
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.
+    *
+    * currval() is private to a database session, so the INSERT that
+    * advanced the sequence and this call must run on the same physical
+    * connection: wrap both in pinConnection() / unpinConnection().
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+      PooledConnection conn = this._pool.borrow ();
+      try {
+         PreparedStatement stmt = conn.prepare ("SELECT currval(CAST(? AS regclass))");
+         stmt.setString (1, sequence);
+         ResultSet rs = stmt.executeQuery ();
+         try {
+            if (rs.next())
+               return rs.getInt(1);
+            return -1;
+         }finally {
+            rs.close ();
+         }
+      }finally {
+         this._pool.release (conn);
+      }
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   // binds the helper parameters to the ? placeholders of a statement.  A Double goes
+   // as a numeric (NaN and infinities as text): old drivers name setDouble's type
+   // "double", which PREPARE rejects.
+   static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else if (isFinite (params[i]))
+            stmt.setBigDecimal (i + 1, BigDecimal.valueOf ((Double) params[i]));
+         else if (params[i] instanceof Double)
+            stmt.setString (i + 1, params[i].toString ());
+         else
+            stmt.setObject (i + 1, params[i]);
+      }
+   }
+
+   private static boolean isFinite (Object param) {
+      return param instanceof Double && !((Double) param).isNaN () && !((Double) param).isInfinite ();
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * @param param a value passed to the query helpers
+    * @return the type bind() gives the value in a server-side PREPARE; text
+    *         for strings, so the SQL has to CAST where the type matters
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
+   static String bindType (Object param) {
+      if (param instanceof Integer)
+         return "integer";
+      if (param instanceof Long)
+         return "int8";
+      if (isFinite (param) || param instanceof BigDecimal)
+         return "numeric";
+      if (param instanceof Timestamp)
+         return "timestamptz";
+      if (param instanceof java.sql.Date)
+         return "date";
+      if (param instanceof Boolean)
+         return "boolean";
+      return "text";
+   }
+
+   /**
+    * @return whether the database answers a trivial query, for telling
+    *         failed statements from a lost database when no SQLSTATE is given
+    */
+   public boolean isReachable () {
+      try {
+         executeQueryForObject ("SELECT 1", INT_COLUMN);
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Pins one pooled connection to the calling thread.  Every helper called
+    * on this thread uses that connection until unpinConnection() is called.
+    *
+    * @return the pinned connection, for work the helpers do not cover
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection pinConnection () throws SQLException {
+      return this._pool.pin ();
+   }
+
+   /**
+    * Returns the connection pinned by pinConnection() to the pool.
+    */
+   public void unpinConnection () {
+      this._pool.unpin ();
+   }
+
+   /**
+    * @return a one-line summary of the connection pool counters
+    */
+   public String getPoolStats () {
+      return this._pool.getStats ();
+   }
+
+   /**
+    * @return the prepared statement cache hit, miss and eviction counters
+    */
+   public StatementCache.Counters getStatementCacheStats () {
+      return this._pool.getStatementCounters ();
+   }
+
+   /**
+    * @return the product cache hit, miss, eviction and invalidation counters
+    */
+   public ProductCache getProductCacheStats () {
+      return this._productCache;
+   }
+
+   // exposes the product cache over JMX; a second Retail in the process keeps the first one's.
+   private void registerProductCache () {
+      try {
+         ManagementFactory.getPlatformMBeanServer ().registerMBean (
+            this._productCache, new ObjectName ("Retail:type=ProductCache"));
+      }catch (InstanceAlreadyExistsException e) {
          // ignored.
-      }//end try
+      }catch (Exception e) {
+         System.err.println ("Unable to register the product cache bean: " + e.getMessage ());
+      }
+   }//end registerProductCache
+
+   /**
+    * @return the audit writer's queue, batch and reject counters
+    */
+   public AuditWriter getAuditStats () {
+      return this._audit;
+   }
+
+   /**
+    * @return the write-behind inventory counters, or null when it is off
+    */
+   public InventoryEngine getInventoryStats () {
+      return this._inventory;
+   }
+
+   /**
+    * @return the low-stock scanner counters, or null when it is off
+    */
+   public LowStockScanner getRestockStats () {
+      return this._restock;
+   }
+
+   // writes the stock changes and orders held by the inventory engine to the database.
+   void flushInventory () throws SQLException {
+      try {
+         this._inventory.flush ();
+      }catch (IOException e) {
+         throw new SQLException ("Unable to rotate the inventory journal: " + e.getMessage (), e);
+      }
+   }
+
+   /**
+    * Method to close the pooled connections.
+    */
+   public void cleanup(){
+      if (this._restock != null){
+         this._restock.close ();
+         this._restock = null;
+      }
+      if (this._dashboard != null){
+         this._dashboard.close ();
+         this._dashboard = null;
+      }
+      if (this._audit != null){
+         this._audit.close ();
+         this._audit = null;
+      }
+      if (this._inventory != null){
+         this._inventory.close ();
+         this._inventory = null;
+      }
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+      // the last dump holds the statements run by the shutdown above.
+      QueryMetrics.stop ();
    }//end cleanup
 
    /**
@@ -263,14 +1413,20 @@ public class Retail {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
+            Session session = null;
+            int choice = readChoice();
+            String scope = QueryMetrics.enter(choice == 1 ? "CreateUser" : "LogIn");
+            try {
+               switch (choice){
+                  case 1: CreateUser(esql); break;
+                  case 2: session = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            }finally {
+               QueryMetrics.exit(scope);
+            }
+            if (session != null) {
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("MAIN MENU");
@@ -288,22 +1444,32 @@ public class Retail {
                 System.out.println("9. Place Product Supply Request to Warehouse");
 		System.out.println("10. Check Manager Order Info");
 		System.out.println("11. Admin Update");
+		System.out.println("12. View Manager Dashboard");
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewStores(esql); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql); break;
-                   case 4: viewRecentOrders(esql); break;
-                   case 5: updateProduct(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewPopularProducts(esql); break;
-                   case 8: viewPopularCustomers(esql); break;
-                   case 9: placeProductSupplyRequests(esql); break;
-		   case 10: checkManagerOrderInfo(esql); break;
-		   case 11: adminUpdate(esql); break;
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                int userChoice = readChoice();
+                // statements run by the menu function are recorded under its name
+                String userScope = QueryMetrics.enter(userChoice >= 0 && userChoice < MENU_OPERATIONS.length
+                                                      ? MENU_OPERATIONS[userChoice] : "menu");
+                try {
+                   switch (userChoice){
+                      case 1: viewStores(esql, session); break;
+                      case 2: viewProducts(esql, session); break;
+                      case 3: placeOrder(esql, session); break;
+                      case 4: viewRecentOrders(esql, session); break;
+                      case 5: updateProduct(esql, session); break;
+                      case 6: viewRecentUpdates(esql, session); break;
+                      case 7: viewPopularProducts(esql, session); break;
+                      case 8: viewPopularCustomers(esql, session); break;
+                      case 9: placeProductSupplyRequests(esql, session); break;
+                      case 10: checkManagerOrderInfo(esql, session); break;
+                      case 11: adminUpdate(esql, session); break;
+                      case 12: viewManagerDashboard(esql, session); break;
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                }finally {
+                   QueryMetrics.exit(userScope);
                 }
               }
             }
@@ -367,9 +1533,9 @@ public class Retail {
          
          String type="customer";
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+			String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, CAST(? AS numeric), CAST(? AS numeric), ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, Double.valueOf(latitude), Double.valueOf(longitude), type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -379,45 +1545,16 @@ public class Retail {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the logged-in user or null if the user does not exist
     **/
-   public static String getUserType(Retail esql) {
-       try {
-	   /*
-   	   - Returns a string of a users type ("manager", "customer", "admin")
- 	   - Matches globalName to User, and retrieves the type (in SQL)
-   	   */
-	   String query = String.format("SELECT U.type FROM USERS U WHERE U.name = '%s'", globalName);
-           List<List<String>> userType = esql.executeQueryAndReturnResult(query);
-           String userTypeString = "";
-	   if (userType.size() != 0) {
-              userTypeString = userType.get(0).get(0);
-           }
-           else {
-              return "";
-           }
-           return userTypeString.trim();
-        }
-        catch (Exception e){
-           System.err.println(e.getMessage());
-           return null;
-        }
-   }  
-
-   public static String globalName = "";
-   public static String LogIn(Retail esql){
+   public static Session LogIn(Retail esql){
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
-	 globalName = name;
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return name;
-         return null;
+         return Session.open(esql, name, password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -426,20 +1563,13 @@ public class Retail {
 
 // Rest of the functions definition go in here
 
-   public static void viewStores(Retail esql) {
+   public static void viewStores(Retail esql, Session session) {
      try {
-          String query1 = String.format("SELECT U.latitude, U.longitude FROM Users U WHERE U.name = '%s'", globalName);
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-	  double userLat = Double.parseDouble(temp.get(0).get(0));
-	  double userLong = Double.parseDouble(temp.get(0).get(1));
-	    
-	  String query2 = String.format("SELECT S.latitude, S.longitude, S.storeID, S.name FROM Store S");
-	  temp = esql.executeQueryAndReturnResult(query2);
+	  List<StoreIndex.Hit> stores = esql.getStoreIndex().withinRadius(session.getLatitude(), session.getLongitude(), STORE_SEARCH_RADIUS);
 	  System.out.println("Store ID\tStore name\t\tLatitude\tLongitude");
-          for (List<String> i : temp) {
-	     if (esql.calculateDistance (userLat, userLong, Double.parseDouble(i.get(0)), Double.parseDouble(i.get(1))) <= 30){
-		System.out.println(i.get(2) + "\t\t" + i.get(3) + "\t" + i.get(0) + "\t" +  i.get(1));
-	     }
+          for (StoreIndex.Hit hit : stores) {
+	     StoreRow store = hit.store;
+	     System.out.println(store.storeID + "\t\t" + store.name + "\t" + store.latitude + "\t" +  store.longitude);
 	  }
       }
       catch (Exception e) {
@@ -447,53 +1577,58 @@ public class Retail {
       }
    }
 
-   public static void viewProducts(Retail esql) {
+   public static void viewProducts(Retail esql, Session session) {
       try {
-	  String query1 = String.format("SELECT COUNT(*) FROM Store S");
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-          int storeMax = Integer.parseInt(temp.get(0).get(0));
+	  String query1 = "SELECT COUNT(*) FROM Store S";
+          int storeMax = esql.executeQueryForObject(query1, INT_COLUMN);
 	  boolean validStoreID = false;
-	  String storeID = "";
+	  int storeID = 0;
           while (!validStoreID){
               System.out.print("\tEnter store ID: ");
-              storeID = in.readLine();
-              if (Integer.parseInt(storeID) <= storeMax){
+              storeID = Integer.parseInt(in.readLine());
+              if (storeID <= storeMax){
                   validStoreID = true;
               } else {
                   System.out.println("\tInvalid store ID. ");
               }
           }
-	  String query = String.format("SELECT * FROM Product P WHERE P.storeID = '%s'", storeID);
-	  
-          int rowCount = esql.executeQueryAndPrintResult(query);
+          //Managers and admins may write the list to a file instead
+          String exportFile = "";
+          if (!session.getType().equals("customer")) {
+              System.out.print("\tExport to file (.csv, .json or text; blank to show here): ");
+              exportFile = in.readLine().trim();
+          }
+          ResultRenderer renderer = exportFile.isEmpty() ? ResultRenderer.toConsole(CONSOLE_FORMAT)
+                                  : ResultRenderer.toFile(new File(exportFile), ResultRenderer.Format.forFile(exportFile));
+          try {
+              renderer.columns("storeid", "productname", "numberofunits", "priceperunit");
+              for (ProductRow product : esql.listProducts(storeID))
+                  renderer.row(product.storeID, product.productName, product.numberOfUnits, product.pricePerUnit);
+          } finally {
+              renderer.close();
+          }
+          if (!exportFile.isEmpty())
+              System.out.println("\tWrote " + renderer.getRows() + " product(s) to " + exportFile + ".");
       }
       catch (Exception e) {
           System.err.println(e.getMessage());
       }
    }
 
-   public static void placeOrder(Retail esql) {
+   public static void placeOrder(Retail esql, Session session) {
       try {
 	  //Variables
-	  String storeID = "";
+	  int storeID = 0;
 	  String productName = "";
-	  String numberOfUnits = "";
-
-	  //Find current user's latitude and longitude
-          String query1 = String.format("SELECT U.latitude, U.longitude, U.userID FROM Users U WHERE U.name = '%s'", globalName);
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-          double userLat = Double.parseDouble(temp.get(0).get(0));
-          double userLong = Double.parseDouble(temp.get(0).get(1));
-	  int userID = Integer.parseInt(temp.get(0).get(2));
+	  int numberOfUnits = 0;
 
 	  //Ask user for store ID and validate that it is within 30 miles
 	  boolean validStoreID = false;
 	  while (!validStoreID){
 	      System.out.print("\tEnter store ID: ");
-	      storeID = in.readLine();
-              String query2 = String.format("SELECT S.latitude, S.longitude, S.storeID, S.name FROM Store S WHERE S.storeID = '%s'", storeID);
-	      temp = esql.executeQueryAndReturnResult(query2);
-              if (esql.calculateDistance (userLat, userLong, Double.parseDouble(temp.get(0).get(0)), Double.parseDouble(temp.get(0).get(1))) <= 30){
+	      storeID = Integer.parseInt(in.readLine());
+	      StoreRow store = esql.findStore(storeID);
+              if (store != null && calculateDistance (session.getLatitude(), session.getLongitude(), store.latitude, store.longitude) <= STORE_SEARCH_RADIUS){
                   validStoreID = true;
               } else {
 	          System.out.println("\tInvalid store ID. Store is not within 30 miles. ");
@@ -501,20 +1636,16 @@ public class Retail {
 	  }
 
 	  //Ask user for product name and validate that it is available in the designated store
-	  boolean validProductName = false;
-          while (!validProductName){
+	  ProductRow product = null;
+          while (product == null){
               System.out.print("\tEnter product name: ");
               productName = in.readLine();
-	      String query3 = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.productName = '%s' AND P.storeID = '%s'", productName, storeID);
-              temp = esql.executeQueryAndReturnResult(query3);
-              if (temp.size() != 0){
-                  validProductName = true;
-		  if(Double.parseDouble(temp.get(0).get(1)) <= 0){
-		      validProductName = false;
-		      System.out.println("\tThe store is out of stock on this product. Please choose another product. ");
-		  }
-              } else {
+              product = esql.findProduct(storeID, productName);
+              if (product == null){
                   System.out.println("\tInvalid product name. Store does not carry this product. ");
+              } else if (product.numberOfUnits <= 0){
+		  product = null;
+		  System.out.println("\tThe store is out of stock on this product. Please choose another product. ");
               }
           }
 
@@ -522,29 +1653,26 @@ public class Retail {
 	  boolean validNumberOfUNits = false;
           while (!validNumberOfUNits){
               System.out.print("\tEnter number of units: ");
-              numberOfUnits = in.readLine();
-              if (Double.parseDouble(temp.get(0).get(1)) >= Double.parseDouble(numberOfUnits) && Double.parseDouble(numberOfUnits) != 0){
-                  validNumberOfUNits = true;
-              } else if (Double.parseDouble(numberOfUnits) <= 0){
+              numberOfUnits = Integer.parseInt(in.readLine());
+              if (numberOfUnits <= 0){
 		  System.out.println("\tPlease enter a number bigger than 0.");
-	      } else {
+	      } else if (numberOfUnits <= product.numberOfUnits){
+                  validNumberOfUNits = true;
+              } else {
                   System.out.println("\tInvalid number of units. Store does not carry enough in stock. ");
               }
           }
 
-	  //Inserting order information into the orders table
-	  String query4 = "SELECT current_timestamp";
-	  temp = esql.executeQueryAndReturnResult(query4);
-	  String orderTime = temp.get(0).get(0);
-	  String query5 = String.format("INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES ('%s', '%s', '%s', '%s', '%s')", userID, storeID, productName, numberOfUnits, orderTime);
-	  esql.executeUpdate(query5);
-
-	  //Updating the product table
-	  String query6 = String.format("UPDATE Product SET numberOfUnits = numberOfUnits-%s WHERE (storeID = %s) AND (productName = '%s')", numberOfUnits, storeID, productName);
-	  esql.executeUpdate(query6);
+	  //Decrementing the stock and inserting the order in one statement; the stock may have
+	  //changed since it was shown above, so the database re-checks it
+	  int orderNumber = esql.submitOrder(session.getUserID(), storeID, productName, numberOfUnits);
+	  if (orderNumber < 0){
+	      System.out.println("\tThe store no longer has enough units in stock. The order was not placed. ");
+	      return;
+	  }
 
 	  //Show confirmation message to user
-	  String orderConfirmationMessage = String.format("\tOrder for %s items of %s has been confirmed. ", numberOfUnits, productName);
+	  String orderConfirmationMessage = String.format("\tOrder #%d for %s items of %s has been confirmed. ", orderNumber, numberOfUnits, productName);
 	  System.out.println(orderConfirmationMessage);
       }
       catch (Exception e) {
@@ -552,45 +1680,33 @@ public class Retail {
       }
    }
 
-   public static void viewRecentOrders(Retail esql) {
+   public static void viewRecentOrders(Retail esql, Session session) {
       try{
-	  String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-	  String userID = temp.get(0).get(0);
-	  String query2 = String.format("\tSELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime FROM Store S, Orders O WHERE (O.storeID = S.storeID) AND (O.customerID = %s) ORDER BY orderTime DESC LIMIT 5", userID);
-          esql.executeQueryAndPrintResult(query2);
+          esql.executeQueryAndPrintResult(RECENT_ORDERS_QUERY, session.getUserID());
       }
       catch (Exception e) {
           System.err.println(e.getMessage());
       }
    }
 
-   public static void updateProduct(Retail esql) {
+   public static void updateProduct(Retail esql, Session session) {
        try{
        // userType contains a string of a users' type  
-       String userType = getUserType(esql);
+       String userType = session.getType();
        if (userType.equals("customer")) {
            System.out.println("You must be a manager or an admin to update products information. ");
            return;
        }
        // If they are type "manager":
        else if (userType.equals("manager")){
-	    String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-            List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-            String userID = temp.get(0).get(0);
-            String query2 = String.format("SELECT S.storeID FROM Store S WHERE S.managerID = %s", userID);
-            temp = esql.executeQueryAndReturnResult(query2);
+	    int userID = session.getUserID();
 	    boolean validStoreID = false;
-	    String storeID = "";
+	    int storeID = 0;
 	    while(!validStoreID){
 	        System.out.print("\tEnter store ID: ");
-		storeID = in.readLine();
+		storeID = Integer.parseInt(in.readLine());
 		//Validate store ID (Meaning manager does manage that store)
-		for (List<String> i : temp) {
-                    if (Integer.parseInt(i.get(0)) == Integer.parseInt(storeID)){
-                       validStoreID = true;
-                    }
-                }
+		validStoreID = session.manages(storeID);
 		if(!validStoreID){
 		     System.out.println("\tInvalid store ID. You do not manage this store. ");
 		}
@@ -602,9 +1718,8 @@ public class Retail {
             while (!validProductName){
                 System.out.print("\tEnter product name: ");
                 productName = in.readLine();
-                String query3 = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.productName = '%s' AND P.storeID = '%s'", productName, storeID);
-                temp = esql.executeQueryAndReturnResult(query3);
-                if (temp.size() != 0){
+                ProductRow product = esql.findProduct(storeID, productName);
+                if (product != null){
                     validProductName = true;
                 } else {
                     System.out.println("\tInvalid product name. Store does not carry this product. ");
@@ -619,27 +1734,15 @@ public class Retail {
                System.out.print("\tEnter new amount of units: ");
                String takenewNumUnits = in.readLine();
                int newNumUnits = Integer.parseInt(takenewNumUnits);
-	       String query3 = String.format("UPDATE Product SET numberOfUnits = '%s' WHERE (storeID = '%s') AND (productName='%s')", newNumUnits, storeID, productName);
-               esql.executeUpdate(query3);
+               esql.updateProductUnits(userID, storeID, productName, newNumUnits);
                System.out.println("Product quantity Updated. ");
-	       String query4 = "SELECT current_timestamp";
-               temp = esql.executeQueryAndReturnResult(query4);
-               String updateTime = temp.get(0).get(0);
-               String query5 = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s', '%s', '%s', '%s')", userID, storeID, productName, updateTime);
-               esql.executeUpdate(query5);
             }
             else if (selectionInteger == 2){
                System.out.print("\tEnter new price per unit for " + productName + ": ");
 	       String ppu = in.readLine();
                int pricePer = Integer.parseInt(ppu);
-               String query6 = String.format("UPDATE Product SET pricePerUnit = '%s' WHERE (storeID = '%s') AND (productName='%s')", pricePer, storeID, productName);
-               esql.executeUpdate(query6);
+               esql.updateProductPrice(userID, storeID, productName, pricePer);
                System.out.println("Product price updated. ");
-	       String query7 = "SELECT current_timestamp";
-               temp = esql.executeQueryAndReturnResult(query7);
-               String updateTime = temp.get(0).get(0);
-               String query8 = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s', '%s', '%s', '%s')", userID, storeID, productName, updateTime);
-               esql.executeUpdate(query8);
             }
          }
       }
@@ -648,33 +1751,24 @@ public class Retail {
       }
    }
 
-   public static void viewRecentUpdates(Retail esql) {
+   public static void viewRecentUpdates(Retail esql, Session session) {
        try{
-          String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-          String userID = temp.get(0).get(0);
-          String query2 = String.format("\tSELECT U.updateNumber, U.storeID, U.productName, U.updatedOn FROM ProductUpdates U WHERE (U.managerID = %s) ORDER BY updatedOn DESC LIMIT 5", userID);
-          esql.executeQueryAndPrintResult(query2);
+          esql.executeQueryAndPrintResult(RECENT_UPDATES_QUERY, session.getUserID());
       }
       catch (Exception e) {
           System.err.println(e.getMessage());
       }
    }
 
-   public static void viewPopularProducts(Retail esql) {
+   public static void viewPopularProducts(Retail esql, Session session) {
 	try {
-	String userType = getUserType(esql);
+	String userType = session.getType();
 	if (userType.equals("customer")) {
 		System.out.println("You do not have access to this feature!");
 		return;
 	}
 	else if (userType.equals("manager")){
-		String managerID = "";
-		String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-                List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-                managerID = temp.get(0).get(0);
-		String query2 = String.format("SELECT O.productName, COUNT(*) AS numberOfOrders FROM Orders O, Store S WHERE O.storeID = S.storeID AND S.managerID = %s GROUP BY (O.productName) ORDER BY COUNT(*) DESC LIMIT 5", managerID);
-		esql.executeQueryAndPrintResult(query2);
+		esql.executeQueryAndPrintResult(POPULAR_PRODUCTS_QUERY, session.getUserID());
 	}
 	}
 	catch (Exception e) {
@@ -682,53 +1776,39 @@ public class Retail {
       }
 	
    }
-   public static void viewPopularCustomers(Retail esql) {
+   public static void viewPopularCustomers(Retail esql, Session session) {
 	try {
-        String userType = getUserType(esql);
+        String userType = session.getType();
         if (userType.equals("customer")) {
                 System.out.println("You do not have access to this feature!");
                 return;
         }
         else if (userType.equals("manager")) {
-                String managerID = "";
-                String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-                List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-                managerID = temp.get(0).get(0);
-                String query2 = String.format("SELECT U.name, COUNT(*) AS numberOfOrders FROM Orders O, Store S, Users U WHERE O.storeID = S.storeID AND S.managerID = %s AND U.userID = O.customerID GROUP BY (U.userID) ORDER BY COUNT(*) DESC LIMIT 5", managerID);
-                esql.executeQueryAndPrintResult(query2);
+                esql.executeQueryAndPrintResult(POPULAR_CUSTOMERS_QUERY, session.getUserID());
         }
         }
         catch (Exception e) {
           System.err.println(e.getMessage());
       }
 }
-   public static void placeProductSupplyRequests(Retail esql) {
+   public static void placeProductSupplyRequests(Retail esql, Session session) {
 
 	try {
-		String userType = getUserType(esql);
+		String userType = session.getType();
 		if (userType.equals("customer")) {
                     System.out.println("You do not have access to this feature!");
                     return;
         	}
 	else if (userType.equals("manager")) {
-	  String storeID = "";
+	  int storeID = 0;
 	  String productName = "";
-	  String numberOfUnits = "";
-	  String warehouseID = "";
-	  String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-          List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-	  int userID = Integer.parseInt(temp.get(0).get(0));
+	  int warehouseID = 0;
+	  int userID = session.getUserID();
 	  boolean validStoreID = false;
 	  while (!validStoreID){
 	      System.out.print("\tEnter store ID: ");
-	      storeID = in.readLine();
-              String query2 = String.format("SELECT S.storeID, S.managerID FROM Store S WHERE S.storeID = '%s'", storeID);
-	      temp = esql.executeQueryAndReturnResult(query2);
-              for (List<String> i : temp) {
-                    if (Integer.parseInt(i.get(0)) == Integer.parseInt(storeID)){
-                       validStoreID = true;
-                    }
-	      }
+	      storeID = Integer.parseInt(in.readLine());
+	      validStoreID = session.manages(storeID);
 	      if(!validStoreID){
 		     System.out.println("\tInvalid store ID. You do not manage this store. ");
 	      }
@@ -737,37 +1817,44 @@ public class Retail {
                while (!validProductName){
                   System.out.print("\tEnter product name: ");
                   productName = in.readLine();
-                  String query3 = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.productName = '%s' AND P.storeID = '%s'", productName, storeID);
-                  temp = esql.executeQueryAndReturnResult(query3);
-                  if (temp.size() != 0){
+                  ProductRow product = esql.findProduct(storeID, productName);
+                  if (product != null){
                      validProductName = true;
-                     productName = temp.get(0).get(0);
+                     productName = product.productName;
                   }
                   else {
                      System.out.println("\tInvalid product name. Store does not carry this product. ");
                   }
                }
 	  System.out.print("\tEnter units: ");
-	  String unitsRequested = in.readLine();
+	  int unitsRequested = Integer.parseInt(in.readLine());
+	  //Offer the nearest warehouses; the first one is used unless another is chosen
+	  System.out.println("\tNearest warehouses:");
+	  for (DistanceMatrix.Hit hit : esql.getNearestWarehouses(storeID, SUPPLY_ROUTE_CHOICES))
+	     System.out.println(String.format("\t%6d  %8.2f away", hit.warehouse.warehouseID, hit.distance));
 	  boolean validWarehouse = false;
                while (!validWarehouse){
-                  System.out.print("\tEnter warehouse ID: ");
-                  warehouseID = in.readLine();
-                  String query3 = String.format("SELECT * FROM Warehouse W WHERE W.WarehouseID = '%s'", warehouseID);
-                  temp = esql.executeQueryAndReturnResult(query3);
-                  if (temp.size() != 0){
+                  System.out.print("\tEnter warehouse ID (blank for the nearest): ");
+                  String input = in.readLine().trim();
+                  if (input.isEmpty()){
+                     warehouseID = esql.routeSupplyRequest(userID, storeID, productName, unitsRequested);
+                     if (warehouseID < 0){
+                        System.out.println("\tThere is no warehouse to supply this store.");
+                        return;
+                     }
+                     System.out.println("\tRequest placed with warehouse " + warehouseID + ".\n");
+                     return;
+                  }
+                  warehouseID = Integer.parseInt(input);
+                  if (esql.refreshWarehouse(warehouseID) != null){
                      validWarehouse = true;
-                     warehouseID = temp.get(0).get(0);
                   }
                   else {
                      System.out.println("\tInvalid warehouse ID.");
                   }
                }
-	   String query4 = String.format("INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%s','%s','%s','%s','%s')", userID, warehouseID, storeID, productName, unitsRequested); 
-	   esql.executeUpdate(query4);
+	   esql.submitSupplyRequest(userID, warehouseID, storeID, productName, unitsRequested);
 	   System.out.println("\tRequest placed.\n");
-	   String query5 = String.format("UPDATE Product SET numberOfUnits = numberOfUnits+%s WHERE (storeID = %s) AND (productName = '%s')", unitsRequested, storeID, productName);
-	   esql.executeUpdate(query5); 
 	}
 	}		
 	catch (Exception e) {
@@ -775,20 +1862,68 @@ public class Retail {
       	}
 }
 
-	public static void checkManagerOrderInfo(Retail esql) {
+	public static void checkManagerOrderInfo(Retail esql, Session session) {
 		try {
-		String userType = getUserType(esql);
+		String userType = session.getType();
         	if (userType.equals("customer")) {
                 	System.out.println("You do not have access to this feature!");
                 	return;
         	}
         	else if (userType.equals("manager")){
-                	String managerID = "";
-                	String query1 = String.format("SELECT U.userID FROM Users U WHERE U.name = '%s'", globalName);
-                	List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
-                	managerID = temp.get(0).get(0);
-                	String query2 = String.format("SELECT DISTINCT O.orderNumber, U.name, O.storeID, O.productName, O.orderTime FROM Orders O, Users U, Store S WHERE S.managerID = %s AND O.customerID = U.userID AND S.storeID = O.storeID", managerID);
-                	esql.executeQueryAndPrintResult(query2);
+                	//Optional filters; a blank answer means no filter
+                	Integer storeID = null;
+                	while (true) {
+                		System.out.print("\tEnter store ID (blank for all your stores): ");
+                		String input = in.readLine().trim();
+                		if (input.isEmpty())
+                			break;
+                		storeID = Integer.parseInt(input);
+                		if (session.manages(storeID))
+                			break;
+                		System.out.println("\tYou do not manage this store. ");
+                	}
+                	System.out.print("\tEnter first day (yyyy-mm-dd, blank for no limit): ");
+                	String fromInput = in.readLine().trim();
+                	java.sql.Date from = fromInput.isEmpty() ? null : java.sql.Date.valueOf(fromInput);
+                	System.out.print("\tEnter last day (yyyy-mm-dd, blank for no limit): ");
+                	String toInput = in.readLine().trim();
+                	java.sql.Date to = toInput.isEmpty() ? null : java.sql.Date.valueOf(toInput);
+
+                	System.out.print("\tExport to file (.csv, .json or text; blank to page here): ");
+                	String exportFile = in.readLine().trim();
+                	if (!exportFile.isEmpty()) {
+                		ResultRenderer renderer = ResultRenderer.toFile(new File(exportFile), ResultRenderer.Format.forFile(exportFile));
+                		long written;
+                		try {
+                			written = esql.exportManagerOrders(session.getUserID(), storeID, from, to, renderer);
+                		} finally {
+                			renderer.close();
+                		}
+                		System.out.println("\tWrote " + written + " order(s) to " + exportFile + ".");
+                		return;
+                	}
+
+                	//Show the orders a page at a time, newest first
+                	ResultRenderer renderer = ResultRenderer.toConsole(CONSOLE_FORMAT);
+                	renderer.columns("orderNumber", "name", "storeID", "productName", "orderTime");
+                	OrderInfoRow last = null;
+                	while (true) {
+                		List<OrderInfoRow> page = esql.getManagerOrders(session.getUserID(), storeID, from, to, last, ORDER_PAGE_SIZE);
+                		for (OrderInfoRow order : page)
+                			renderer.row(order.orderNumber, order.customerName, order.storeID, order.productName, order.orderTime);
+                		if (page.size() < ORDER_PAGE_SIZE) {
+                			renderer.finish();
+                			System.out.println("\tNo more orders.");
+                			break;
+                		}
+                		renderer.flush();
+                		last = page.get(page.size() - 1);
+                		System.out.print("\tPress enter for the next page or q to quit: ");
+                		if (in.readLine().trim().equalsIgnoreCase("q")) {
+                			renderer.finish();
+                			break;
+                		}
+                	}
         }
 		}
 		catch (Exception e) {
@@ -796,9 +1931,27 @@ public class Retail {
         	}
 	}
 
-	public static void adminUpdate(Retail esql) {
+	public static void viewManagerDashboard(Retail esql, Session session) {
+		try {
+		String userType = session.getType();
+        	if (userType.equals("customer")) {
+                	System.out.println("You do not have access to this feature!");
+                	return;
+        	}
+        	else if (userType.equals("manager")){
+                	ManagerDashboard.Report report = esql.getManagerDashboard(session.getUserID());
+                	report.print(CONSOLE_FORMAT);
+                	System.out.println("\n\tLoaded in " + report.millis + " ms (slowest query " + report.slowestMillis() + " ms).");
+        	}
+		}
+		catch (Exception e) {
+          		System.err.println(e.getMessage());
+        	}
+	}
+
+	public static void adminUpdate(Retail esql, Session session) {
 		try {
-         String userType = getUserType(esql);
+         String userType = session.getType();
          if (userType.equals("customer") || userType.equals("manager")) {
             System.out.println("You do not have access to this feature!");
             return;
@@ -807,9 +1960,9 @@ public class Retail {
             String sID = "";
             String productName = "";
             String numberOfUnits = "";
-            String userID = "1";
+            int userID = session.getUserID();
             
-            System.out.print("\tPress 1 for product update\n\tPress 2 for user update\n\tPress 3 to view users\n\tPress 4 to add a user\n\tPress 5 to delete a user\n\tPress 6 to add a product\n\tPress 7 to delete a product: ");
+            System.out.print("\tPress 1 for product update\n\tPress 2 for user update\n\tPress 3 to view users\n\tPress 4 to add a user\n\tPress 5 to delete a user\n\tPress 6 to add a product\n\tPress 7 to delete a product\n\tPress 8 to verify the order rollups\n\tPress 9 to view chain-wide top products and customers\n\tPress 10 to maintain and archive the order partitions\n\tPress 11 to add a warehouse\n\tPress 12 to replay the rejected audit rows: ");
             String choiceNumber = in.readLine();
             int choice = Integer.parseInt(choiceNumber);
             if (choice == 1) {	
@@ -817,8 +1970,8 @@ public class Retail {
 		while(!validStore){
 			System.out.print("\tEnter store ID: ");
                		sID = in.readLine();
-			String query = String.format("SELECT * FROM Store S WHERE S.storeID = '%s'", sID);
-                  List<List<String>> temp = esql.executeQueryAndReturnResult(query);
+			String query = "SELECT * FROM Store S WHERE S.storeID = ?";
+                  List<List<String>> temp = esql.executeQueryAndReturnResult(query, Integer.parseInt(sID));
                   if (temp.size() != 0){
                      validStore = true;
                      productName = temp.get(0).get(0);
@@ -832,11 +1985,10 @@ public class Retail {
                while (!validProductName){
                   System.out.print("\tEnter product name: ");
                   productName = in.readLine();
-                  String query3 = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.productName = '%s' AND P.storeID = '%s'", productName, storeID);
-                  List<List<String>> temp = esql.executeQueryAndReturnResult(query3);
-                  if (temp.size() != 0){
+                  ProductRow product = esql.findProduct(storeID, productName);
+                  if (product != null){
                      validProductName = true;
-                     productName = temp.get(0).get(0);
+                     productName = product.productName;
                   } 
                   else {
                      System.out.println("\tInvalid product name. Store does not carry this product. ");
@@ -850,28 +2002,16 @@ public class Retail {
                   System.out.print("\tEnter new amount of units: ");
                   String takenewNumUnits = in.readLine();
                   int newNumUnits = Integer.parseInt(takenewNumUnits);
-                  String query3 = String.format("UPDATE Product SET numberOfUnits = '%s' WHERE (storeID = '%s') AND (productName='%s')", newNumUnits, sID, productName);
-                  esql.executeUpdate(query3);
+                  esql.updateProductUnits(userID, storeID, productName, newNumUnits);
                   System.out.println("Product quantity Updated. ");
-                  String query4 = "SELECT current_timestamp";
-                  List<List<String>> temp = esql.executeQueryAndReturnResult(query4);
-                  String updateTime = temp.get(0).get(0);
-                  String query5 = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s', '%s', '%s', '%s')", userID, sID, productName, updateTime);
-                  esql.executeUpdate(query5);
                }
                else if (selectionInteger == 2) {
 		  String tempout = String.format("\tEnter new price per unit: ");
                   System.out.print(tempout);
                   String ppu = in.readLine();
                   int pricePer = Integer.parseInt(ppu);
-                  String query6 = String.format("UPDATE Product SET pricePerUnit = '%s' WHERE (storeID = '%s') AND (productName='%s')", pricePer, sID, productName);
-                  esql.executeUpdate(query6);
+                  esql.updateProductPrice(userID, storeID, productName, pricePer);
                   System.out.println("Product price updated. ");
-                  String query7 = "SELECT current_timestamp";
-                  List<List<String>> temp  = esql.executeQueryAndReturnResult(query7);
-                  String updateTime = temp.get(0).get(0);
-                  String query8 = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s', '%s', '%s', '%s')", userID, sID, productName, updateTime);
-                  esql.executeUpdate(query8);
                }
                // We didn't touch this because product name is part of the primary key.
 
@@ -893,8 +2033,8 @@ public class Retail {
                   String uID = in.readLine();
             boolean validUserID= false;
                while (!validUserID){
-                  String query3 = String.format("SELECT U.userID FROM Users U WHERE U.userID = %s", uID);
-                  List<List<String>> temp = esql.executeQueryAndReturnResult(query3);
+                  String query3 = "SELECT U.userID FROM Users U WHERE U.userID = ?";
+                  List<List<String>> temp = esql.executeQueryAndReturnResult(query3, Integer.parseInt(uID));
                   if (temp.size() != 0){
                      validUserID = true;
                   } else {
@@ -910,15 +2050,15 @@ public class Retail {
          if (selectionInteger == 1) {
             System.out.print("\tEnter new user name for user with userID " + uID + ": ");
             String newName = in.readLine();
-            String query6 = String.format("UPDATE Users SET name = '%s' WHERE (userID = '%s')", newName, uID);
-            esql.executeUpdate(query6);
+            String query6 = "UPDATE Users SET name = ? WHERE (userID = ?)";
+            esql.executeUpdate(query6, newName, Integer.parseInt(uID));
             System.out.println("User name updated. ");
          }
          else if (selectionInteger == 2) {
             System.out.print("\tEnter new password for user with userID " + uID + ": ");
             String newPass = in.readLine();
-            String query6 = String.format("UPDATE Users SET password = '%s' WHERE (userID = '%s')", newPass, uID);
-            esql.executeUpdate(query6);
+            String query6 = "UPDATE Users SET password = ? WHERE (userID = ?)";
+            esql.executeUpdate(query6, newPass, Integer.parseInt(uID));
             System.out.println("Password updated. ");	
             }
 	 else if (selectionInteger == 3) {
@@ -926,8 +2066,8 @@ public class Retail {
 		String newLat = in.readLine();
 		System.out.print("\tEnter new longitude: ");
                 String newLong = in.readLine();
-		String query7 = String.format("UPDATE Users SET longitude = '%s', latitude = '%s' WHERE (userID = '%s')", newLong, newLat, uID);
-		esql.executeUpdate(query7);
+		String query7 = "UPDATE Users SET longitude = CAST(? AS numeric), latitude = CAST(? AS numeric) WHERE (userID = ?)";
+		esql.executeUpdate(query7, Double.valueOf(newLong), Double.valueOf(newLat), Integer.parseInt(uID));
 		System.out.println("Location updated.");
 	   }
 	 else if (selectionInteger == 4) {
@@ -946,17 +2086,21 @@ public class Retail {
                                 validType = true;
                         }
 		}
-		String query7 = String.format("UPDATE Users SET type = '%s' WHERE (userID = '%s')", newType, uID);
-		esql.executeUpdate(query7);
+		String query7 = "UPDATE Users SET type = ? WHERE (userID = ?)";
+		esql.executeUpdate(query7, newType, Integer.parseInt(uID));
 		System.out.print("\tUser type updated\n");
 	 }
+	 // the session caches the logged-in user, so re-read it if that is who changed.
+	 if (Integer.parseInt(uID) == session.getUserID()) {
+		session.refresh(esql);
+	 }
          } else if (choice == 3){
 		System.out.print("\tEnter user name: ");
                 String uName = in.readLine();
             	boolean validUserID= false;
                	while (!validUserID){
-                	String query3 = String.format("SELECT U.name FROM Users U WHERE U.name = '%s'", uName);
-                  	List<List<String>> temp = esql.executeQueryAndReturnResult(query3);
+                	String query3 = "SELECT U.name FROM Users U WHERE U.name = CAST(? AS bpchar)";
+                  	List<List<String>> temp = esql.executeQueryAndReturnResult(query3, uName);
                   	if (temp.size() != 0){
                      		validUserID = true;
                   	} else {
@@ -965,8 +2109,7 @@ public class Retail {
                      		uName = in.readLine();
                   	}
                	}
-		String query4 = String.format("SELECT * FROM Users U WHERE U.name = '%s'", uName);
-		esql.executeQueryAndPrintResult(query4);
+		esql.executeQueryAndPrintResult(USERS_BY_NAME_QUERY, uName);
           } else if (choice == 4) {
                 System.out.print("\tEnter user name: ");
                 String name = in.readLine();
@@ -978,15 +2121,15 @@ public class Retail {
                 String userlong = in.readLine();
                 System.out.print("\tEnter new user type: ");
                 String usertype = in.readLine();
-                String query1 = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, pass, userlat, userlong, usertype);
-                esql.executeUpdate(query1);
+                String query1 = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, CAST(? AS numeric), CAST(? AS numeric), ?)";
+                esql.executeUpdate(query1, name, pass, Double.valueOf(userlat), Double.valueOf(userlong), usertype);
         } else if (choice == 5) {
                 System.out.print("\tEnter user name: ");
                 String uName = in.readLine();
                 boolean validName = false;
                 while (!validName){
-                        String query3 = String.format("SELECT U.name FROM Users U WHERE U.name = '%s'", uName);
-                        List<List<String>> temp = esql.executeQueryAndReturnResult(query3);
+                        String query3 = "SELECT U.name FROM Users U WHERE U.name = CAST(? AS bpchar)";
+                        List<List<String>> temp = esql.executeQueryAndReturnResult(query3, uName);
                         if (temp.size() != 0){
                                 validName = true;
                         } else {
@@ -995,12 +2138,10 @@ public class Retail {
                                 uName = in.readLine();
                         }
                 }
-		String query1 = String.format("SELECT * FROM USERS U WHERE U.name = '%s'", uName);
-		esql.executeQueryAndPrintResult(query1);
+		esql.executeQueryAndPrintResult(USERS_BY_NAME_QUERY, uName);
 		System.out.print("\tEnter user ID: ");
                 String uDelete = in.readLine();
-                String query2 = String.format("DELETE FROM USERS U WHERE U.userID = '%s'", uDelete);
-		esql.executeUpdate(query2);
+		esql.removeUser(Integer.parseInt(uDelete));
         } else if (choice == 6) {
                 System.out.print("\tEnter product name: ");
                 String name = in.readLine();
@@ -1010,15 +2151,14 @@ public class Retail {
                 String pnu = in.readLine();
                 System.out.print("\tEnter number of units of product: ");
                 String pppu = in.readLine();
-                String query1 = String.format("INSERT INTO Product (productName, storeID, numberOfUnits, pricePerUnit) VALUES ('%s','%s', '%s', '%s')", name, pSID, pnu, pppu);
-                esql.executeUpdate(query1);
+                esql.addProduct(Integer.parseInt(pSID), name, Integer.parseInt(pnu), Double.valueOf(pppu));
         } else if (choice == 7) {
 		System.out.print("\tEnter store ID: ");
                 String pSID = in.readLine();
                 boolean validSID = false;
                 while (!validSID){
-                        String query1 = String.format("SELECT S.storeID FROM Store S WHERE S.storeID = '%s'", pSID);
-                        List<List<String>> temp = esql.executeQueryAndReturnResult(query1);
+                        String query1 = "SELECT S.storeID FROM Store S WHERE S.storeID = ?";
+                        List<List<String>> temp = esql.executeQueryAndReturnResult(query1, Integer.parseInt(pSID));
                         if (temp.size() != 0){
                                 validSID = true;
                         } else {
@@ -1032,8 +2172,8 @@ public class Retail {
                 String pName = in.readLine();
                 boolean validName = false;
                 while (!validName){
-                        String query2 = String.format("SELECT P.productName FROM Product P WHERE P.productName = '%s'", pName);
-                        List<List<String>> temp = esql.executeQueryAndReturnResult(query2);
+                        String query2 = "SELECT P.productName FROM Product P WHERE P.productName = CAST(? AS bpchar)";
+                        List<List<String>> temp = esql.executeQueryAndReturnResult(query2, pName);
                         if (temp.size() != 0){
                                 validName = true;
                         } else {
@@ -1042,8 +2182,43 @@ public class Retail {
                                 pName = in.readLine();
                         }
                 }
-                String query3 = String.format("DELETE FROM Product P WHERE P.productName = '%s' AND P.storeID = '%s'", pName, pSID);
-                esql.executeUpdate(query3);
+                esql.removeProduct(Integer.parseInt(pSID), pName);
+        } else if (choice == 8) {
+                OrderRollups rollups = new OrderRollups(esql);
+                if (rollups.verify() > 0) {
+                        System.out.print("\tRebuild the rollups from Orders? (y/n): ");
+                        if (in.readLine().trim().equalsIgnoreCase("y"))
+                                rollups.rebuild();
+                }
+        } else if (choice == 9) {
+                System.out.println("\tTop products in the last " + esql.getHeavyHittersWindowMinutes() + " minutes (estimated orders):");
+                for (HeavyHitters.Estimate<String> product : esql.getHotProducts(10))
+                        System.out.println(String.format("\t%-30s %6d (at least %d)", product.key, product.count, product.count - product.error));
+                System.out.println("\tTop customers in the last " + esql.getHeavyHittersWindowMinutes() + " minutes (estimated orders):");
+                for (HeavyHitters.Estimate<Integer> customer : esql.getTopCustomers(10)) {
+                        String query = "SELECT " + UserRow.COLUMNS + " FROM Users U WHERE U.userID = ?";
+                        UserRow user = esql.executeQueryForObject(query, UserRow.MAPPER, customer.key);
+                        String name = user != null ? user.name : "user " + customer.key;
+                        System.out.println(String.format("\t%-30s %6d (at least %d)", name, customer.count, customer.count - customer.error));
+                }
+        } else if (choice == 10) {
+                OrderPartitions partitions = new OrderPartitions(esql);
+                System.out.println("\tCreated " + partitions.maintain(Integer.getInteger("retail.orders.partitionMonthsAhead", 3)) + " partition(s).");
+                partitions.list();
+                System.out.print("\tArchive the months before (yyyy-mm-dd, blank to keep all): ");
+                String cutoff = in.readLine().trim();
+                if (!cutoff.isEmpty())
+                        System.out.println("\tArchived " + partitions.archive(java.sql.Date.valueOf(cutoff)) + " partition(s) to order_archive.");
+        } else if (choice == 11) {
+                System.out.print("\tEnter area: ");
+                int area = Integer.parseInt(in.readLine().trim());
+                System.out.print("\tEnter latitude: ");
+                double latitude = Double.parseDouble(in.readLine().trim());
+                System.out.print("\tEnter longitude: ");
+                double longitude = Double.parseDouble(in.readLine().trim());
+                System.out.println("\tAdded warehouse " + esql.addWarehouse(area, latitude, longitude) + ".");
+        } else if (choice == 12) {
+                System.out.println("\tReplayed " + esql.getAuditStats().replayRejects() + " audit row(s); rows that still fail stay in the reject file.");
         }
        }
       }
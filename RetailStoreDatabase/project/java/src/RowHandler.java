@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback used by Retail.executeQueryAndStream to consume a query result
+ * one row at a time, without materializing it.
+ *
+ */
+
+public interface RowHandler {
+
+   /**
+    * Called once for every row, with the result set positioned on that row.
+    * The result set must not be advanced or kept after the call returns.
+    *
+    * @param rs the result set positioned on the current row
+    * @throws java.sql.SQLException when reading the row fails
+    */
+   void handleRow (ResultSet rs) throws SQLException;
+
+}//end RowHandler
@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a result set to a typed object, reading columns
+ * with getInt / getDouble / getTimestamp instead of going through strings.
+ *
+ */
+
+public interface RowMapper<T> {
+
+   /**
+    * Builds an object from the row the result set is positioned on.
+    *
+    * @param rs the result set positioned on the current row
+    * @return the mapped object
+    * @throws java.sql.SQLException when reading the row fails
+    */
+   T mapRow (ResultSet rs) throws SQLException;
+
+}//end RowMapper
@@ -0,0 +1,129 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The logged-in user, resolved once at LogIn: ID, type, location and, for
+ * managers, the stores they manage.  Menu operations read it instead of
+ * looking the user up by name on every call.
+ *
+ */
+
+public class Session {
+
+   static final String LOGIN_QUERY =
+      "SELECT " + UserRow.COLUMNS + " FROM Users U WHERE U.name = CAST(? AS bpchar) AND U.password = CAST(? AS bpchar)";
+   static final String USER_QUERY =
+      "SELECT " + UserRow.COLUMNS + " FROM Users U WHERE U.userID = ?";
+   static final String MANAGED_STORES_QUERY =
+      "SELECT S.storeID FROM Store S WHERE S.managerID = ? ORDER BY S.storeID";
+
+   private int userID;
+   private String name;
+   private String type;
+   private double latitude;
+   private double longitude;
+   private List<Integer> managedStoreIDs;
+
+   private Session (UserRow user, List<Integer> managedStoreIDs) {
+      apply (user, managedStoreIDs);
+   }
+
+   /**
+    * Checks a user's credentials and opens a session for them.
+    *
+    * @param esql the database access object
+    * @param name the user name
+    * @param password the user password
+    * @return the new session, or null if the credentials do not match
+    * @throws java.sql.SQLException when the user cannot be read
+    */
+   public static Session open (Retail esql, String name, String password) throws SQLException {
+      UserRow user = esql.executeQueryForObject (LOGIN_QUERY, UserRow.MAPPER, name, password);
+      if (user == null)
+         return null;
+      return new Session (user, loadManagedStores (esql, user));
+   }//end open
+
+   /**
+    * Re-reads the user behind this session, e.g. after an admin changed
+    * their name, location or type.
+    *
+    * @param esql the database access object
+    * @return false if the user no longer exists
+    * @throws java.sql.SQLException when the user cannot be read
+    */
+   public synchronized boolean refresh (Retail esql) throws SQLException {
+      UserRow user = esql.executeQueryForObject (USER_QUERY, UserRow.MAPPER, this.userID);
+      if (user == null)
+         return false;
+      apply (user, loadManagedStores (esql, user));
+      return true;
+   }//end refresh
+
+   public synchronized int getUserID () {
+      return this.userID;
+   }
+
+   public synchronized String getName () {
+      return this.name;
+   }
+
+   /**
+    * @return the user type: "customer", "manager" or "admin"
+    */
+   public synchronized String getType () {
+      return this.type;
+   }
+
+   public synchronized double getLatitude () {
+      return this.latitude;
+   }
+
+   public synchronized double getLongitude () {
+      return this.longitude;
+   }
+
+   public synchronized boolean isCustomer () {
+      return "customer".equals (this.type);
+   }
+
+   public synchronized boolean isManager () {
+      return "manager".equals (this.type);
+   }
+
+   public synchronized boolean isAdmin () {
+      return "admin".equals (this.type);
+   }
+
+   /**
+    * @return the IDs of the stores this user manages; empty for non-managers
+    */
+   public synchronized List<Integer> getManagedStoreIDs () {
+      return this.managedStoreIDs;
+   }
+
+   /**
+    * @param storeID a store ID
+    * @return true if this user manages the store
+    */
+   public synchronized boolean manages (int storeID) {
+      return this.managedStoreIDs.contains (storeID);
+   }
+
+   private synchronized void apply (UserRow user, List<Integer> managedStoreIDs) {
+      this.userID = user.userID;
+      this.name = user.name;
+      this.type = user.type;
+      this.latitude = user.latitude;
+      this.longitude = user.longitude;
+      this.managedStoreIDs = managedStoreIDs;
+   }
+
+   private static List<Integer> loadManagedStores (Retail esql, UserRow user) throws SQLException {
+      if (!"manager".equals (user.type))
+         return Collections.<Integer>emptyList ();
+      return Collections.unmodifiableList (esql.executeQueryForList (MANAGED_STORES_QUERY, Retail.INT_COLUMN, user.userID));
+   }
+
+}//end Session
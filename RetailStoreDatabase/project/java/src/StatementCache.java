@@ -0,0 +1,177 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least-recently-used cache of prepared statements for one physical
+ * connection, keyed by the SQL template text.
+ *
+ * The PostgreSQL drivers before 8.0 (the bundled pg73jdbc3 among them)
+ * prepare statements on the client: every execution still sends the full
+ * text and the server parses and plans it again.
+ * -Dretail.statementCache.serverPrepare=true switches cached statements to
+ * server-side prepare (PGStatement.setUseServerPrepare), which makes the
+ * first execution PREPARE the statement on the connection and the later
+ * ones EXECUTE it, so the parse and plan are saved too.  Only queries and
+ * DML are prepared this way, since PREPARE takes nothing else.
+ *
+ * It is off by default because the PREPARE declares each parameter with
+ * the type of its setter: a string is text, so a placeholder compared with
+ * a char(n) column needs CAST(? AS bpchar) or the column is cast to text
+ * and its index is not used.  Not char(n): that cast cuts a longer value
+ * to n characters, so it would match a row it should not.  The SQL in this program casts every such
+ * placeholder and Retail binds doubles as numeric; PlanCheck explains the
+ * statements in their prepared form, so run it before turning this on.
+ *
+ * A pooled connection is only ever used by the thread that borrowed it, so
+ * the cache itself is not synchronized.  The counters are shared by every
+ * cache of a pool and are safe to read from any thread.
+ *
+ */
+
+public class StatementCache {
+
+   /**
+    * Hit, miss and eviction counters shared by the caches of one pool.
+    */
+   public static class Counters {
+      final AtomicLong hits = new AtomicLong ();
+      final AtomicLong misses = new AtomicLong ();
+      final AtomicLong evictions = new AtomicLong ();
+
+      public long getHits () {
+         return this.hits.get ();
+      }
+
+      public long getMisses () {
+         return this.misses.get ();
+      }
+
+      public long getEvictions () {
+         return this.evictions.get ();
+      }
+
+      public String toString () {
+         long h = getHits ();
+         long m = getMisses ();
+         double ratio = h + m == 0 ? 0.0 : 100.0 * h / (h + m);
+         return String.format ("statements: hits=%d misses=%d hitRatio=%.1f%% evictions=%d",
+                               h, m, ratio, getEvictions ());
+      }
+   }//end Counters
+
+   private static final boolean SERVER_PREPARE = Boolean.getBoolean ("retail.statementCache.serverPrepare");
+
+   // PGStatement.setUseServerPrepare, looked up by name so the code compiles without the driver.
+   private static final Method USE_SERVER_PREPARE = serverPrepareMethod ();
+
+   private final Connection connection;
+   private final Counters counters;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+
+   /**
+    * Creates an empty cache.
+    *
+    * @param connection the connection the statements are prepared on
+    * @param maxSize the number of statements kept open
+    * @param counters where hits, misses and evictions are counted
+    */
+   public StatementCache (Connection connection, final int maxSize, Counters counters) {
+      this.connection = connection;
+      this.counters = counters;
+      this.statements = new LinkedHashMap<String, PreparedStatement> (16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+            if (size () <= maxSize)
+               return false;
+            StatementCache.this.counters.evictions.incrementAndGet ();
+            closeQuietly (eldest.getValue ());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for a SQL template, preparing it on a miss.
+    * Parameters left over from a previous use are cleared.
+    *
+    * @param sql the SQL template with ? placeholders
+    * @return a prepared statement ready for binding
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this.statements.get (sql);
+      if (stmt != null) {
+         this.counters.hits.incrementAndGet ();
+         stmt.clearParameters ();
+         return stmt;
+      }
+      this.counters.misses.incrementAndGet ();
+      stmt = this.connection.prepareStatement (sql);
+      if (isPreparable (sql))
+         useServerPrepare (stmt);
+      this.statements.put (sql, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear () {
+      for (PreparedStatement stmt : this.statements.values ())
+         closeQuietly (stmt);
+      this.statements.clear ();
+   }
+
+   private static Method serverPrepareMethod () {
+      if (!SERVER_PREPARE)
+         return null;
+      try {
+         return Class.forName ("org.postgresql.PGStatement").getMethod ("setUseServerPrepare", boolean.class);
+      }catch (ClassNotFoundException | NoSuchMethodException e) {
+         return null;
+      }
+   }
+
+   // PREPARE takes queries and DML only; old drivers put it in front of any statement, DDL and COPY included.
+   private static boolean isPreparable (String sql) {
+      String head = leadingKeyword (sql);
+      return head.equals ("SELECT") || head.equals ("INSERT") || head.equals ("UPDATE") || head.equals ("DELETE")
+         || head.equals ("WITH") || head.equals ("VALUES");
+   }
+
+   /**
+    * @param sql a SQL statement
+    * @return its first word in upper case, e.g. SELECT
+    */
+   static String leadingKeyword (String sql) {
+      String head = sql.trim ();
+      int end = 0;
+      while (end < head.length () && Character.isLetter (head.charAt (end)))
+         ++end;
+      return head.substring (0, end).toUpperCase ();
+   }
+
+   // asks the driver to PREPARE the statement on the server; left client-side when it cannot.
+   private static void useServerPrepare (PreparedStatement stmt) {
+      if (USE_SERVER_PREPARE == null || !USE_SERVER_PREPARE.getDeclaringClass ().isInstance (stmt))
+         return;
+      try {
+         USE_SERVER_PREPARE.invoke (stmt, true);
+      }catch (ReflectiveOperationException e) {
+         // the statement stays client-side.
+      }
+   }
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try {
+         stmt.close ();
+      }catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}//end StatementCache
@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory uniform grid over store coordinates, answering "stores within
+ * R" and "k nearest stores" without scanning every store.
+ *
+ * Distances are the same euclidean latitude/longitude distance that
+ * Retail.calculateDistance uses.  Stores are bucketed into square cells of
+ * a fixed size; a radius query only visits the cells overlapping the
+ * query circle and a nearest query visits rings of cells outwards until
+ * no closer store can exist.  Stores can be added, moved and removed one
+ * at a time, so the index never has to be rebuilt.
+ *
+ * cellSizeFor() picks the cell size from the stores and the usual query
+ * radius: a few stores per cell, and cells small next to the radius so a
+ * radius query reads little beyond the circle.
+ *
+ */
+
+public class StoreIndex {
+
+   private final double cellSize;
+
+   private final ReadWriteLock lock = new ReentrantReadWriteLock ();
+   private final Map<Long, List<StoreRow>> cells = new HashMap<Long, List<StoreRow>> ();
+   private final Map<Integer, StoreRow> byID = new HashMap<Integer, StoreRow> ();
+
+   // bounds of the occupied cells, so ring searches know when to stop.
+   private int minCellX = Integer.MAX_VALUE;
+   private int maxCellX = Integer.MIN_VALUE;
+   private int minCellY = Integer.MAX_VALUE;
+   private int maxCellY = Integer.MIN_VALUE;
+
+   /**
+    * A store together with its distance from the query point.
+    */
+   public static class Hit {
+      public final StoreRow store;
+      public final double distance;
+
+      Hit (StoreRow store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   // stores per cell cellSizeFor() aims at, and the cell size bounds as fractions of the radius.
+   private static final double STORES_PER_CELL = 2;
+   private static final double MIN_CELLS_PER_RADIUS = 2;
+   private static final double MAX_CELLS_PER_RADIUS = 8;
+
+   private static final Comparator<Hit> NEAREST_FIRST = new Comparator<Hit> () {
+      public int compare (Hit a, Hit b) {
+         return Double.compare (a.distance, b.distance);
+      }
+   };
+
+   /**
+    * Creates an empty index.
+    *
+    * @param cellSize the side of a grid cell, in coordinate units; see cellSizeFor()
+    */
+   public StoreIndex (double cellSize) {
+      if (!(cellSize > 0))
+         throw new IllegalArgumentException ("cellSize must be positive");
+      this.cellSize = cellSize;
+   }
+
+   /**
+    * Picks a cell size for a set of stores: the side of a cell holding
+    * about STORES_PER_CELL of them if they were spread evenly over their
+    * bounding box, kept between 1/8 and 1/2 of the query radius.
+    *
+    * @param stores the stores to be indexed
+    * @param radius the typical withinRadius() radius
+    * @return the cell size
+    */
+   public static double cellSizeFor (List<StoreRow> stores, double radius) {
+      double maxSize = radius / MIN_CELLS_PER_RADIUS;
+      double minSize = radius / MAX_CELLS_PER_RADIUS;
+      if (stores.isEmpty ())
+         return maxSize;
+      double minLatitude = Double.POSITIVE_INFINITY;
+      double maxLatitude = Double.NEGATIVE_INFINITY;
+      double minLongitude = Double.POSITIVE_INFINITY;
+      double maxLongitude = Double.NEGATIVE_INFINITY;
+      for (StoreRow store : stores) {
+         minLatitude = Math.min (minLatitude, store.latitude);
+         maxLatitude = Math.max (maxLatitude, store.latitude);
+         minLongitude = Math.min (minLongitude, store.longitude);
+         maxLongitude = Math.max (maxLongitude, store.longitude);
+      }
+      double area = (maxLatitude - minLatitude) * (maxLongitude - minLongitude);
+      double size = Math.sqrt (area * STORES_PER_CELL / stores.size ());
+      return Math.max (minSize, Math.min (maxSize, size));
+   }//end cellSizeFor
+
+   /**
+    * Adds a store, or moves it if a store with the same ID is indexed.
+    *
+    * @param store the store to index
+    */
+   public void put (StoreRow store) {
+      this.lock.writeLock ().lock ();
+      try {
+         StoreRow old = this.byID.put (store.storeID, store);
+         if (old != null)
+            unbucket (old);
+         int cx = cell (store.latitude);
+         int cy = cell (store.longitude);
+         List<StoreRow> bucket = this.cells.get (key (cx, cy));
+         if (bucket == null) {
+            bucket = new ArrayList<StoreRow> ();
+            this.cells.put (key (cx, cy), bucket);
+         }
+         bucket.add (store);
+         this.minCellX = Math.min (this.minCellX, cx);
+         this.maxCellX = Math.max (this.maxCellX, cx);
+         this.minCellY = Math.min (this.minCellY, cy);
+         this.maxCellY = Math.max (this.maxCellY, cy);
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }//end put
+
+   /**
+    * Removes a store from the index.
+    *
+    * @param storeID the store to remove
+    * @return true if the store was indexed
+    */
+   public boolean remove (int storeID) {
+      this.lock.writeLock ().lock ();
+      try {
+         StoreRow old = this.byID.remove (storeID);
+         if (old == null)
+            return false;
+         unbucket (old);
+         return true;
+      }finally {
+         this.lock.writeLock ().unlock ();
+      }
+   }//end remove
+
+   /**
+    * @param storeID the store to look up
+    * @return the indexed store, or null if it is not indexed
+    */
+   public StoreRow get (int storeID) {
+      this.lock.readLock ().lock ();
+      try {
+         return this.byID.get (storeID);
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+   }
+
+   /**
+    * @return the number of indexed stores
+    */
+   public int size () {
+      this.lock.readLock ().lock ();
+      try {
+         return this.byID.size ();
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+   }
+
+   /**
+    * Finds every store within a radius of a point.
+    *
+    * @param latitude the latitude of the query point
+    * @param longitude the longitude of the query point
+    * @param radius the maximum distance, inclusive
+    * @return the matching stores, nearest first
+    */
+   public List<Hit> withinRadius (double latitude, double longitude, double radius) {
+      List<Hit> result = new ArrayList<Hit> ();
+      this.lock.readLock ().lock ();
+      try {
+         int x0 = Math.max (cell (latitude - radius), this.minCellX);
+         int x1 = Math.min (cell (latitude + radius), this.maxCellX);
+         int y0 = Math.max (cell (longitude - radius), this.minCellY);
+         int y1 = Math.min (cell (longitude + radius), this.maxCellY);
+         for (int cx = x0; cx <= x1; ++cx) {
+            double dx = gap (latitude, cx);
+            for (int cy = y0; cy <= y1; ++cy) {
+               // corner cells of the square can lie wholly outside the circle.
+               double dy = gap (longitude, cy);
+               if (dx * dx + dy * dy > radius * radius)
+                  continue;
+               List<StoreRow> bucket = this.cells.get (key (cx, cy));
+               if (bucket == null)
+                  continue;
+               for (StoreRow store : bucket) {
+                  double d = distance (latitude, longitude, store);
+                  if (d <= radius)
+                     result.add (new Hit (store, d));
+               }
+            }
+         }
+      }finally {
+         this.lock.readLock ().unlock ();
+      }
+      Collections.sort (result, NEAREST_FIRST);
+      return result;
+   }//end withinRadius
+
+   /**
+    * Finds the k stores nearest to a point.
+    *
+    * @param latitude the latitude of the query point
+    * @param longitude the longitude of the query point
+    * @param k the number of stores wanted
+    * @return at most k stores, nearest first
+    */
+   public List<Hit> nearest (double latitude, double longitude, int k) {
+      // max-heap on distance holding the best k candidates seen so far.
+      PriorityQueue<Hit> best = new PriorityQueue<Hit> (Math.max (k, 1), Collections.reverseOrder (NEAREST_FIRST));
+      if (k > 0) {
+         this.lock.readLock ().lock ();
+         try {
+            if (!this.byID.isEmpty ()) {
+               int qx = cell (latitude);
+               int qy = cell (longitude);
+               int maxRing = Math.max (Math.max (qx - this.minCellX, this.maxCellX - qx),
+                                       Math.max (qy - this.minCellY, this.maxCellY - qy));
+               for (int ring = 0; ring <= maxRing; ++ring) {
+                  // every store in this ring or beyond is at least this far away.
+                  double ringDistance = (ring - 1) * this.cellSize;
+                  if (best.size () == k && ringDistance > best.peek ().distance)
+                     break;
+                  scanRing (qx, qy, ring, latitude, longitude, k, best);
+               }
+            }
+         }finally {
+            this.lock.readLock ().unlock ();
+         }
+      }
+      List<Hit> result = new ArrayList<Hit> (best);
+      Collections.sort (result, NEAREST_FIRST);
+      return result;
+   }//end nearest
+
+   // offers every store in the square ring of cells at Chebyshev distance ring from (qx, qy).
+   private void scanRing (int qx, int qy, int ring, double latitude, double longitude,
+                          int k, PriorityQueue<Hit> best) {
+      for (int cx = qx - ring; cx <= qx + ring; ++cx) {
+         boolean edgeRow = cx == qx - ring || cx == qx + ring;
+         int step = edgeRow || ring == 0 ? 1 : 2 * ring;
+         for (int cy = qy - ring; cy <= qy + ring; cy += step) {
+            List<StoreRow> bucket = this.cells.get (key (cx, cy));
+            if (bucket == null)
+               continue;
+            for (StoreRow store : bucket) {
+               double d = distance (latitude, longitude, store);
+               if (best.size () < k) {
+                  best.add (new Hit (store, d));
+               } else if (d < best.peek ().distance) {
+                  best.poll ();
+                  best.add (new Hit (store, d));
+               }
+            }
+         }
+      }
+   }//end scanRing
+
+   // takes a store out of its cell, dropping the cell once it is empty.
+   private void unbucket (StoreRow store) {
+      long key = key (cell (store.latitude), cell (store.longitude));
+      List<StoreRow> bucket = this.cells.get (key);
+      bucket.remove (store);
+      if (bucket.isEmpty ())
+         this.cells.remove (key);
+   }
+
+   // the distance along one axis from a coordinate to the nearest edge of cell c, 0 inside it.
+   private double gap (double coordinate, int c) {
+      double low = c * this.cellSize;
+      double high = low + this.cellSize;
+      return coordinate < low ? low - coordinate : coordinate > high ? coordinate - high : 0;
+   }
+
+   private int cell (double coordinate) {
+      return (int) Math.floor (coordinate / this.cellSize);
+   }
+
+   private static long key (int cx, int cy) {
+      return ((long) cx << 32) | (cy & 0xffffffffL);
+   }
+
+   private static double distance (double latitude, double longitude, StoreRow store) {
+      double t1 = (latitude - store.latitude) * (latitude - store.latitude);
+      double t2 = (longitude - store.longitude) * (longitude - store.longitude);
+      return Math.sqrt (t1 + t2);
+   }
+
+}//end StoreIndex
@@ -0,0 +1,35 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Store table.
+ *
+ */
+
+public class StoreRow {
+
+   /** Select list matching MAPPER, for queries that alias Store as S. */
+   public static final String COLUMNS = "S.storeID, S.name, S.latitude, S.longitude, S.managerID";
+
+   public static final RowMapper<StoreRow> MAPPER = new RowMapper<StoreRow> () {
+      public StoreRow mapRow (ResultSet rs) throws SQLException {
+         return new StoreRow (rs.getInt (1), rs.getString (2).trim (), rs.getDouble (3),
+                              rs.getDouble (4), rs.getInt (5));
+      }
+   };
+
+   public final int storeID;
+   public final String name;
+   public final double latitude;
+   public final double longitude;
+   public final int managerID;
+
+   public StoreRow (int storeID, String name, double latitude, double longitude, int managerID) {
+      this.storeID = storeID;
+      this.name = name;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.managerID = managerID;
+   }
+
+}//end StoreRow
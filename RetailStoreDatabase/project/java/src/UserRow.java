@@ -0,0 +1,35 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Users table, without the password.
+ *
+ */
+
+public class UserRow {
+
+   /** Select list matching MAPPER, for queries that alias Users as U. */
+   public static final String COLUMNS = "U.userID, U.name, U.type, U.latitude, U.longitude";
+
+   public static final RowMapper<UserRow> MAPPER = new RowMapper<UserRow> () {
+      public UserRow mapRow (ResultSet rs) throws SQLException {
+         return new UserRow (rs.getInt (1), rs.getString (2).trim (), rs.getString (3).trim (),
+                             rs.getDouble (4), rs.getDouble (5));
+      }
+   };
+
+   public final int userID;
+   public final String name;
+   public final String type;
+   public final double latitude;
+   public final double longitude;
+
+   public UserRow (int userID, String name, String type, double latitude, double longitude) {
+      this.userID = userID;
+      this.name = name;
+      this.type = type;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+
+}//end UserRow
@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Warehouse table.
+ *
+ */
+
+public class WarehouseRow {
+
+   /** Select list matching MAPPER, for queries that alias Warehouse as W. */
+   public static final String COLUMNS = "W.WarehouseID, W.area, W.latitude, W.longitude";
+
+   public static final RowMapper<WarehouseRow> MAPPER = new RowMapper<WarehouseRow> () {
+      public WarehouseRow mapRow (ResultSet rs) throws SQLException {
+         return new WarehouseRow (rs.getInt (1), rs.getInt (2), rs.getDouble (3), rs.getDouble (4));
+      }
+   };
+
+   public final int warehouseID;
+   public final int area;
+   public final double latitude;
+   public final double longitude;
+
+   public WarehouseRow (int warehouseID, int area, double latitude, double longitude) {
+      this.warehouseID = warehouseID;
+      this.area = area;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+
+}//end WarehouseRow
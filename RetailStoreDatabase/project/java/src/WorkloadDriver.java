@@ -0,0 +1,361 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for Retail: many threads play customers and
+ * managers at once, calling the same Retail operations the menus call, and
+ * the throughput and latency of each operation is reported at the end.
+ *
+ * The users, stores, products and warehouses are read once at startup;
+ * every operation then picks its inputs at random from them.  Nothing is
+ * read from standard input.  placeOrder, updateProduct and
+ * placeProductSupplyRequests write to the database, so run it against a
+ * scratch database loaded with create_db.sh.
+ *
+ * Settings are system properties:
+ *   retail.workload.threads           worker threads (8)
+ *   retail.workload.durationSeconds   measured run length (60)
+ *   retail.workload.warmupSeconds     unmeasured run before it (5)
+ *   retail.workload.seed              random seed (1)
+ *   retail.workload.mix               op=weight list, e.g. "placeOrder=5,viewStores=1";
+ *                                     operations left out are not run
+ *
+ * An operation whose random inputs leave it nothing to do (no store
+ * nearby, a product deleted since startup) is counted as skipped and kept
+ * out of the latency figures and ops/s.
+ *
+ */
+
+public class WorkloadDriver {
+
+   static final String DEFAULT_MIX =
+      "viewStores=20,viewProducts=25,placeOrder=20,viewRecentOrders=15,"
+      + "viewPopularProducts=5,updateProduct=10,placeProductSupplyRequests=5";
+
+   /**
+    * One operation of the mix, run with a thread's own random source.
+    * run() returns false when it skipped the work.
+    */
+   abstract static class Operation {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram ();
+      final AtomicLong errors = new AtomicLong ();
+      final AtomicLong skipped = new AtomicLong ();
+
+      Operation (String name) {
+         this.name = name;
+      }
+
+      abstract boolean run (Random random) throws SQLException;
+   }//end Operation
+
+   private final Retail esql;
+   private final Map<String, Operation> operations = new LinkedHashMap<String, Operation> ();
+
+   // reference data read at startup.
+   private List<UserRow> customers;
+   private List<Integer> warehouses;
+   private final List<int[]> managedStores = new ArrayList<int[]> ();
+   private final Map<Integer, List<String>> productsByStore = new HashMap<Integer, List<String>> ();
+
+   public WorkloadDriver (Retail esql) throws SQLException {
+      this.esql = esql;
+      load ();
+      define ();
+   }
+
+   // reads the users, stores, products and warehouses the operations pick from.
+   private void load () throws SQLException {
+      String query1 = "SELECT " + UserRow.COLUMNS + " FROM Users U WHERE U.type = 'customer'";
+      this.customers = this.esql.executeQueryForList (query1, UserRow.MAPPER);
+
+      String query2 = "SELECT S.managerID, S.storeID FROM Store S";
+      this.managedStores.addAll (this.esql.executeQueryForList (query2, new RowMapper<int[]> () {
+         public int[] mapRow (ResultSet rs) throws SQLException {
+            return new int[] { rs.getInt (1), rs.getInt (2) };
+         }
+      }));
+
+      String query3 = "SELECT P.storeID, P.productName FROM Product P";
+      this.esql.executeQueryAndStream (query3, 1000, new RowHandler () {
+         public void handleRow (ResultSet rs) throws SQLException {
+            List<String> products = productsByStore.get (rs.getInt (1));
+            if (products == null) {
+               products = new ArrayList<String> ();
+               productsByStore.put (rs.getInt (1), products);
+            }
+            products.add (rs.getString (2).trim ());
+         }
+      });
+
+      String query4 = "SELECT W.WarehouseID FROM Warehouse W";
+      this.warehouses = this.esql.executeQueryForList (query4, Retail.INT_COLUMN);
+
+      if (this.customers.isEmpty () || this.managedStores.isEmpty () || this.productsByStore.isEmpty ()
+          || this.warehouses.isEmpty ())
+         throw new IllegalStateException ("the database has no customers, stores, products or warehouses; run create_db.sh first");
+      this.esql.getStoreIndex ();
+   }//end load
+
+   // the operations, each doing what the menu option of the same name does.
+   private void define () {
+      add (new Operation ("viewStores") {
+         boolean run (Random random) throws SQLException {
+            UserRow customer = pick (random, customers);
+            esql.getStoreIndex ().withinRadius (customer.latitude, customer.longitude, Retail.STORE_SEARCH_RADIUS);
+            return true;
+         }
+      });
+      add (new Operation ("viewProducts") {
+         boolean run (Random random) throws SQLException {
+            esql.listProducts (pick (random, managedStores)[1]);
+            return true;
+         }
+      });
+      add (new Operation ("placeOrder") {
+         boolean run (Random random) throws SQLException {
+            UserRow customer = pick (random, customers);
+            List<StoreIndex.Hit> nearby =
+               esql.getStoreIndex ().withinRadius (customer.latitude, customer.longitude, Retail.STORE_SEARCH_RADIUS);
+            if (nearby.isEmpty ())
+               return false;
+            int storeID = pick (random, nearby).store.storeID;
+            List<String> products = productsByStore.get (storeID);
+            if (products == null)
+               return false;
+            String productName = pick (random, products);
+            if (esql.findProduct (storeID, productName) == null)
+               return false;
+            esql.submitOrder (customer.userID, storeID, productName, 1 + random.nextInt (5));
+            return true;
+         }
+      });
+      add (new Operation ("viewRecentOrders") {
+         boolean run (Random random) throws SQLException {
+            esql.executeQuery (Retail.RECENT_ORDERS_QUERY, pick (random, customers).userID);
+            return true;
+         }
+      });
+      add (new Operation ("viewPopularProducts") {
+         boolean run (Random random) throws SQLException {
+            esql.executeQuery (Retail.POPULAR_PRODUCTS_QUERY, pick (random, managedStores)[0]);
+            return true;
+         }
+      });
+      add (new Operation ("updateProduct") {
+         boolean run (Random random) throws SQLException {
+            int[] managed = pick (random, managedStores);
+            List<String> products = productsByStore.get (managed[1]);
+            if (products == null)
+               return false;
+            String productName = pick (random, products);
+            if (esql.findProduct (managed[1], productName) == null)
+               return false;
+            if (random.nextBoolean ())
+               esql.updateProductUnits (managed[0], managed[1], productName, 50 + random.nextInt (450));
+            else
+               esql.updateProductPrice (managed[0], managed[1], productName, 1 + random.nextInt (50));
+            return true;
+         }
+      });
+      add (new Operation ("placeProductSupplyRequests") {
+         boolean run (Random random) throws SQLException {
+            int[] managed = pick (random, managedStores);
+            List<String> products = productsByStore.get (managed[1]);
+            if (products == null)
+               return false;
+            String productName = pick (random, products);
+            if (esql.findProduct (managed[1], productName) == null)
+               return false;
+            esql.routeSupplyRequest (managed[0], managed[1], productName, 1 + random.nextInt (100));
+            return true;
+         }
+      });
+   }//end define
+
+   private void add (Operation op) {
+      this.operations.put (op.name, op);
+   }
+
+   private static <T> T pick (Random random, List<T> list) {
+      return list.get (random.nextInt (list.size ()));
+   }
+
+   /**
+    * Runs the workload and prints the report.
+    *
+    * @param mix op=weight pairs separated by commas
+    * @param threads the number of worker threads
+    * @param warmupSeconds how long to run before measuring
+    * @param durationSeconds how long to measure
+    * @param seed the random seed; thread i uses seed + i
+    * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+    */
+   public void run (String mix, int threads, int warmupSeconds, int durationSeconds, long seed)
+      throws InterruptedException {
+      final Operation[] ops = parseMix (mix);
+
+      // warm the pool, statement caches and the server's buffers without measuring.
+      if (warmupSeconds > 0) {
+         System.out.println ("Warming up for " + warmupSeconds + " s...");
+         runPhase (ops, threads, warmupSeconds, seed, false);
+         QueryMetrics.clear ();
+      }
+
+      System.out.println ("Running " + threads + " threads for " + durationSeconds + " s, mix " + mix);
+      long start = System.nanoTime ();
+      runPhase (ops, threads, durationSeconds, seed + threads, true);
+      double seconds = (System.nanoTime () - start) / 1e9;
+
+      System.out.println ();
+      System.out.println (String.format ("%-28s %9s %7s %8s %9s %9s %9s %9s %9s",
+                                         "operation", "count", "errors", "skipped", "ops/s", "p50 ms", "p95 ms", "p99 ms",
+                                         "max ms"));
+      LatencyHistogram total = new LatencyHistogram ();
+      long totalErrors = 0;
+      long totalSkipped = 0;
+      for (Operation op : new LinkedHashSet<Operation> (Arrays.asList (ops))) {
+         total.add (op.latency);
+         totalErrors += op.errors.get ();
+         totalSkipped += op.skipped.get ();
+         printRow (op.name, op.latency, op.errors.get (), op.skipped.get (), seconds);
+      }
+      printRow ("total", total, totalErrors, totalSkipped, seconds);
+      System.out.println ();
+      System.out.println (this.esql.getPoolStats ());
+      System.out.println ("statement cache: " + this.esql.getStatementCacheStats ());
+      System.out.println ("product cache: " + this.esql.getProductCacheStats ());
+      System.out.println (this.esql.getAuditStats ());
+      if (this.esql.getInventoryStats () != null)
+         System.out.println (this.esql.getInventoryStats ());
+      if (this.esql.getRestockStats () != null)
+         System.out.println (this.esql.getRestockStats ());
+      System.out.println (this.esql.getOrderStats ());
+      System.out.println ();
+      System.out.println ("per statement:");
+      for (String line : QueryMetrics.summary ())
+         System.out.println ("  " + line);
+   }//end run
+
+   private static void printRow (String name, LatencyHistogram h, long errors, long skipped, double seconds) {
+      System.out.println (String.format ("%-28s %9d %7d %8d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                                         name, h.getCount (), errors, skipped, h.getCount () / seconds,
+                                         h.getPercentile (50) / 1000.0, h.getPercentile (95) / 1000.0,
+                                         h.getPercentile (99) / 1000.0, h.getMax () / 1000.0));
+   }
+
+   // runs the mix on every thread until the deadline, recording into the operations if measure is set.
+   private void runPhase (final Operation[] ops, int threads, int seconds, long seed, final boolean measure)
+      throws InterruptedException {
+      final long deadline = System.nanoTime () + seconds * 1000000000L;
+      final CountDownLatch startGate = new CountDownLatch (1);
+      List<Thread> workers = new ArrayList<Thread> ();
+      for (int i = 0; i < threads; ++i) {
+         final Random random = new Random (seed + i);
+         Thread worker = new Thread ("workload-" + i) {
+            public void run () {
+               try {
+                  startGate.await ();
+               }catch (InterruptedException e) {
+                  return;
+               }
+               while (System.nanoTime () < deadline) {
+                  Operation op = ops[random.nextInt (ops.length)];
+                  long start = System.nanoTime ();
+                  String previous = QueryMetrics.enter (op.name);
+                  try {
+                     boolean ran = op.run (random);
+                     if (measure && ran)
+                        op.latency.recordSince (start);
+                     else if (measure)
+                        op.skipped.incrementAndGet ();
+                  }catch (Exception e) {
+                     // report the first failure of each operation; the rest are only counted.
+                     if (measure && op.errors.incrementAndGet () == 1)
+                        System.err.println (op.name + ": " + e.getMessage ());
+                  }finally {
+                     QueryMetrics.exit (previous);
+                  }
+               }
+            }
+         };
+         worker.setDaemon (true);
+         workers.add (worker);
+         worker.start ();
+      }
+      startGate.countDown ();
+      for (Thread worker : workers)
+         worker.join ();
+   }//end runPhase
+
+   // expands "op=weight,..." into a table with weight entries per operation.
+   private Operation[] parseMix (String mix) {
+      List<Operation> table = new ArrayList<Operation> ();
+      for (String entry : mix.split (",")) {
+         if (entry.trim ().isEmpty ())
+            continue;
+         String[] parts = entry.split ("=");
+         Operation op = this.operations.get (parts[0].trim ());
+         if (op == null)
+            throw new IllegalArgumentException ("unknown operation '" + parts[0].trim () + "', expected one of "
+                                                + this.operations.keySet ());
+         int weight = parts.length > 1 ? Integer.parseInt (parts[1].trim ()) : 1;
+         if (weight < 0)
+            throw new IllegalArgumentException ("negative weight for " + op.name);
+         for (int i = 0; i < weight; ++i)
+            table.add (op);
+      }
+      if (table.isEmpty ())
+         throw new IllegalArgumentException ("the mix has no operations");
+      return table.toArray (new Operation[table.size ()]);
+   }//end parseMix
+
+   /**
+    * Runs the workload from the command line.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dretail.workload.threads=N ...] " +
+            WorkloadDriver.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      int threads = Integer.getInteger ("retail.workload.threads", 8);
+      // one connection per worker unless the pool size was chosen explicitly.
+      if (System.getProperty ("retail.pool.maxSize") == null)
+         System.setProperty ("retail.pool.maxSize", Integer.toString (threads));
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail (args[0], args[1], args[2], "");
+         new WorkloadDriver (esql).run (System.getProperty ("retail.workload.mix", DEFAULT_MIX),
+                                        threads,
+                                        Integer.getInteger ("retail.workload.warmupSeconds", 5),
+                                        Integer.getInteger ("retail.workload.durationSeconds", 60),
+                                        Long.getLong ("retail.workload.seed", 1L));
+      }catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }finally {
+         if (esql != null)
+            esql.cleanup ();
+      }
+   }//end main
+
+}//end WorkloadDriver
@@ -0,0 +1,250 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Tests of InventoryJournal's crash safety: records written and recovered,
+ * a torn or corrupt record ending recovery, and failed writes taken back
+ * out so they are neither drained nor replayed.
+ *
+ * Needs no database and no test framework: run with scripts/test.sh.
+ *
+ */
+
+public class InventoryJournalTest {
+
+   /**
+    * A journal whose segment writes fail once fail is set, after writing
+    * the first half of the bytes they were given.
+    */
+   private static class FailingJournal extends InventoryJournal {
+      volatile boolean fail;
+
+      FailingJournal (File dir, long lastSequence) throws IOException {
+         super (dir, true, lastSequence);
+      }
+
+      FileOutputStream openFile (File f) throws IOException {
+         return new FileOutputStream (f, true) {
+            public void write (byte[] b, int off, int len) throws IOException {
+               if (!fail) {
+                  super.write (b, off, len);
+                  return;
+               }
+               super.write (b, off, len / 2);
+               throw new IOException ("injected write failure");
+            }
+         };
+      }
+   }//end FailingJournal
+
+   public static void main (String[] args) throws Exception {
+      InventoryJournalTest test = new InventoryJournalTest ();
+      test.recoversWrittenRecords ();
+      test.stopsAtTornRecord ();
+      test.stopsAtCorruptRecord ();
+      test.recoversOnlyEarlierSegments ();
+      test.deletesDrainedSegments ();
+      test.failedAppendIsNotDrainedOrReplayed ();
+      test.failedForceIsNotDrainedOrReplayed ();
+      test.refusesRecordsAfterFailure ();
+      System.out.println ("InventoryJournalTest: all tests passed.");
+   }
+
+   void recoversWrittenRecords () throws IOException {
+      File dir = newDir ();
+      InventoryJournal journal = new InventoryJournal (dir, true, 10);
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 3, 100)));
+      journal.awaitDurable (journal.append (new InventoryJournal.Record (2, "7up", 50, 0, 0, 0)));
+      journal.close ();
+
+      List<InventoryJournal.Record> records = new InventoryJournal (dir, true, 0).recover ();
+      check (records.size () == 2, "2 records recovered, got " + records.size ());
+      InventoryJournal.Record r = records.get (0);
+      check (r.sequence == 11, "sequences continue after lastSequence");
+      check (r.storeID == 1 && r.productName.equals ("Pepsi") && r.delta == -3 && r.orderNumber == 100
+             && r.customerID == 7 && r.orderTime == 1234L, "order record read back field by field");
+      check (records.get (1).sequence == 12 && records.get (1).delta == 50 && !records.get (1).isOrder (),
+             "stock record read back");
+   }
+
+   void stopsAtTornRecord () throws IOException {
+      File dir = newDir ();
+      InventoryJournal journal = new InventoryJournal (dir, true, 0);
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 1)));
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 2)));
+      journal.close ();
+      // a crash in the middle of the third record.
+      File segment = onlySegment (dir);
+      RandomAccessFile raf = new RandomAccessFile (segment, "rw");
+      try {
+         raf.seek (raf.length ());
+         raf.writeInt (40);
+         raf.write (new byte[10]);
+      }finally {
+         raf.close ();
+      }
+
+      List<InventoryJournal.Record> records = new InventoryJournal (dir, true, 0).recover ();
+      check (records.size () == 2, "the torn record ends recovery, got " + records.size ());
+   }
+
+   void stopsAtCorruptRecord () throws IOException {
+      File dir = newDir ();
+      InventoryJournal journal = new InventoryJournal (dir, true, 0);
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 1)));
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 2)));
+      journal.close ();
+      File segment = onlySegment (dir);
+      RandomAccessFile raf = new RandomAccessFile (segment, "rw");
+      try {
+         // a byte of the last record's CRC.
+         raf.seek (raf.length () - 1);
+         int b = raf.read ();
+         raf.seek (raf.length () - 1);
+         raf.write (b ^ 0xff);
+      }finally {
+         raf.close ();
+      }
+
+      List<InventoryJournal.Record> records = new InventoryJournal (dir, true, 0).recover ();
+      check (records.size () == 1, "a record failing its CRC ends recovery, got " + records.size ());
+   }
+
+   void recoversOnlyEarlierSegments () throws IOException {
+      File dir = newDir ();
+      InventoryJournal first = new InventoryJournal (dir, true, 0);
+      first.awaitDurable (first.append (order (1, "Pepsi", 1, 1)));
+      first.close ();
+      InventoryJournal second = new InventoryJournal (dir, true, 0);
+      check (second.recover ().size () == 1, "the previous run's segment is recovered");
+      second.awaitDurable (second.append (order (1, "Pepsi", 1, 2)));
+      check (second.recover ().size () == 1, "the segment being written is not recovered");
+   }
+
+   void deletesDrainedSegments () throws IOException {
+      File dir = newDir ();
+      InventoryJournal journal = new InventoryJournal (dir, true, 0);
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 1)));
+      InventoryJournal.Batch batch = journal.drain ();
+      check (batch.records.size () == 1, "drain hands over the record");
+      check (journal.drain ().records.isEmpty (), "a record is drained once");
+      journal.deleteThrough (batch.segment);
+      journal.close ();
+      check (new InventoryJournal (dir, true, 0).recover ().isEmpty (), "deleted segments are not replayed");
+   }
+
+   void failedAppendIsNotDrainedOrReplayed () throws IOException {
+      File dir = newDir ();
+      FailingJournal journal = new FailingJournal (dir, 0);
+      InventoryJournal.Record durable = order (1, "Pepsi", 1, 1);
+      journal.awaitDurable (journal.append (durable));
+      long durableLength = onlySegment (dir).length ();
+
+      // a record too large for the stream buffer goes to the file during append().
+      journal.fail = true;
+      InventoryJournal.Record failed = order (1, repeat ('x', 9000), 1, 2);
+      try {
+         journal.append (failed);
+         check (false, "append() reports the failed write");
+      }catch (IOException e) {
+         journal.discard (failed);
+      }
+      check (onlySegment (dir).length () == durableLength, "the partial record is cut off the segment");
+
+      List<InventoryJournal.Record> drained = journal.drain ().records;
+      check (drained.size () == 1 && drained.get (0) == durable, "only the durable record is drained");
+      // a crash before the flush deletes the segment.
+      List<InventoryJournal.Record> replayed = new InventoryJournal (dir, true, 0).recover ();
+      check (replayed.size () == 1 && replayed.get (0).orderNumber == 1, "only the durable record is replayed");
+   }
+
+   void failedForceIsNotDrainedOrReplayed () throws IOException {
+      File dir = newDir ();
+      FailingJournal journal = new FailingJournal (dir, 0);
+      journal.awaitDurable (journal.append (order (1, "Pepsi", 1, 1)));
+
+      // both records sit in the stream buffer until awaitDurable() flushes them.
+      journal.fail = true;
+      InventoryJournal.Record second = order (1, "Pepsi", 1, 2);
+      InventoryJournal.Record third = order (1, "Pepsi", 1, 3);
+      long secondSequence = journal.append (second);
+      long thirdSequence = journal.append (third);
+      try {
+         journal.awaitDurable (secondSequence);
+         check (false, "awaitDurable() reports the failed write");
+      }catch (IOException e) {
+         journal.discard (second);
+      }
+      // the other caller waiting on its own record fails too.
+      try {
+         journal.awaitDurable (thirdSequence);
+         check (false, "a record appended before the failure is not durable");
+      }catch (IOException e) {
+         journal.discard (third);
+      }
+
+      check (journal.drain ().records.size () == 1, "only the durable record is drained");
+      List<InventoryJournal.Record> replayed = new InventoryJournal (dir, true, 0).recover ();
+      check (replayed.size () == 1 && replayed.get (0).orderNumber == 1, "only the durable record is replayed");
+   }
+
+   void refusesRecordsAfterFailure () throws IOException {
+      File dir = newDir ();
+      FailingJournal journal = new FailingJournal (dir, 0);
+      journal.fail = true;
+      long sequence = journal.append (order (1, "Pepsi", 1, 1));
+      try {
+         journal.awaitDurable (sequence);
+      }catch (IOException e) {
+         // expected.
+      }
+      journal.fail = false;
+      try {
+         journal.append (order (1, "Pepsi", 1, 2));
+         check (false, "the journal takes no record after a failure");
+      }catch (IOException e) {
+         // expected.
+      }
+      check (journal.drain ().records.isEmpty (), "nothing is drained after a failure before any durable record");
+   }
+
+   private static InventoryJournal.Record order (int storeID, String productName, int units, int orderNumber) {
+      return new InventoryJournal.Record (storeID, productName, -units, orderNumber, 7, 1234L);
+   }
+
+   private static String repeat (char c, int n) {
+      StringBuilder s = new StringBuilder (n);
+      for (int i = 0; i < n; ++i)
+         s.append (c);
+      return s.toString ();
+   }
+
+   private static File newDir () throws IOException {
+      File dir = File.createTempFile ("journal-test", "");
+      if (!dir.delete () || !dir.mkdir ())
+         throw new IOException ("cannot create " + dir);
+      dir.deleteOnExit ();
+      return dir;
+   }
+
+   // the one non-empty segment in a journal directory.
+   private static File onlySegment (File dir) {
+      File found = null;
+      for (File f : dir.listFiles ())
+         if (f.length () > 0) {
+            check (found == null, "one non-empty segment in " + dir);
+            found = f;
+         }
+      check (found != null, "a non-empty segment in " + dir);
+      return found;
+   }
+
+   private static void check (boolean condition, String what) {
+      if (!condition)
+         throw new AssertionError (what);
+   }
+
+}//end InventoryJournalTest
@@ -2,19 +2,45 @@ DROP INDEX IF EXISTS units_ordered_idx;
 DROP INDEX IF EXISTS product_name_idx;
 DROP INDEX IF EXISTS manager_id_idx;
 DROP INDEX IF EXISTS orderTime_idx;
+DROP INDEX IF EXISTS orders_store_time_idx;
+DROP INDEX IF EXISTS orders_customer_time_idx;
+DROP INDEX IF EXISTS product_updates_manager_idx;
+DROP INDEX IF EXISTS users_name_idx;
 
-CREATE INDEX units_ordered_idx
-ON Orders
-USING BTREE(unitsOrdered);
+-- Every index below backs a query checked by PlanCheck; run it after
+-- changing this file or the queries in Retail.
 
+-- admin product lookups by name across stores.
 CREATE INDEX product_name_idx
 ON Product
 USING BTREE(productName);
 
+-- the stores of a manager: LogIn, popular products and customers, order paging.
 CREATE INDEX manager_id_idx
 on Store
-USING BTREE(manager_id);
+USING BTREE(managerID);
 
+-- orders placed since a time, read when the top product tracker starts.
 CREATE INDEX orderTime_idx
 on Orders
-USING BTREE(orderTime);
\ No newline at end of file
+USING BTREE(orderTime);
+
+-- checkManagerOrderInfo pages through each store's orders newest first.
+CREATE INDEX orders_store_time_idx
+on Orders
+USING BTREE(storeID, orderTime, orderNumber);
+
+-- viewRecentOrders: a customer's latest orders.
+CREATE INDEX orders_customer_time_idx
+on Orders
+USING BTREE(customerID, orderTime);
+
+-- viewRecentUpdates: a manager's latest product updates.
+CREATE INDEX product_updates_manager_idx
+on ProductUpdates
+USING BTREE(managerID, updatedOn);
+
+-- LogIn and the admin user lookups by name.
+CREATE INDEX users_name_idx
+on Users
+USING BTREE(name);
\ No newline at end of file
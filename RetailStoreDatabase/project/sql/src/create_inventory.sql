@@ -0,0 +1,16 @@
+-- Checkpoint of the write-behind inventory engine (InventoryEngine, enabled
+-- with -Dretail.inventory.writeBehind=true): the sequence number of the last
+-- journal record written to Product and Orders.  It is updated in the same
+-- transaction as those rows, so replaying the journal after a crash skips
+-- what is already applied.  Delete the journal directory
+-- (retail.inventory.journalDir) whenever this script resets the checkpoint.
+
+DROP TABLE IF EXISTS InventoryCheckpoint;
+
+CREATE TABLE InventoryCheckpoint ( id integer NOT NULL,
+                                   lastSequence bigint NOT NULL,
+                                   PRIMARY KEY(id),
+                                   CHECK (id = 1)
+);
+
+INSERT INTO InventoryCheckpoint (id, lastSequence) VALUES (1, 0);
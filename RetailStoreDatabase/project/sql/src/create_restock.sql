@@ -0,0 +1,16 @@
+-- Per-store stock thresholds of the low-stock scanner (LowStockScanner,
+-- enabled with -Dretail.restock.scan=true).  A product of the store with
+-- fewer than minUnits in stock is restocked to restockTo units with a
+-- supply request.  Stores without a row use retail.restock.minUnits and
+-- retail.restock.restockTo.
+
+DROP TABLE IF EXISTS StockThreshold;
+
+CREATE TABLE StockThreshold ( storeID integer NOT NULL,
+                              minUnits integer NOT NULL,
+                              restockTo integer NOT NULL,
+                              PRIMARY KEY(storeID),
+                              FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                              ON DELETE CASCADE,
+                              CHECK (minUnits >= 0 AND restockTo > minUnits)
+);
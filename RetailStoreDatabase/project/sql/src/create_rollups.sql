@@ -0,0 +1,59 @@
+-- Per-store order counts kept up to date by a trigger on Orders, so the
+-- manager top-5 queries read a few rollup rows instead of grouping the
+-- whole order history.  Needs PostgreSQL 9.5 or later (ON CONFLICT).
+-- Run after load_data.sql; the rollups are filled from the loaded orders.
+
+DROP TRIGGER IF EXISTS orders_rollup_trg ON Orders;
+DROP FUNCTION IF EXISTS orders_rollup();
+DROP TABLE IF EXISTS StoreProductOrderCounts CASCADE;
+DROP TABLE IF EXISTS StoreCustomerOrderCounts CASCADE;
+
+CREATE TABLE StoreProductOrderCounts ( storeID integer NOT NULL,
+                                       productName char(30) NOT NULL,
+                                       numberOfOrders bigint NOT NULL,
+                                       PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE StoreCustomerOrderCounts ( storeID integer NOT NULL,
+                                        customerID integer NOT NULL,
+                                        numberOfOrders bigint NOT NULL,
+                                        PRIMARY KEY(storeID, customerID)
+);
+
+CREATE FUNCTION orders_rollup() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('DELETE', 'UPDATE') THEN
+        UPDATE StoreProductOrderCounts SET numberOfOrders = numberOfOrders - 1
+        WHERE storeID = OLD.storeID AND productName = OLD.productName;
+        DELETE FROM StoreProductOrderCounts
+        WHERE storeID = OLD.storeID AND productName = OLD.productName AND numberOfOrders <= 0;
+
+        UPDATE StoreCustomerOrderCounts SET numberOfOrders = numberOfOrders - 1
+        WHERE storeID = OLD.storeID AND customerID = OLD.customerID;
+        DELETE FROM StoreCustomerOrderCounts
+        WHERE storeID = OLD.storeID AND customerID = OLD.customerID AND numberOfOrders <= 0;
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO StoreProductOrderCounts (storeID, productName, numberOfOrders)
+        VALUES (NEW.storeID, NEW.productName, 1)
+        ON CONFLICT (storeID, productName)
+        DO UPDATE SET numberOfOrders = StoreProductOrderCounts.numberOfOrders + 1;
+
+        INSERT INTO StoreCustomerOrderCounts (storeID, customerID, numberOfOrders)
+        VALUES (NEW.storeID, NEW.customerID, 1)
+        ON CONFLICT (storeID, customerID)
+        DO UPDATE SET numberOfOrders = StoreCustomerOrderCounts.numberOfOrders + 1;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_rollup_trg
+AFTER INSERT OR DELETE OR UPDATE OF storeID, productName, customerID ON Orders
+FOR EACH ROW EXECUTE PROCEDURE orders_rollup();
+
+INSERT INTO StoreProductOrderCounts (storeID, productName, numberOfOrders)
+SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName;
+
+INSERT INTO StoreCustomerOrderCounts (storeID, customerID, numberOfOrders)
+SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
@@ -41,6 +41,13 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- Orders is range partitioned by month on orderTime (PostgreSQL 11 or
+-- later), so queries bounded in time read only the months they need and old
+-- months can be archived without deleting rows.  Partitions are named
+-- orders_YYYY_MM; orders_default takes any order whose month has no
+-- partition yet, until orders_create_partitions() moves it.  orderNumber
+-- stays unique through its sequence; the primary key has to include the
+-- partition key.
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -48,10 +55,102 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+CREATE TABLE orders_default PARTITION OF Orders DEFAULT;
+
+CREATE SCHEMA IF NOT EXISTS order_archive;
+
+-- Creates the monthly partitions from the month of from_day through the month
+-- of to_day that do not exist yet, moving any of their orders out of
+-- orders_default.  The moved rows are deleted and re-inserted through
+-- Orders, so the rollup trigger (create_rollups.sql) nets to zero.
+-- Returns the number of partitions created.
+CREATE OR REPLACE FUNCTION orders_create_partitions(from_day date, to_day date) RETURNS integer AS $$
+DECLARE
+    first_day date := date_trunc('month', from_day);
+    part text;
+    created integer := 0;
+BEGIN
+    -- one maintenance run at a time.
+    PERFORM pg_advisory_xact_lock(hashtext('orders_partitions'));
+    WHILE first_day <= to_day LOOP
+        part := 'orders_' || to_char(first_day, 'YYYY_MM');
+        IF to_regclass(part) IS NULL THEN
+            CREATE TEMP TABLE IF NOT EXISTS orders_moving (LIKE Orders);
+            WITH moved AS (DELETE FROM orders_default
+                           WHERE orderTime >= first_day AND orderTime < first_day + interval '1 month' RETURNING *)
+            INSERT INTO orders_moving SELECT * FROM moved;
+            EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+                           part, first_day, (first_day + interval '1 month')::date);
+            INSERT INTO Orders SELECT * FROM orders_moving;
+            TRUNCATE orders_moving;
+            created := created + 1;
+        END IF;
+        first_day := first_day + interval '1 month';
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves every order in orders_default into a partition of its month.
+CREATE OR REPLACE FUNCTION orders_split_default() RETURNS integer AS $$
+    SELECT COALESCE(orders_create_partitions(MIN(orderTime)::date, MAX(orderTime)::date), 0) FROM orders_default;
+$$ LANGUAGE sql;
+
+-- Creates the partitions of this month and the next months_ahead months and
+-- empties orders_default.  Run it at least monthly, since setup creates only
+-- three months ahead: java/scripts/maintain_partitions.sh from cron, or the
+-- admin menu.
+CREATE OR REPLACE FUNCTION orders_maintain_partitions(months_ahead integer) RETURNS integer AS $$
+    SELECT orders_create_partitions(current_date, (current_date + months_ahead * interval '1 month')::date)
+           + orders_split_default();
+$$ LANGUAGE sql;
+
+-- Detaches the monthly partitions that end on or before cutoff and
+-- moves them to the order_archive schema, where they can be dumped and
+-- dropped.  Their orders are taken out of the rollups, which keep counting
+-- the orders still in Orders, and their foreign keys are dropped so the
+-- archive does not pin Product rows.  Returns the number archived.
+CREATE OR REPLACE FUNCTION orders_archive_partitions(cutoff date) RETURNS integer AS $$
+DECLARE
+    part text;
+    fk text;
+    archived integer := 0;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtext('orders_partitions'));
+    FOR part IN SELECT C.relname FROM pg_inherits I, pg_class C
+                WHERE I.inhparent = 'orders'::regclass AND C.oid = I.inhrelid
+                AND C.relname ~ '^orders_[0-9]{4}_[0-9]{2}$'
+                AND to_date(substr(C.relname, 8), 'YYYY_MM') + interval '1 month' <= cutoff
+                ORDER BY C.relname LOOP
+        EXECUTE format('LOCK TABLE %I IN EXCLUSIVE MODE', part);
+        IF to_regclass('storeproductordercounts') IS NOT NULL THEN
+            EXECUTE format('UPDATE StoreProductOrderCounts R SET numberOfOrders = R.numberOfOrders - A.n '
+                           'FROM (SELECT storeID, productName, COUNT(*) AS n FROM %I GROUP BY storeID, productName) A '
+                           'WHERE R.storeID = A.storeID AND R.productName = A.productName', part);
+            EXECUTE format('UPDATE StoreCustomerOrderCounts R SET numberOfOrders = R.numberOfOrders - A.n '
+                           'FROM (SELECT storeID, customerID, COUNT(*) AS n FROM %I GROUP BY storeID, customerID) A '
+                           'WHERE R.storeID = A.storeID AND R.customerID = A.customerID', part);
+            DELETE FROM StoreProductOrderCounts WHERE numberOfOrders <= 0;
+            DELETE FROM StoreCustomerOrderCounts WHERE numberOfOrders <= 0;
+        END IF;
+        EXECUTE format('ALTER TABLE Orders DETACH PARTITION %I', part);
+        EXECUTE format('ALTER TABLE %I SET SCHEMA order_archive', part);
+        FOR fk IN SELECT conname FROM pg_constraint
+                  WHERE conrelid = format('order_archive.%I', part)::regclass AND contype = 'f' LOOP
+            EXECUTE format('ALTER TABLE order_archive.%I DROP CONSTRAINT %I', part, fk);
+        END LOOP;
+        archived := archived + 1;
+    END LOOP;
+    RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT orders_maintain_partitions(3);
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -1,7 +1,7 @@
 COPY Users
 FROM 'users.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE users_userID_seq RESTART 101;
+SELECT setval(pg_get_serial_sequence('Users', 'userid'), COALESCE(MAX(userID), 0) + 1, false) FROM Users;
 
 COPY Store
 FROM 'stores.csv'
@@ -15,18 +15,25 @@ COPY Warehouse
 FROM 'warehouse.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Orders
+-- the orders are staged in a temporary table (not written to the WAL) to
+-- find their months, and the partitions of those months are created before
+-- the orders are written once, straight into them.
+CREATE TEMP TABLE orders_load (LIKE Orders);
+COPY orders_load
 FROM 'orders.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
+SELECT orders_create_partitions(MIN(orderTime)::date, MAX(orderTime)::date) FROM orders_load;
+INSERT INTO Orders SELECT * FROM orders_load;
+DROP TABLE orders_load;
+SELECT setval(pg_get_serial_sequence('Orders', 'ordernumber'), COALESCE(MAX(orderNumber), 0) + 1, false) FROM Orders;
 
 
 COPY ProductSupplyRequests
 FROM 'productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
+SELECT setval(pg_get_serial_sequence('ProductSupplyRequests', 'requestnumber'), COALESCE(MAX(requestNumber), 0) + 1, false) FROM ProductSupplyRequests;
 
 COPY ProductUpdates
 FROM 'productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
+SELECT setval(pg_get_serial_sequence('ProductUpdates', 'updatenumber'), COALESCE(MAX(updateNumber), 0) + 1, false) FROM ProductUpdates;